@@ -0,0 +1,265 @@
+package me.jezza.lava;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * A {@link Pattern} made of nothing but classes, captures and anchors,
+ * compiled to a nondeterministic automaton that finds matches in time
+ * linear in the length of the subject, however the pattern would make
+ * {@link MatchState#match} backtrack.
+ * <p>
+ * All the threads of the automaton advance through the subject
+ * together, one character at a time, each with its own captures, and
+ * kept in the order that the backtracking matcher would have tried
+ * them: the greedy quantifiers prefer another repetition, '-' prefers
+ * to stop, and threads that start further on come last.  The first
+ * thread to reach the end of the pattern wins, and every thread after
+ * it is dropped, so the match and its captures are the ones that
+ * backtracking would have found.
+ *
+ * @author Jezza
+ */
+final class Automaton {
+	// Instructions.
+	/**
+	 * Consume a character that the instruction's class matches.
+	 */
+	private static final int CLASS = 0;
+	/**
+	 * Continue at x and, with lower priority, at y.
+	 */
+	private static final int SPLIT = 1;
+	private static final int JUMP = 2;
+	/**
+	 * Record the position in slot x.
+	 */
+	private static final int SAVE = 3;
+	/**
+	 * Continue only at the end of the subject.
+	 */
+	private static final int EOS = 4;
+	private static final int MATCH = 5;
+
+	private final int[] ops;
+	private final int[] xs;
+	private final int[] ys;
+	private final Pattern.Item[] classes;
+	/**
+	 * Slots of each thread: where its match started, then the start and
+	 * end of each capture.
+	 */
+	private final int slots;
+	/**
+	 * Which captures are position captures.
+	 */
+	private final boolean[] positions;
+
+	private Automaton(int length, int captures) {
+		ops = new int[length];
+		xs = new int[length];
+		ys = new int[length];
+		classes = new Pattern.Item[length];
+		slots = 1 + 2 * captures;
+		positions = new boolean[captures];
+	}
+
+	/**
+	 * @return the automaton for <var>items</var>, or null if they use
+	 * anything it can't do, which leaves them to backtracking.
+	 */
+	static Automaton of(Pattern.Item[] items, int captures) {
+		int length = 1;
+		for (Pattern.Item item : items) {
+			switch (item.kind) {
+				case Pattern.SINGLE:
+					length += 3;
+					break;
+				case Pattern.END_ANCHOR:
+					length += 2;
+					break;
+				case Pattern.END:
+				case Pattern.OPEN:
+				case Pattern.POSITION:
+				case Pattern.CLOSE:
+					length += 1;
+					break;
+				default:
+					return null;
+			}
+		}
+		Automaton a = new Automaton(length, captures);
+		Deque<Integer> open = new ArrayDeque<>();
+		int pc = a.emit(0, SAVE, 0, 0, null);
+		int capture = 0;
+		for (Pattern.Item item : items) {
+			switch (item.kind) {
+				case Pattern.END:
+					pc = a.emit(pc, MATCH, 0, 0, null);
+					break;
+				case Pattern.END_ANCHOR:
+					pc = a.emit(pc, EOS, 0, 0, null);
+					pc = a.emit(pc, MATCH, 0, 0, null);
+					break;
+				case Pattern.OPEN:
+					open.push(capture);
+					pc = a.emit(pc, SAVE, 1 + 2 * capture++, 0, null);
+					break;
+				case Pattern.POSITION:
+					a.positions[capture] = true;
+					pc = a.emit(pc, SAVE, 1 + 2 * capture++, 0, null);
+					break;
+				case Pattern.CLOSE:
+					if (open.isEmpty())
+						return null;    // an error, once a match gets here
+					pc = a.emit(pc, SAVE, 2 + 2 * open.pop(), 0, null);
+					break;
+				default:
+					switch (item.quantifier) {
+						case '?':
+							pc = a.emit(pc, SPLIT, pc + 1, pc + 2, null);
+							pc = a.emit(pc, CLASS, 0, 0, item);
+							break;
+						case '*':
+							pc = a.emit(pc, SPLIT, pc + 1, pc + 3, null);
+							pc = a.emit(pc, CLASS, 0, 0, item);
+							pc = a.emit(pc, JUMP, pc - 2, 0, null);
+							break;
+						case '+':
+							pc = a.emit(pc, CLASS, 0, 0, item);
+							pc = a.emit(pc, SPLIT, pc - 1, pc + 1, null);
+							break;
+						case '-':
+							pc = a.emit(pc, SPLIT, pc + 3, pc + 1, null);
+							pc = a.emit(pc, CLASS, 0, 0, item);
+							pc = a.emit(pc, JUMP, pc - 2, 0, null);
+							break;
+						default:
+							pc = a.emit(pc, CLASS, 0, 0, item);
+					}
+			}
+		}
+		return a;
+	}
+
+	private int emit(int pc, int op, int x, int y, Pattern.Item item) {
+		ops[pc] = op;
+		xs[pc] = x;
+		ys[pc] = y;
+		classes[pc] = item;
+		return pc + 1;
+	}
+
+	/**
+	 * Finds the first match in <var>ms</var>'s subject that starts at or
+	 * after <var>init</var>, or only at <var>init</var> if
+	 * <var>anchor</var>, as {@link MatchState#find} does, and sets its
+	 * captures.
+	 *
+	 * @return the start of the match, or -1 if there isn't one.
+	 */
+	int find(MatchState ms, int init, boolean anchor) {
+		String src = ms.src;
+		int end = ms.end;
+		Threads clist = new Threads(this);
+		Threads nlist = new Threads(this);
+		int[] marks = new int[ops.length];
+		int[] caps = new int[slots];
+		int[] match = null;
+		int matchEnd = -1;
+		for (int si = init; si <= end; ++si) {
+			boolean seed = match == null && (si == init || !anchor);
+			if (seed) {
+				Arrays.fill(caps, -1);
+				add(clist, marks, si + 1, 0, si, end, caps);
+			} else if (clist.n == 0) {
+				break;
+			}
+			nlist.n = 0;
+			for (int i = 0; i < clist.n; ++i) {
+				int pc = clist.pcs[i];
+				if (ops[pc] == MATCH) {
+					// Every thread after this one has lower priority.
+					if (match == null)
+						match = new int[slots];
+					System.arraycopy(clist.caps, i * slots, match, 0, slots);
+					matchEnd = si;
+					break;
+				}
+				if (si < end && classes[pc].matches(src.charAt(si))) {
+					System.arraycopy(clist.caps, i * slots, caps, 0, slots);
+					add(nlist, marks, si + 2, pc + 1, si + 1, end, caps);
+				}
+			}
+			Threads t = clist;
+			clist = nlist;
+			nlist = t;
+		}
+		if (match == null)
+			return -1;
+		int captures = positions.length;
+		for (int i = 0; i < captures; ++i) {
+			int start = match[1 + 2 * i];
+			int stop = match[2 + 2 * i];
+			ms.setCapture(i, start, positions[i] ? MatchState.CAP_POSITION : stop < 0 ? MatchState.CAP_UNFINISHED : stop - start);
+		}
+		ms.level = captures;
+		ms.matchEnd = matchEnd;
+		return match[0];
+	}
+
+	/**
+	 * Adds the thread at <var>pc</var> to <var>list</var>, following
+	 * jumps, splits and saves to the instructions that consume input or
+	 * match, in priority order, once each per position.
+	 *
+	 * @param stamp marks the instructions already on the list for this
+	 *              position.
+	 * @param caps  the thread's slots, restored before returning.
+	 */
+	private void add(Threads list, int[] marks, int stamp, int pc, int si, int end, int[] caps) {
+		if (marks[pc] == stamp)
+			return;
+		marks[pc] = stamp;
+		switch (ops[pc]) {
+			case JUMP:
+				add(list, marks, stamp, xs[pc], si, end, caps);
+				break;
+			case SPLIT:
+				add(list, marks, stamp, xs[pc], si, end, caps);
+				add(list, marks, stamp, ys[pc], si, end, caps);
+				break;
+			case SAVE: {
+				int slot = xs[pc];
+				int old = caps[slot];
+				caps[slot] = si;
+				add(list, marks, stamp, pc + 1, si, end, caps);
+				caps[slot] = old;
+				break;
+			}
+			case EOS:
+				if (si == end)
+					add(list, marks, stamp, pc + 1, si, end, caps);
+				break;
+			default:
+				list.pcs[list.n] = pc;
+				System.arraycopy(caps, 0, list.caps, list.n * slots, slots);
+				list.n++;
+		}
+	}
+
+	/**
+	 * The threads at one position, in priority order.
+	 */
+	private static final class Threads {
+		final int[] pcs;
+		final int[] caps;
+		int n;
+
+		Threads(Automaton a) {
+			pcs = new int[a.ops.length];
+			caps = new int[a.ops.length * a.slots];
+		}
+	}
+}
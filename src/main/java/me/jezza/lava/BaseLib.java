@@ -25,7 +25,6 @@ package me.jezza.lava;
 
 import java.io.PrintStream;
 import java.io.Reader;
-import java.util.Iterator;
 import java.util.OptionalDouble;
 
 /**
@@ -46,15 +45,22 @@ public final class BaseLib {
 
 	/**
 	 * Lua value that represents the generator function for ipairs.  In
-	 * PUC-Rio this is implemented as an upvalue of ipairs.
+	 * PUC-Rio this is implemented as an upvalue of ipairs.  OP_TFORLOOP
+	 * steps it without calling it, see {@link Lua#opTforloop}.
 	 */
-	private static final LuaJavaCallback IPAIRS_AUX_FUN = BaseLib::ipairsaux;
+	static final LuaJavaCallback IPAIRS_AUX_FUN = BaseLib::ipairsaux;
 
 	/**
 	 * Lua value that represents the generator function for pairs.  In
-	 * PUC-Rio this is implemented as an upvalue of pairs.
+	 * PUC-Rio this is implemented as an upvalue of pairs.  OP_TFORLOOP
+	 * steps it without calling it, as it does next.
 	 */
-	private static final LuaJavaCallback PAIRS_AUX_FUN = BaseLib::pairsaux;
+	static final LuaJavaCallback PAIRS_AUX_FUN = BaseLib::pairsaux;
+
+	/**
+	 * Lua value that represents next.
+	 */
+	static final LuaJavaCallback NEXT_FUN = BaseLib::next;
 
 	/**
 	 * Opens the base library into the given Lua state.  This registers
@@ -77,7 +83,7 @@ public final class BaseLib {
 		r(L, "loadfile", BaseLib::loadfile);
 		r(L, "load", BaseLib::load);
 		r(L, "loadstring", BaseLib::loadstring);
-		r(L, "next", BaseLib::next);
+		r(L, "next", NEXT_FUN);
 		r(L, "pairs", BaseLib::pairs);
 		r(L, "pcall", BaseLib::pcall);
 		r(L, "print", BaseLib::print);
@@ -314,17 +320,15 @@ public final class BaseLib {
 	}
 
 	/**
-	 * Implements pairs.  PUC-Rio uses "next" as the generator for pairs.
-	 * Jill doesn't do that because it would be way too slow.  We use the
-	 * {@link java.util.Enumeration} returned from
-	 * {@link java.util.Hashtable#keys}.  The {@link #pairsaux} method
-	 * implements the step-by-step iteration.
+	 * Implements pairs.  PUC-Rio uses "next" as the generator for pairs,
+	 * and so do we, in effect: the state is the table, and
+	 * {@link #pairsaux} resumes from the previous key using
+	 * {@link Lua#next}, which finds that key's position directly.
 	 */
 	private static int pairs(Lua L) {
 		L.checkType(1, Lua.TTABLE);
 		L.push(PAIRS_AUX_FUN);                   // return generator,
-		LuaTable t = (LuaTable) L.value(1);
-		L.push(new Object[]{t, t.keys()});   // state,
+		L.pushValue(1);                          // state,
 		L.push(Lua.NIL);                            // and initial value.
 		return 3;
 	}
@@ -332,26 +336,16 @@ public final class BaseLib {
 	/**
 	 * Generator for pairs.  This expects a <var>state</var> and
 	 * <var>var</var> as (Lua) arguments.
-	 * The state is setup by {@link #pairs} and is a
-	 * pair of {LuaTable, Enumeration} stored in a 2-element array.  The
-	 * <var>var</var> is not used.  This is in contrast to the PUC-Rio
-	 * implementation, where the state is the table, and the var is used
-	 * to generated the next key in sequence.  The implementation, of
-	 * pairs and pairsaux, has no control over <var>var</var>,  Lua's
-	 * semantics of <code>for</code> force it to be the previous result
-	 * returned by this function.  In Jill this value is not suitable to
-	 * use for enumeration, which is why it isn't used.
+	 * The state is the table set up by {@link #pairs}, and
+	 * <var>var</var> is the key returned by the previous call (nil to
+	 * begin).  Unlike {@link #next} there is no need to check the
+	 * arguments, or to return an explicit nil at the end.
 	 */
 	private static int pairsaux(Lua L) {
-		Object[] a = (Object[]) L.value(1);
-		LuaTable t = (LuaTable) a[0];
-		Iterator e = (Iterator) a[1];
-		if (!e.hasNext())
-			return 0;
-		Object key = e.next();
-		L.push(key);
-		L.push(t.get(key));
-		return 2;
+		L.setTop(2);
+		if (L.next(1))
+			return 2;
+		return 0;
 	}
 
 	/**
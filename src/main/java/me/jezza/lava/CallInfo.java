@@ -32,22 +32,27 @@ final class CallInfo {
 	private int tailcalls;
 
 	/**
-	 * Only used to create the first instance.
+	 * Records are made in advance by {@link Lua}, and filled in by
+	 * {@link #set} each time one is used for a call.
 	 */
 	CallInfo() {
 	}
 
 	/**
+	 * Resets this record for a new call.
+	 *
 	 * @param func     stack index of function
 	 * @param base     stack base for this frame
 	 * @param top      top-of-stack for this frame
 	 * @param nresults number of results expected by caller
 	 */
-	CallInfo(int func, int base, int top, int nresults) {
+	void set(int func, int base, int top, int nresults) {
+		this.savedpc = 0;
 		this.func = func;
 		this.base = base;
 		this.top = top;
 		this.nresults = nresults;
+		this.tailcalls = 0;
 	}
 
 	/**
@@ -52,11 +52,10 @@ final class Dump extends DataOutputStream {
 
 	/**
 	 * In order to make the code more compact the dumper re-uses the
-	 * header defined in Loader.java.  It has to fix the endianness byte
-	 * first.
+	 * header defined in Loader.java.  Its endianness byte is always 0
+	 * (big-endian), which is what DataOutputStream writes.
 	 */
 	private void dumpHeader() throws IOException {
-		Loader.HEADER[6] = 0;
 		write(Loader.HEADER);
 	}
 
@@ -75,7 +74,7 @@ final class Dump extends DataOutputStream {
 	}
 
 	private void dumpCode(Proto f) throws IOException {
-		int[] code = f.code;
+		int[] code = Lua.generic(f.code);
 		int n = code.length;
 		writeInt(n);
 		for (int c : code)
@@ -0,0 +1,164 @@
+package me.jezza.lava;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static me.jezza.lava.MatchState.L_ESC;
+
+/**
+ * A template for string.format, parsed once into the text between its
+ * directives and a {@link FormatItem} for each directive, so that using
+ * the same template again only has to format its arguments.  Each Lua
+ * state keeps the templates it formats with in a small cache, see
+ * {@link #of}.
+ * <p>
+ * Parsing never fails: a malformed directive ends the template with an
+ * {@link #error}, raised once the directives before it have checked
+ * their arguments, just as it was when the template was parsed as it
+ * was formatted.
+ *
+ * @author Jezza
+ */
+final class Format {
+	/**
+	 * Most templates kept by each Lua state.
+	 */
+	private static final int CACHE_SIZE = 64;
+	/**
+	 * Largest buffer a template keeps between uses.
+	 */
+	private static final int BUFFER_SIZE = 1024;
+
+	/**
+	 * The text before each item, and after the last one.
+	 */
+	private final String[] texts;
+	private final FormatItem[] items;
+	/**
+	 * Why the directive after the last item is malformed, or null.
+	 */
+	private final String error;
+	/**
+	 * Reused by each {@link #format}, which can't be re-entered, as
+	 * it calls nothing that runs Lua code.
+	 */
+	private StringBuilder buffer = new StringBuilder();
+
+	Format(String s) {
+		List<String> texts = new ArrayList<>();
+		List<FormatItem> items = new ArrayList<>();
+		StringBuilder text = new StringBuilder();
+		String error = null;
+		int l = s.length();
+		int i = 0;
+		while (i < l) {
+			char c = s.charAt(i++);
+			if (c != L_ESC) {
+				text.append(c);
+			} else if (i < l && s.charAt(i) == L_ESC) {
+				text.append(L_ESC);
+				++i;
+			} else {
+				FormatItem item;
+				try {
+					item = new FormatItem(s, i);
+				} catch (IllegalArgumentException e) {
+					error = e.getMessage();
+					break;
+				}
+				texts.add(text.toString());
+				text.setLength(0);
+				items.add(item);
+				i += item.length();
+			}
+		}
+		texts.add(text.toString());
+		this.texts = texts.toArray(new String[0]);
+		this.items = items.toArray(new FormatItem[0]);
+		this.error = error;
+	}
+
+	/**
+	 * Creates a fresh, empty, cache of templates, for a Lua state.
+	 */
+	static Map<String, Format> cache() {
+		return new LinkedHashMap<String, Format>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Format> eldest) {
+				return size() > CACHE_SIZE;
+			}
+		};
+	}
+
+	/**
+	 * @return the template <var>s</var>, from <var>L</var>'s cache.
+	 */
+	static Format of(Lua L, String s) {
+		Map<String, Format> cache = L.formats;
+		Format format = cache.get(s);
+		if (format == null)
+			cache.put(s, format = new Format(s));
+		return format;
+	}
+
+	/**
+	 * Formats each item with the argument on <var>L</var>'s stack after
+	 * the template's.
+	 */
+	String format(Lua L) {
+		StringBuilder b = buffer;
+		b.setLength(0);
+		format(L, b);
+		String s = b.toString();
+		if (b.capacity() > BUFFER_SIZE)
+			buffer = new StringBuilder();
+		return s;
+	}
+
+	private void format(Lua L, StringBuilder b) {
+		String[] texts = this.texts;
+		FormatItem[] items = this.items;
+		int n = items.length;
+		for (int i = 0; i < n; ++i) {
+			b.append(texts[i]);
+			FormatItem item = items[i];
+			int arg = i + 2;
+			switch (item.type()) {
+				case 'c':
+					item.formatChar(b, (char) L.checkNumber(arg));
+					break;
+
+				case 'd':
+				case 'i':
+				case 'o':
+				case 'u':
+				case 'x':
+				case 'X':
+					// :todo: should be unsigned conversions cope better with negative number?
+					item.formatInteger(b, (long) L.checkNumber(arg));
+					break;
+
+				case 'e':
+				case 'E':
+				case 'f':
+				case 'g':
+				case 'G':
+					item.formatFloat(b, L.checkNumber(arg));
+					break;
+
+				case 'q':
+					StringLib.addquoted(L, b, arg);
+					break;
+
+				case 's':
+					item.formatString(b, L.checkString(arg));
+					break;
+			}
+		}
+		if (error != null)
+			throw L.error(error);
+		b.append(texts[n]);
+	}
+}
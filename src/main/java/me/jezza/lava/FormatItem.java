@@ -24,10 +24,13 @@
 package me.jezza.lava;
 
 /**
+ * One directive of a string.format template, parsed once.  Formatting
+ * leaves it as it was, so a {@link Format} can use it again, and
+ * appends straight to the caller's buffer.
+ *
  * @author Jezza
  */
 final class FormatItem {
-	private Lua L;
 	private boolean left; // '-' flag
 	private boolean sign; // '+' flag
 	private boolean space;        // ' ' flag
@@ -48,19 +51,20 @@ final class FormatItem {
 	static char E_UPPER = 'E';
 
 	/**
-	 * Parse a format item (starting from after the <code>L_ESC</code>).
-	 * If you promise that there won't be any format errors, then
-	 * <var>L</var> can be <code>null</code>.
+	 * Parse a format item, from <var>start</var> (just after the
+	 * <code>L_ESC</code>) in <var>s</var>.
+	 *
+	 * @throws IllegalArgumentException if it's malformed, with the message
+	 *                                  to raise as a Lua error.
 	 */
-	FormatItem(Lua L, String s) {
-		this.L = L;
-		int i = 0;
+	FormatItem(String s, int start) {
+		int i = start;
 		int l = s.length();
 		// parse flags
 		flag:
 		while (true) {
 			if (i >= l)
-				throw L.error("Invalid format");
+				throw new IllegalArgumentException("Invalid format");
 			switch (s.charAt(i)) {
 				case '-':
 					left = true;
@@ -86,7 +90,7 @@ final class FormatItem {
 		int widths = i;       // index of start of width specifier
 		while (true) {
 			if (i >= l)
-				throw L.error("Invalid format");
+				throw new IllegalArgumentException("Invalid format");
 			if (Syntax.isdigit(s.charAt(i)))
 				++i;
 			else
@@ -104,7 +108,7 @@ final class FormatItem {
 			int precisions = i; // index of start of precision specifier
 			while (true) {
 				if (i >= l)
-					throw L.error("Invalid format");
+					throw new IllegalArgumentException("Invalid format");
 				if (Syntax.isdigit(s.charAt(i)))
 					++i;
 				else
@@ -133,10 +137,10 @@ final class FormatItem {
 			case 'q':
 			case 's':
 				type = s.charAt(i);
-				length = i + 1;
+				length = i + 1 - start;
 				return;
 		}
-		throw L.error("Invalid option to 'format'");
+		throw new IllegalArgumentException("Invalid option to 'format'");
 	}
 
 	int length() {
@@ -154,103 +158,97 @@ final class FormatItem {
 	 * (and width is fixed to 0 in such cases).  Therefore we can ignore
 	 * zero.
 	 */
-	private void format(StringBuilder b, String s) {
-		int l = s.length();
-		if (l >= width) {
-			b.append(s);
-			return;
-		}
-		StringBuilder pad = new StringBuilder();
-		while (l < width) {
-			pad.append(' ');
-			++l;
-		}
-		if (left) {
-			b.append(s);
-			b.append(pad);
-		} else {
-			b.append(pad);
-			b.append(s);
-		}
+	private void format(StringBuilder b, CharSequence s, int start, int end) {
+		int pad = width - (end - start);
+		if (!left)
+			pad(b, pad);
+		b.append(s, start, end);
+		if (left)
+			pad(b, pad);
+	}
+
+	private void format(StringBuilder b, CharSequence s) {
+		format(b, s, 0, s.length());
+	}
+
+	private static void pad(StringBuilder b, int n) {
+		for (; n > 0; --n)
+			b.append(' ');
 	}
 
 	// All the format* methods take a StringBuilder and append the
 	// formatted representation of the value to it.
-	// Sadly after a format* method has been invoked the object is left in
-	// an unusable state and should not be used again.
 
 	void formatChar(StringBuilder b, char c) {
-		format(b, String.valueOf(c));
+		int pad = width - 1;
+		if (!left)
+			pad(b, pad);
+		b.append(c);
+		if (left)
+			pad(b, pad);
 	}
 
 	void formatInteger(StringBuilder b, long i) {
-		// :todo: improve inefficient use of implicit StringBuilder
-
-		if (left)
-			zero = false;
-		if (precision >= 0)
-			zero = false;
-
-		int radix;
-		switch (type) {
-			case 'o':
-				radix = 8;
-				break;
-			case 'd':
-			case 'i':
-			case 'u':
-				radix = 10;
-				break;
-			case 'x':
-			case 'X':
-				radix = 16;
-				break;
-			default:
-				throw L.error("Invalid format");
+		int radix = type == 'o' ? 8 : type == 'x' || type == 'X' ? 16 : 10;
+		if (radix == 10 && width == 0 && precision < 0 && !sign && !space) {
+			b.append(i);
+			return;
 		}
-		String s = Long.toString(i, radix);
-		if (type == 'X')
-			s = s.toUpperCase();
-		if (precision == 0 && s.equals("0"))
-			s = "";
+		int precision = this.precision;
+		int width = this.width;
 
-		// form a prefix by strippping possible leading '-',
+		// form a prefix from a possible leading '-', the '#' flag for
+		// hexadecimal, or the '+' or ' ' flags,
 		// pad to precision,
 		// add prefix,
 		// pad to width.
 		// extra wart: padding with '0' is implemented using precision
 		// because this makes handling the prefix easier.
 		String prefix = "";
-		if (s.startsWith("-")) {
+		if (i < 0)
 			prefix = "-";
-			s = s.substring(1);
-		}
 		if (alt && radix == 16)
 			prefix = "0x";
-		if (prefix == "") {
+		if (prefix.isEmpty()) {
 			if (sign)
 				prefix = "+";
 			else if (space)
 				prefix = " ";
 		}
-		if (alt && radix == 8 && !s.startsWith("0"))
-			s = "0" + s;
-		int l = s.length();
-		if (zero) {
+		// digits of i, counted with i kept negative, which all longs can be.
+		long n = i < 0 ? i : -i;
+		int digits = 0;
+		if (precision != 0 || n != 0) {
+			for (long m = n; m != 0; m /= radix)
+				++digits;
+			if (digits == 0)
+				digits = 1;
+		}
+		boolean octal = alt && radix == 8 && (digits == 0 || n != 0);
+		int l = octal ? digits + 1 : digits;
+		if (zero && !left && precision < 0) {
 			precision = width - prefix.length();
 			width = 0;
 		}
-		if (l < precision) {
-			StringBuilder p = new StringBuilder(precision - l + s.length());
-			while (l < precision) {
-				p.append('0');
-				++l;
+		int pad = width - prefix.length() - Math.max(l, precision);
+		if (!left)
+			pad(b, pad);
+		b.append(prefix);
+		for (; l < precision; ++l)
+			b.append('0');
+		if (octal)
+			b.append('0');
+		if (digits > 0) {
+			int at = b.length();
+			b.setLength(at + digits);
+			for (int d = at + digits - 1; d >= at; --d) {
+				char c = Character.forDigit((int) -(n % radix), radix);
+				b.setCharAt(d, type == 'X' ? Character.toUpperCase(c) : c);
+				n /= radix;
 			}
-			p.append(s);
-			s = p.toString();
 		}
-		s = prefix + s;
-		format(b, s);
+		if (left)
+			pad(b, pad);
 	}
 
 	void formatFloat(StringBuilder b, double d) {
@@ -260,23 +258,19 @@ final class FormatItem {
 				formatFloatG(b, d);
 				return;
 			case 'f':
-				formatFloatF(b, d);
+				format(b, formatFloatRawF(d, precision < 0 ? 6 : precision));
 				return;
 			case 'e':
 			case 'E':
-				formatFloatE(b, d);
+				format(b, formatFloatRawE(d, precision < 0 ? 6 : precision));
 		}
 	}
 
-	private void formatFloatE(StringBuilder b, double d) {
-		format(b, formatFloatRawE(d));
-	}
-
 	/**
-	 * Returns the formatted string for the number without any padding
-	 * (which can be added by invoking {@link FormatItem#format} later).
+	 * Returns the formatted number without any padding (which can be
+	 * added by invoking {@link FormatItem#format} later).
 	 */
-	private String formatFloatRawE(double d) {
+	private StringBuilder formatFloatRawE(double d, int precision) {
 		double m = Math.abs(d);
 		int offset = 0;
 		if (m >= 1e-3 && m < 1e7) {
@@ -284,18 +278,17 @@ final class FormatItem {
 			offset = 10;
 		}
 
-		String s = Double.toString(d);
-		StringBuilder t = new StringBuilder(s);
+		StringBuilder t = new StringBuilder(24).append(d);
 		int e;      // Exponent value
 		if (d == 0) {
 			e = 0;
 		} else {
-			int ei = s.indexOf('E');
-			e = Integer.parseInt(s.substring(ei + 1));
-			t.delete(ei, Integer.MAX_VALUE);
+			int ei = t.indexOf("E");
+			e = Integer.parseInt(t, ei + 1, t.length(), 10);
+			t.setLength(ei);
 		}
 
-		precisionTrim(t);
+		precisionTrim(t, precision);
 
 		e -= offset;
 		if (Character.isLowerCase(type)) {
@@ -306,30 +299,24 @@ final class FormatItem {
 		if (e >= 0) {
 			t.append('+');
 		}
-		t.append(Integer.toString(e));
+		t.append(e);
 
 		zeroPad(t);
-		return t.toString();
-	}
-
-	private void formatFloatF(StringBuilder b, double d) {
-		String s = formatFloatRawF(d);
-		format(b, s);
+		return t;
 	}
 
 	/**
-	 * Returns the formatted string for the number without any padding
-	 * (which can be added by invoking {@link FormatItem#format} later).
+	 * Returns the formatted number without any padding (which can be
+	 * added by invoking {@link FormatItem#format} later).
 	 */
-	private String formatFloatRawF(double d) {
-		String s = Double.toString(d);
-		StringBuilder t = new StringBuilder(s);
+	private StringBuilder formatFloatRawF(double d, int precision) {
+		StringBuilder t = new StringBuilder(24).append(d);
 
-		int di = s.indexOf('.');
-		int ei = s.indexOf('E');
+		int di = t.indexOf(".");
+		int ei = t.indexOf("E");
 		if (ei >= 0) {
-			t.delete(ei, Integer.MAX_VALUE);
-			int e = Integer.parseInt(s.substring(ei + 1));
+			int e = Integer.parseInt(t, ei + 1, t.length(), 10);
+			t.setLength(ei);
 
 			StringBuilder z = new StringBuilder();
 			for (int i = 0; i < Math.abs(e); ++i) {
@@ -348,47 +335,45 @@ final class FormatItem {
 			}
 		}
 
-		precisionTrim(t);
+		precisionTrim(t, precision);
 		zeroPad(t);
 
-		return t.toString();
+		return t;
 	}
 
 	private void formatFloatG(StringBuilder b, double d) {
+		int precision = this.precision;
 		if (precision == 0) {
 			precision = 1;
 		}
 		if (precision < 0) {
 			precision = 6;
 		}
-		String s;
 		// Decide whether to use %e or %f style.
 		double m = Math.abs(d);
 		if (m == 0) {
 			// :todo: Could test for -0 and use "-0" appropriately.
-			s = "0";
+			format(b, "0");
 		} else if (m < 1e-4 || m >= Math.pow(10, precision)) {
 			// %e style
-			--precision;
-			s = formatFloatRawE(d);
-			int di = s.indexOf('.');
+			StringBuilder a = formatFloatRawE(d, precision - 1);
+			int di = a.indexOf(".");
 			if (di >= 0) {
 				// Trim trailing zeroes from fractional part
-				int ei = s.indexOf('E');
+				int ei = a.indexOf("E");
 				if (ei < 0) {
-					ei = s.indexOf('e');
+					ei = a.indexOf("e");
 				}
 				int i = ei - 1;
-				while (s.charAt(i) == '0') {
+				while (a.charAt(i) == '0') {
 					--i;
 				}
-				if (s.charAt(i) != '.') {
+				if (a.charAt(i) != '.') {
 					++i;
 				}
-				StringBuilder a = new StringBuilder(s);
 				a.delete(i, ei);
-				s = a.toString();
 			}
+			format(b, a);
 		} else {
 			// %f style
 			// For %g precision specifies the number of significant digits,
@@ -403,23 +388,22 @@ final class FormatItem {
 			// case is that 3 zeroes come after the decimal point before there
 			// are any significant digits.
 			// Save the required number of significant digits
-			int required = precision;
-			precision += 3;
-			s = formatFloatRawF(d);
+			StringBuilder a = formatFloatRawF(d, precision + 3);
 			int fsd = 0;      // First Significant Digit
-			while (s.charAt(fsd) == '0' || s.charAt(fsd) == '.') {
+			while (a.charAt(fsd) == '0' || a.charAt(fsd) == '.') {
 				++fsd;
 			}
+			int di = a.indexOf(".");
 			// Note that all the digits to the left of the decimal point in
 			// the formatted number are required digits (either significant
 			// when m >= 1 or 0 when m < 1).  We know this because otherwise
 			// m >= (10**precision) and so formatting falls under the %e case.
-			// That means that we can always trim the string at fsd+required
+			// That means that we can always trim the string at fsd+precision
 			// (this will remove the decimal point when m >=
 			// (10**(precision-1)).
-			StringBuilder a = new StringBuilder(s);
-			a.delete(fsd + required, Integer.MAX_VALUE);
-			if (s.indexOf('.') < a.length()) {
+			if (fsd + precision < a.length())
+				a.setLength(fsd + precision);
+			if (di < a.length()) {
 				// Trim trailing zeroes
 				int i = a.length() - 1;
 				while (a.charAt(i) == '0') {
@@ -430,32 +414,25 @@ final class FormatItem {
 					a.deleteCharAt(i);
 				}
 			}
-			s = a.toString();
+			format(b, a);
 		}
-		format(b, s);
 	}
 
 	void formatString(StringBuilder b, String s) {
-		String p = s;
-
-		if (precision >= 0 && precision < s.length()) {
-			p = s.substring(0, precision);
+		int end = s.length();
+		if (precision >= 0 && precision < end) {
+			end = precision;
 		}
-		format(b, p);
+		format(b, s, 0, end);
 	}
 
-	private void precisionTrim(StringBuilder t) {
-		if (precision < 0) {
-			precision = 6;
-		}
-
-		String s = t.toString();
-		int di = s.indexOf('.');
+	private void precisionTrim(StringBuilder t, int precision) {
+		int di = t.indexOf(".");
 		int l = t.length();
 		if (0 == precision) {
-			t.delete(di, Integer.MAX_VALUE);
+			t.setLength(di);
 		} else if (l > di + precision) {
-			t.delete(di + precision + 1, Integer.MAX_VALUE);
+			t.setLength(di + precision + 1);
 		} else {
 			for (; l <= di + precision; ++l) {
 				t.append('0');
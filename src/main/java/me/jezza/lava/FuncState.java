@@ -142,6 +142,7 @@ final class FuncState {
 		f.closeUpvalues();
 		boolean checks = L.gCheckcode(f);
 		//# assert checks
+		Lua.fuse(f);
 		//# assert block == null
 	}
 
@@ -0,0 +1,1173 @@
+package me.jezza.lava;
+
+import static me.jezza.lava.Lua.ARGA;
+import static me.jezza.lava.Lua.ARGB;
+import static me.jezza.lava.Lua.ARGBx;
+import static me.jezza.lava.Lua.ARGC;
+import static me.jezza.lava.Lua.ARGsBx;
+import static me.jezza.lava.Lua.ISK;
+import static me.jezza.lava.Lua.OPCODE;
+import static me.jezza.lava.Lua.OP_ADD;
+import static me.jezza.lava.Lua.OP_CALL;
+import static me.jezza.lava.Lua.OP_CLOSE;
+import static me.jezza.lava.Lua.OP_CLOSURE;
+import static me.jezza.lava.Lua.OP_CONCAT;
+import static me.jezza.lava.Lua.OP_DIV;
+import static me.jezza.lava.Lua.OP_EQ;
+import static me.jezza.lava.Lua.OP_FORLOOP;
+import static me.jezza.lava.Lua.OP_FORPREP;
+import static me.jezza.lava.Lua.OP_GETGLOBAL;
+import static me.jezza.lava.Lua.OP_GETTABLE;
+import static me.jezza.lava.Lua.OP_GETUPVAL;
+import static me.jezza.lava.Lua.OP_JMP;
+import static me.jezza.lava.Lua.OP_LE;
+import static me.jezza.lava.Lua.OP_LEN;
+import static me.jezza.lava.Lua.OP_LOADBOOL;
+import static me.jezza.lava.Lua.OP_LOADK;
+import static me.jezza.lava.Lua.OP_LOADNIL;
+import static me.jezza.lava.Lua.OP_LT;
+import static me.jezza.lava.Lua.OP_MOD;
+import static me.jezza.lava.Lua.OP_MOVE;
+import static me.jezza.lava.Lua.OP_MUL;
+import static me.jezza.lava.Lua.OP_NEWTABLE;
+import static me.jezza.lava.Lua.OP_NOT;
+import static me.jezza.lava.Lua.OP_POW;
+import static me.jezza.lava.Lua.OP_RETURN;
+import static me.jezza.lava.Lua.OP_SELF;
+import static me.jezza.lava.Lua.OP_SETGLOBAL;
+import static me.jezza.lava.Lua.OP_SETLIST;
+import static me.jezza.lava.Lua.OP_SETTABLE;
+import static me.jezza.lava.Lua.OP_SETUPVAL;
+import static me.jezza.lava.Lua.OP_SUB;
+import static me.jezza.lava.Lua.OP_TAILCALL;
+import static me.jezza.lava.Lua.OP_TEST;
+import static me.jezza.lava.Lua.OP_TESTSET;
+import static me.jezza.lava.Lua.OP_TFORLOOP;
+import static me.jezza.lava.Lua.OP_UNM;
+import static me.jezza.lava.Lua.OP_VARARG;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compiles the VM instructions of a hot {@link Proto} to JVM bytecode,
+ * one class per function prototype.
+ * <p>
+ * The interpreter counts calls and loop iterations of each function (see
+ * {@link #THRESHOLD}); once a function is hot {@link Lua#vmExecute}
+ * runs its compiled code instead.  The compiled code uses the same
+ * stack frame as the interpreter, with every register and every piece
+ * of state in the Lua stack, so it can hand the function back to the
+ * interpreter at any instruction by returning that instruction's index.
+ * It does so for OP_RETURN and OP_TAILCALL, when a hook is set (hooks
+ * are only run by the interpreter), and when the function is entered
+ * anywhere but its start or a loop.  Errors are simply thrown, as they
+ * are by the interpreter.
+ * <p>
+ * Each instruction is translated much as the interpreter would execute
+ * it, with the instruction's operands as constants.  Moves, constants,
+ * numeric arithmetic, comparisons and numeric for loops are generated
+ * inline; anything that needs a metamethod or a table calls the same
+ * method of {@link Lua} that the interpreter uses.
+ * <p>
+ * The classes are defined with
+ * <code>MethodHandles.Lookup.defineHiddenClass</code>, so that they can
+ * be unloaded along with their prototype, or with
+ * <code>Lookup.defineClass</code> on Java versions before that; on
+ * Java 8 nothing is compiled.  The class files are version 49, which
+ * need no stack map frames.
+ *
+ * @author Jezza
+ */
+final class Jit {
+	/**
+	 * Number of calls and loop iterations after which a function is
+	 * compiled.  Set by the system property <code>lava.jit.threshold</code>;
+	 * 0 turns the compiler off.
+	 */
+	static final int THRESHOLD = Integer.getInteger("lava.jit.threshold", 1000);
+
+	/**
+	 * Returned by {@link Code#execute} when the thread has yielded.
+	 */
+	static final int YIELD = -1;
+	/**
+	 * Returned by {@link Code#execute} when it has set up a call to a Lua
+	 * function, which the interpreter is to run.
+	 */
+	static final int CALL = -2;
+
+	/**
+	 * Number of nested calls compiled code makes itself before leaving
+	 * calls to the interpreter, which bounds the Java stack it needs.
+	 * As LUAI_MAXCCALLS.
+	 */
+	static final int MAX_DEPTH = 200;
+
+	/**
+	 * HotSpot doesn't compile methods bigger than this (HugeMethodLimit),
+	 * and there's no point generating code that would only ever be run
+	 * by the JVM's own interpreter.
+	 */
+	private static final int MAX_CODE = 8000;
+
+	/**
+	 * The compiled form of a function prototype.
+	 */
+	abstract static class Code {
+		/**
+		 * Executes the function from instruction <var>pc</var>, which
+		 * must be its start or that of a loop, in the frame of the current
+		 * CallInfo.
+		 *
+		 * @return the index of the instruction the interpreter is to
+		 * continue with, or {@link #YIELD} or {@link #CALL}.
+		 */
+		abstract int execute(Lua L, LuaFunction function, int base, int pc);
+	}
+
+	/**
+	 * Compiles <var>p</var>.
+	 *
+	 * @return the compiled code, or <code>null</code> if it cannot be
+	 * compiled.
+	 */
+	static Code compile(Proto p) {
+		if (DEFINE_HIDDEN == null && DEFINE == null)
+			return null;
+		byte[] b = new Jit(p).translate();
+		if (b == null)
+			return null;
+		try {
+			Class<?> c;
+			if (DEFINE_HIDDEN != null) {
+				MethodHandles.Lookup lookup = (MethodHandles.Lookup) DEFINE_HIDDEN.invoke(LOOKUP, b, true, NO_OPTIONS);
+				c = lookup.lookupClass();
+			} else {
+				c = (Class<?>) DEFINE.invoke(LOOKUP, (Object) b);
+			}
+			return (Code) c.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return null;
+		}
+	}
+
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+	private static final Method DEFINE_HIDDEN;
+	private static final Object NO_OPTIONS;
+	private static final Method DEFINE;
+
+	static {
+		Method hidden = null;
+		Object options = null;
+		Method define = null;
+		if (THRESHOLD > 0) {
+			try {
+				Class<?> option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+				options = Array.newInstance(option, 0);
+				hidden = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class, options.getClass());
+			} catch (ReflectiveOperationException e) {
+				try {
+					define = MethodHandles.Lookup.class.getMethod("defineClass", byte[].class);
+				} catch (ReflectiveOperationException ignored) {
+				}
+			}
+		}
+		DEFINE_HIDDEN = hidden;
+		NO_OPTIONS = options;
+		DEFINE = define;
+	}
+
+	private static final AtomicInteger COUNT = new AtomicInteger();
+
+	private static final String LUA = "me/jezza/lava/Lua";
+	private static final String FUNCTION = "me/jezza/lava/LuaFunction";
+	private static final String PROTO = "me/jezza/lava/Proto";
+	private static final String UPVAL = "me/jezza/lava/UpVal";
+	private static final String TABLE = "me/jezza/lava/LuaTable";
+	private static final String CODE = "me/jezza/lava/Jit$Code";
+	private static final String OBJECT = "java/lang/Object";
+	private static final String FUNCTION_DESC = "L" + FUNCTION + ";";
+	private static final String K_DESC = "[Lme/jezza/lava/Slot;";
+
+	// Local variables of the generated execute method.
+	private static final int L_LUA = 1;
+	private static final int L_FUNCTION = 2;
+	private static final int L_BASE = 3;
+	private static final int L_PC = 4;
+	private static final int L_TAGS = 5;
+	private static final int L_NUMBERS = 6;
+	private static final int L_REFS = 7;
+	private static final int L_K = 8;
+	private static final int L_TMP = 9;
+	private static final int L_X = 10;
+	private static final int L_Y = 12;
+	private static final int L_Z = 14;
+	private static final int MAX_LOCALS = 16;
+	private static final int MAX_STACK = 16;
+
+	private final Proto p;
+	private final int[] code;
+	private final Slot[] k;
+	private final ClassFile cf = new ClassFile();
+	/**
+	 * Label of each instruction, or -1 for the pseudo-instructions that
+	 * follow OP_CLOSURE and OP_SETLIST.
+	 */
+	private final int[] labels;
+	/**
+	 * Whether each instruction is the start of a loop, and so where the
+	 * interpreter can enter the compiled code.
+	 */
+	private final boolean[] loops;
+
+	private Jit(Proto p) {
+		this.p = p;
+		this.code = Lua.generic(p.code());
+		this.k = p.constants();
+		this.labels = new int[code.length];
+		this.loops = new boolean[code.length];
+		for (int pc = 0; pc < code.length; ++pc) {
+			int i = code[pc];
+			labels[pc] = cf.label();
+			switch (OPCODE(i)) {
+				case OP_JMP:
+				case OP_FORLOOP:
+					if (ARGsBx(i) < 0)
+						loops[pc + 1 + ARGsBx(i)] = true;
+					break;
+				case OP_CLOSURE:
+					for (int n = p.proto()[ARGBx(i)].nups(); n > 0; --n)
+						labels[++pc] = -1;
+					break;
+				case OP_SETLIST:
+					if (ARGC(i) == 0)
+						labels[++pc] = -1;
+					break;
+			}
+		}
+	}
+
+	/**
+	 * @return the class file, or null if the code would be too big.
+	 */
+	private byte[] translate() {
+		ClassFile cf = this.cf;
+
+		// Prologue
+		cf.aload(L_FUNCTION);
+		cf.invoke(ClassFile.INVOKEVIRTUAL, FUNCTION, "proto", "()L" + PROTO + ";");
+		cf.invoke(ClassFile.INVOKEVIRTUAL, PROTO, "constants", "()" + K_DESC);
+		cf.astore(L_K);
+		reload();
+		List<Integer> entries = new ArrayList<>();
+		entries.add(0);
+		for (int pc = 1; pc < code.length; ++pc) {
+			if (loops[pc])
+				entries.add(pc);
+		}
+		int[] keys = new int[entries.size()];
+		int[] targets = new int[keys.length];
+		for (int n = 0; n < keys.length; ++n) {
+			keys[n] = entries.get(n);
+			targets[n] = labels[keys[n]];
+		}
+		int deopt = cf.label();
+		cf.iload(L_PC);
+		cf.lookupswitch(keys, targets, deopt);
+		cf.mark(deopt);
+		cf.iload(L_PC);
+		cf.op(ClassFile.IRETURN);
+
+		for (int pc = 0; pc < code.length; ++pc) {
+			if (labels[pc] < 0)
+				continue;
+			cf.mark(labels[pc]);
+			if (loops[pc]) {
+				// Leave loops to the interpreter once there's a hook.
+				int go = cf.label();
+				cf.aload(L_LUA);
+				cf.field(ClassFile.GETFIELD, LUA, "hookmask", "I");
+				cf.jump(ClassFile.IFEQ, go);
+				returnPc(pc);
+				cf.mark(go);
+			}
+			instruction(pc, code[pc]);
+			if (cf.size() > MAX_CODE)
+				return null;
+		}
+		return cf.toByteArray("me/jezza/lava/LuaCompiled" + COUNT.incrementAndGet(), CODE);
+	}
+
+	private void instruction(int pc, int i) {
+		ClassFile cf = this.cf;
+		int a = ARGA(i);
+		switch (OPCODE(i)) {
+			case OP_MOVE:
+				copy(ARGB(i), a);
+				break;
+			case OP_LOADK: {
+				Slot c = k[ARGBx(i)];
+				if (c.t == Lua.TNUMBER) {
+					setNumber(a, () -> cf.ldc(c.d));
+				} else if (c.t == Lua.TSTRING) {
+					cf.aload(L_TAGS);
+					index(a);
+					cf.iconst(Lua.TSTRING);
+					cf.op(ClassFile.BASTORE);
+					cf.aload(L_REFS);
+					index(a);
+					cf.ldc((String) c.r);
+					cf.op(ClassFile.AASTORE);
+				} else {
+					cf.aload(L_LUA);
+					cf.aload(L_K);
+					cf.iconst(ARGBx(i));
+					cf.op(ClassFile.AALOAD);
+					index(a);
+					cf.invoke(ClassFile.INVOKEVIRTUAL, LUA, "setSlotAt", "(Lme/jezza/lava/Slot;I)V");
+				}
+				break;
+			}
+			case OP_LOADBOOL:
+				cf.aload(L_LUA);
+				cf.iconst(ARGB(i) != 0 ? 1 : 0);
+				index(a);
+				cf.invoke(ClassFile.INVOKEVIRTUAL, LUA, "setBooleanAt", "(ZI)V");
+				if (ARGC(i) != 0)
+					cf.jump(ClassFile.GOTO, labels[pc + 2]);
+				break;
+			case OP_LOADNIL:
+				for (int r = a; r <= ARGB(i); ++r) {
+					cf.aload(L_TAGS);
+					index(r);
+					cf.iconst(Lua.TNIL);
+					cf.op(ClassFile.BASTORE);
+					cf.aload(L_REFS);
+					index(r);
+					cf.op(ClassFile.ACONST_NULL);
+					cf.op(ClassFile.AASTORE);
+				}
+				break;
+			case OP_GETUPVAL:
+				cf.aload(L_LUA);
+				cf.aload(L_FUNCTION);
+				cf.iconst(ARGB(i));
+				cf.invoke(ClassFile.INVOKEVIRTUAL, FUNCTION, "upVal", "(I)L" + UPVAL + ";");
+				cf.invoke(ClassFile.INVOKEVIRTUAL, UPVAL, "getValue", "()L" + OBJECT + ";");
+				index(a);
+				cf.invoke(ClassFile.INVOKEVIRTUAL, LUA, "setObjectAt", "(L" + OBJECT + ";I)V");
+				break;
+			case OP_SETUPVAL:
+				cf.aload(L_FUNCTION);
+				cf.iconst(ARGB(i));
+				cf.invoke(ClassFile.INVOKEVIRTUAL, FUNCTION, "upVal", "(I)L" + UPVAL + ";");
+				cf.aload(L_LUA);
+				index(a);
+				cf.invoke(ClassFile.INVOKEVIRTUAL, LUA, "objectAt", "(I)L" + OBJECT + ";");
+				cf.invoke(ClassFile.INVOKEVIRTUAL, UPVAL, "setValue", "(L" + OBJECT + ";)V");
+				break;
+			case OP_GETGLOBAL:
+				call(pc, i, "opGetglobal", true, true);
+				break;
+			case OP_SETGLOBAL:
+				call(pc, i, "opSetglobal", true, true);
+				break;
+			case OP_GETTABLE:
+				call(pc, i, "opGettable", false, true);
+				break;
+			case OP_SETTABLE:
+				call(pc, i, "opSettable", false, true);
+				break;
+			case OP_SELF:
+				call(pc, i, "opSelf", false, true);
+				break;
+			case OP_NEWTABLE:
+				cf.aload(L_LUA);
+				cf.type(ClassFile.NEW, TABLE);
+				cf.op(ClassFile.DUP);
+				cf.iconst(Lua.oFb2int(ARGB(i)));
+				cf.iconst(Lua.oFb2int(ARGC(i)));
+				cf.invoke(ClassFile.INVOKESPECIAL, TABLE, "<init>", "(II)V");
+				cf.iconst(Lua.TTABLE);
+				index(a);
+				cf.invoke(ClassFile.INVOKEVIRTUAL, LUA, "setRefAt", "(L" + OBJECT + ";II)V");
+				break;
+			case OP_ADD:
+			case OP_SUB:
+			case OP_MUL:
+			case OP_DIV:
+			case OP_MOD:
+			case OP_POW:
+			case OP_UNM:
+				arith(pc, i);
+				break;
+			case OP_NOT:
+				cf.aload(L_LUA);
+				cf.aload(L_LUA);
+				index(ARGB(i));
+				cf.invoke(ClassFile.INVOKEVIRTUAL, LUA, "isFalseAt", "(I)Z");
+				index(a);
+				cf.invoke(ClassFile.INVOKEVIRTUAL, LUA, "setBooleanAt", "(ZI)V");
+				break;
+			case OP_LEN:
+				protect(pc);
+				cf.aload(L_LUA);
+				cf.ldc(i);
+				cf.invoke(ClassFile.INVOKEVIRTUAL, LUA, "opLen", "(I)V");
+				reload();
+				break;
+			case OP_CONCAT:
+				protect(pc);
+				cf.aload(L_LUA);
+				cf.ldc(i);
+				cf.invoke(ClassFile.INVOKEVIRTUAL, LUA, "opConcat", "(I)V");
+				reload();
+				break;
+			case OP_JMP:
+				cf.jump(ClassFile.GOTO, labels[pc + 1 + ARGsBx(i)]);
+				break;
+			case OP_EQ:
+			case OP_LT:
+			case OP_LE:
+				compare(pc, i);
+				break;
+			case OP_TEST:
+				cf.aload(L_LUA);
+				index(a);
+				cf.invoke(ClassFile.INVOKEVIRTUAL, LUA, "isFalseAt", "(I)Z");
+				// Jump if isFalse == (C == 0)
+				cf.jump(ARGC(i) == 0 ? ClassFile.IFNE : ClassFile.IFEQ, jumpTarget(pc));
+				cf.jump(ClassFile.GOTO, labels[pc + 2]);
+				break;
+			case OP_TESTSET:
+				cf.aload(L_LUA);
+				index(ARGB(i));
+				cf.invoke(ClassFile.INVOKEVIRTUAL, LUA, "isFalseAt", "(I)Z");
+				cf.jump(ARGC(i) == 0 ? ClassFile.IFEQ : ClassFile.IFNE, labels[pc + 2]);
+				copy(ARGB(i), a);
+				cf.jump(ClassFile.GOTO, jumpTarget(pc));
+				break;
+			case OP_CALL: {
+				int go = cf.label();
+				cf.aload(L_LUA);
+				cf.ldc(i);
+				cf.iconst(pc + 1);
+				cf.invoke(ClassFile.INVOKEVIRTUAL, LUA, "jitCall", "(II)I");
+				cf.istore(L_TMP);
+				cf.iload(L_TMP);
+				cf.jump(ClassFile.IFEQ, go);
+				cf.iload(L_TMP);
+				cf.op(ClassFile.IRETURN);
+				cf.mark(go);
+				reload();
+				break;
+			}
+			case OP_TAILCALL:
+			case OP_RETURN:
+				returnPc(pc);
+				break;
+			case OP_FORLOOP:
+				forloop(pc, i);
+				break;
+			case OP_FORPREP:
+				protect(pc);
+				cf.aload(L_LUA);
+				cf.ldc(i);
+				cf.invoke(ClassFile.INVOKEVIRTUAL, LUA, "opForprep", "(I)V");
+				cf.jump(ClassFile.GOTO, labels[pc + 1 + ARGsBx(i)]);
+				break;
+			case OP_TFORLOOP:
+				protect(pc);
+				cf.aload(L_LUA);
+				cf.ldc(i);
+				cf.invoke(ClassFile.INVOKEVIRTUAL, LUA, "opTforloop", "(I)Z");
+				reload();
+				cf.jump(ClassFile.IFNE, jumpTarget(pc));
+				cf.jump(ClassFile.GOTO, labels[pc + 2]);
+				break;
+			case OP_SETLIST: {
+				int c = ARGC(i);
+				cf.aload(L_LUA);
+				cf.ldc(i);
+				cf.ldc(c != 0 ? c : code[pc + 1]);
+				cf.invoke(ClassFile.INVOKEVIRTUAL, LUA, "opSetlist", "(II)V");
+				reload();
+				break;
+			}
+			case OP_CLOSE:
+				cf.aload(L_LUA);
+				index(a);
+				cf.invoke(ClassFile.INVOKEVIRTUAL, LUA, "fClose", "(I)V");
+				break;
+			case OP_CLOSURE:
+				cf.aload(L_LUA);
+				cf.aload(L_FUNCTION);
+				cf.ldc(i);
+				cf.iconst(pc + 1);
+				cf.invoke(ClassFile.INVOKEVIRTUAL, LUA, "opClosure", "(" + FUNCTION_DESC + "II)I");
+				cf.op(ClassFile.POP);
+				break;
+			case OP_VARARG:
+				cf.aload(L_LUA);
+				cf.aload(L_FUNCTION);
+				cf.ldc(i);
+				cf.invoke(ClassFile.INVOKEVIRTUAL, LUA, "opVararg", "(" + FUNCTION_DESC + "I)V");
+				reload();
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown opcode: " + OPCODE(i));
+		}
+	}
+
+	/**
+	 * Arithmetic: inline if the operands are numbers, else
+	 * {@link Lua#opArith}.
+	 */
+	private void arith(int pc, int i) {
+		ClassFile cf = this.cf;
+		int op = OPCODE(i);
+		int b = ARGB(i);
+		int c = op == OP_UNM ? b : ARGC(i);
+		int slow = cf.label();
+		int next = labels[pc + 1];
+		if (!isNumber(b) || !isNumber(c)) {
+			cf.jump(ClassFile.GOTO, slow);
+		} else {
+			checkNumber(b, slow);
+			if (c != b)
+				checkNumber(c, slow);
+			setNumber(ARGA(i), () -> {
+				operand(b);
+				if (op == OP_UNM) {
+					cf.op(ClassFile.DNEG);
+					return;
+				}
+				operand(c);
+				switch (op) {
+					case OP_ADD:
+						cf.op(ClassFile.DADD);
+						break;
+					case OP_SUB:
+						cf.op(ClassFile.DSUB);
+						break;
+					case OP_MUL:
+						cf.op(ClassFile.DMUL);
+						break;
+					case OP_DIV:
+						cf.op(ClassFile.DDIV);
+						break;
+					case OP_MOD:
+						cf.invoke(ClassFile.INVOKESTATIC, LUA, "modulus", "(DD)D");
+						break;
+					default:
+						// assert op == OP_POW;
+						cf.invoke(ClassFile.INVOKESTATIC, "java/lang/Math", "pow", "(DD)D");
+				}
+			});
+			cf.jump(ClassFile.GOTO, next);
+		}
+		cf.mark(slow);
+		call(pc, i, "opArith", false, true);
+	}
+
+	/**
+	 * OP_EQ, OP_LT and OP_LE: compares numbers inline, else
+	 * {@link Lua#opCompare}.
+	 */
+	private void compare(int pc, int i) {
+		ClassFile cf = this.cf;
+		int op = OPCODE(i);
+		int b = ARGB(i);
+		int c = ARGC(i);
+		boolean a = ARGA(i) != 0;
+		int yes = jumpTarget(pc);
+		int no = labels[pc + 2];
+		int slow = cf.label();
+		if (isNumber(b) && isNumber(c)) {
+			checkNumber(b, slow);
+			checkNumber(c, slow);
+			operand(b);
+			operand(c);
+			// dcmpg gives 1 for NaN, so NaN compares as neither less nor equal.
+			switch (op) {
+				case OP_EQ:
+					cf.op(ClassFile.DCMPG);
+					cf.jump(a ? ClassFile.IFEQ : ClassFile.IFNE, yes);
+					break;
+				case OP_LT:
+					cf.op(ClassFile.DCMPG);
+					cf.jump(a ? ClassFile.IFLT : ClassFile.IFGE, yes);
+					break;
+				default:
+					cf.op(ClassFile.DCMPG);
+					cf.jump(a ? ClassFile.IFLE : ClassFile.IFGT, yes);
+			}
+			cf.jump(ClassFile.GOTO, no);
+		}
+		cf.mark(slow);
+		protect(pc);
+		cf.aload(L_LUA);
+		cf.aload(L_K);
+		cf.ldc(i);
+		cf.invoke(ClassFile.INVOKEVIRTUAL, LUA, "opCompare", "(" + K_DESC + "I)Z");
+		reload();
+		cf.jump(ClassFile.IFNE, yes);
+		cf.jump(ClassFile.GOTO, no);
+	}
+
+	private void forloop(int pc, int i) {
+		ClassFile cf = this.cf;
+		int a = ARGA(i);
+		int exit = labels[pc + 1];
+		int negative = cf.label();
+		int loop = cf.label();
+		// step
+		cf.aload(L_NUMBERS);
+		index(a + 2);
+		cf.op(ClassFile.DALOAD);
+		cf.dstore(L_Y);
+		// idx = numbers[a] + step
+		cf.aload(L_NUMBERS);
+		index(a);
+		cf.op(ClassFile.DALOAD);
+		cf.dload(L_Y);
+		cf.op(ClassFile.DADD);
+		cf.dstore(L_X);
+		// limit
+		cf.aload(L_NUMBERS);
+		index(a + 1);
+		cf.op(ClassFile.DALOAD);
+		cf.dstore(L_Z);
+		// if (0 < step && idx <= limit || step <= 0 && limit <= idx)
+		cf.dload(L_Y);
+		cf.op(ClassFile.DCONST_0);
+		cf.op(ClassFile.DCMPL);
+		cf.jump(ClassFile.IFLE, negative);
+		cf.dload(L_X);
+		cf.dload(L_Z);
+		cf.op(ClassFile.DCMPG);
+		cf.jump(ClassFile.IFGT, exit);
+		cf.jump(ClassFile.GOTO, loop);
+		cf.mark(negative);
+		cf.dload(L_Y);
+		cf.op(ClassFile.DCONST_0);
+		cf.op(ClassFile.DCMPG);
+		cf.jump(ClassFile.IFGT, exit);
+		cf.dload(L_Z);
+		cf.dload(L_X);
+		cf.op(ClassFile.DCMPG);
+		cf.jump(ClassFile.IFGT, exit);
+		cf.mark(loop);
+		cf.aload(L_NUMBERS);
+		index(a);
+		cf.dload(L_X);
+		cf.op(ClassFile.DASTORE);
+		setNumber(a + 3, () -> cf.dload(L_X));
+		cf.jump(ClassFile.GOTO, labels[pc + 1 + ARGsBx(i)]);
+	}
+
+	/**
+	 * Calls the method of {@link Lua} that executes the instruction,
+	 * Protected, then reloads the stack which may have been reallocated
+	 * by it.
+	 */
+	private void call(int pc, int i, String name, boolean function, boolean k) {
+		ClassFile cf = this.cf;
+		protect(pc);
+		cf.aload(L_LUA);
+		String desc = "(";
+		if (function) {
+			cf.aload(L_FUNCTION);
+			desc += FUNCTION_DESC;
+		}
+		if (k) {
+			cf.aload(L_K);
+			desc += K_DESC;
+		}
+		cf.ldc(i);
+		cf.invoke(ClassFile.INVOKEVIRTUAL, LUA, name, desc + "I)V");
+		reload();
+	}
+
+	/**
+	 * @return the label of the target of the jump that follows the
+	 * instruction at <var>pc</var>.
+	 */
+	private int jumpTarget(int pc) {
+		return labels[pc + 2 + ARGsBx(code[pc + 1])];
+	}
+
+	/**
+	 * Sets savedpc as the interpreter does for the instruction at
+	 * <var>pc</var>.
+	 */
+	private void protect(int pc) {
+		cf.aload(L_LUA);
+		cf.iconst(pc + 1);
+		cf.field(ClassFile.PUTFIELD, LUA, "savedpc", "I");
+	}
+
+	private void returnPc(int pc) {
+		cf.iconst(pc);
+		cf.op(ClassFile.IRETURN);
+	}
+
+	/**
+	 * Loads the stack arrays into locals, as they are reallocated when
+	 * the stack grows.
+	 */
+	private void reload() {
+		ClassFile cf = this.cf;
+		cf.aload(L_LUA);
+		cf.field(ClassFile.GETFIELD, LUA, "tags", "[B");
+		cf.astore(L_TAGS);
+		cf.aload(L_LUA);
+		cf.field(ClassFile.GETFIELD, LUA, "numbers", "[D");
+		cf.astore(L_NUMBERS);
+		cf.aload(L_LUA);
+		cf.field(ClassFile.GETFIELD, LUA, "refs", "[L" + OBJECT + ";");
+		cf.astore(L_REFS);
+	}
+
+	/**
+	 * Pushes the absolute stack index of register <var>r</var>.
+	 */
+	private void index(int r) {
+		cf.iload(L_BASE);
+		if (r != 0) {
+			cf.iconst(r);
+			cf.op(ClassFile.IADD);
+		}
+	}
+
+	/**
+	 * Whether the RK operand <var>field</var> can be a number.
+	 */
+	private boolean isNumber(int field) {
+		return !ISK(field) || k[field & 0xff].t == Lua.TNUMBER;
+	}
+
+	/**
+	 * Jumps to <var>label</var> unless the RK operand <var>field</var>
+	 * is a number.
+	 */
+	private void checkNumber(int field, int label) {
+		if (ISK(field))
+			return;
+		cf.aload(L_TAGS);
+		index(field);
+		cf.op(ClassFile.BALOAD);
+		cf.iconst(Lua.TNUMBER);
+		cf.jump(ClassFile.IF_ICMPNE, label);
+	}
+
+	/**
+	 * Pushes the RK operand <var>field</var>, a number.
+	 */
+	private void operand(int field) {
+		if (ISK(field)) {
+			cf.ldc(k[field & 0xff].d);
+		} else {
+			cf.aload(L_NUMBERS);
+			index(field);
+			cf.op(ClassFile.DALOAD);
+		}
+	}
+
+	/**
+	 * Sets register <var>r</var> to the number <var>value</var> pushes,
+	 * as {@link Lua#setNumberAt}.
+	 */
+	private void setNumber(int r, Runnable value) {
+		ClassFile cf = this.cf;
+		cf.aload(L_NUMBERS);
+		index(r);
+		value.run();
+		cf.op(ClassFile.DASTORE);
+		cf.aload(L_TAGS);
+		index(r);
+		cf.iconst(Lua.TNUMBER);
+		cf.op(ClassFile.BASTORE);
+		cf.aload(L_REFS);
+		index(r);
+		cf.op(ClassFile.ACONST_NULL);
+		cf.op(ClassFile.AASTORE);
+	}
+
+	/**
+	 * Copies register <var>from</var> to register <var>to</var>, as
+	 * {@link Lua#copySlot}.
+	 */
+	private void copy(int from, int to) {
+		ClassFile cf = this.cf;
+		cf.aload(L_TAGS);
+		index(to);
+		cf.aload(L_TAGS);
+		index(from);
+		cf.op(ClassFile.BALOAD);
+		cf.op(ClassFile.BASTORE);
+		cf.aload(L_NUMBERS);
+		index(to);
+		cf.aload(L_NUMBERS);
+		index(from);
+		cf.op(ClassFile.DALOAD);
+		cf.op(ClassFile.DASTORE);
+		cf.aload(L_REFS);
+		index(to);
+		cf.aload(L_REFS);
+		index(from);
+		cf.op(ClassFile.AALOAD);
+		cf.op(ClassFile.AASTORE);
+	}
+
+	/**
+	 * Just enough of a class file writer for {@link Jit}: a final class
+	 * with a no-arg constructor and the single method
+	 * {@link Code#execute}.
+	 */
+	private static final class ClassFile {
+		static final int ACONST_NULL = 0x01;
+		static final int DCONST_0 = 0x0e;
+		static final int DALOAD = 0x31;
+		static final int AALOAD = 0x32;
+		static final int BALOAD = 0x33;
+		static final int DASTORE = 0x52;
+		static final int AASTORE = 0x53;
+		static final int BASTORE = 0x54;
+		static final int POP = 0x57;
+		static final int DUP = 0x59;
+		static final int IADD = 0x60;
+		static final int DADD = 0x63;
+		static final int DSUB = 0x67;
+		static final int DMUL = 0x6b;
+		static final int DDIV = 0x6f;
+		static final int DNEG = 0x77;
+		static final int DCMPL = 0x97;
+		static final int DCMPG = 0x98;
+		static final int IFEQ = 0x99;
+		static final int IFNE = 0x9a;
+		static final int IFLT = 0x9b;
+		static final int IFGE = 0x9c;
+		static final int IFGT = 0x9d;
+		static final int IFLE = 0x9e;
+		static final int IF_ICMPNE = 0xa0;
+		static final int GOTO = 0xa7;
+		static final int LOOKUPSWITCH = 0xab;
+		static final int IRETURN = 0xac;
+		static final int RETURN = 0xb1;
+		static final int GETFIELD = 0xb4;
+		static final int PUTFIELD = 0xb5;
+		static final int INVOKEVIRTUAL = 0xb6;
+		static final int INVOKESPECIAL = 0xb7;
+		static final int INVOKESTATIC = 0xb8;
+		static final int NEW = 0xbb;
+
+		private static final int CONSTANT_UTF8 = 1;
+		private static final int CONSTANT_INTEGER = 3;
+		private static final int CONSTANT_DOUBLE = 6;
+		private static final int CONSTANT_CLASS = 7;
+		private static final int CONSTANT_STRING = 8;
+		private static final int CONSTANT_FIELDREF = 9;
+		private static final int CONSTANT_METHODREF = 10;
+		private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+		private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+		private final DataOutputStream pool = new DataOutputStream(poolBytes);
+		private final Map<String, Integer> entries = new HashMap<>();
+		private int poolSize = 1;
+
+		private byte[] code = new byte[256];
+		private int length;
+		private int[] positions = new int[16];
+		private int labelCount;
+		/**
+		 * Unresolved branches: the position of the instruction, the
+		 * position of its offset, the label, and the offset's size.
+		 */
+		private final List<int[]> fixups = new ArrayList<>();
+
+		int size() {
+			return length;
+		}
+
+		int label() {
+			if (labelCount == positions.length)
+				positions = Arrays.copyOf(positions, labelCount * 2);
+			positions[labelCount] = -1;
+			return labelCount++;
+		}
+
+		void mark(int label) {
+			positions[label] = length;
+		}
+
+		void op(int op) {
+			u1(op);
+		}
+
+		void jump(int op, int label) {
+			fixups.add(new int[]{length, length + 1, label, 2});
+			u1(op);
+			u2(0);
+		}
+
+		void lookupswitch(int[] keys, int[] labels, int dflt) {
+			int at = length;
+			u1(LOOKUPSWITCH);
+			while ((length & 3) != 0)
+				u1(0);
+			fixups.add(new int[]{at, length, dflt, 4});
+			u4(0);
+			u4(keys.length);
+			// keys are in ascending order
+			for (int n = 0; n < keys.length; ++n) {
+				u4(keys[n]);
+				fixups.add(new int[]{at, length, labels[n], 4});
+				u4(0);
+			}
+		}
+
+		void iconst(int v) {
+			if (v >= -1 && v <= 5) {
+				u1(0x03 + v);
+			} else if (v == (byte) v) {
+				u1(0x10);
+				u1(v);
+			} else if (v == (short) v) {
+				u1(0x11);
+				u2(v);
+			} else {
+				ldc(v);
+			}
+		}
+
+		void ldc(int v) {
+			constant(entry(CONSTANT_INTEGER, Integer.toString(v), out -> out.writeInt(v)));
+		}
+
+		void ldc(String s) {
+			constant(entry(CONSTANT_STRING, s, out -> out.writeShort(utf8(s))));
+		}
+
+		void ldc(double d) {
+			int index = entry(CONSTANT_DOUBLE, Long.toString(Double.doubleToRawLongBits(d)), out -> out.writeDouble(d));
+			u1(0x14); // ldc2_w
+			u2(index);
+		}
+
+		private void constant(int index) {
+			if (index < 256) {
+				u1(0x12); // ldc
+				u1(index);
+			} else {
+				u1(0x13); // ldc_w
+				u2(index);
+			}
+		}
+
+		void iload(int n) {
+			local(0x15, 0x1a, n);
+		}
+
+		void istore(int n) {
+			local(0x36, 0x3b, n);
+		}
+
+		void dload(int n) {
+			local(0x18, 0x26, n);
+		}
+
+		void dstore(int n) {
+			local(0x39, 0x47, n);
+		}
+
+		void aload(int n) {
+			local(0x19, 0x2a, n);
+		}
+
+		void astore(int n) {
+			local(0x3a, 0x4b, n);
+		}
+
+		private void local(int op, int op0, int n) {
+			if (n <= 3) {
+				u1(op0 + n);
+			} else {
+				u1(op);
+				u1(n);
+			}
+		}
+
+		void field(int op, String owner, String name, String desc) {
+			u1(op);
+			u2(member(CONSTANT_FIELDREF, owner, name, desc));
+		}
+
+		void invoke(int op, String owner, String name, String desc) {
+			u1(op);
+			u2(member(CONSTANT_METHODREF, owner, name, desc));
+		}
+
+		void type(int op, String name) {
+			u1(op);
+			u2(cls(name));
+		}
+
+		/**
+		 * @return the class file, with the code written so far as the body
+		 * of {@link Code#execute}.
+		 */
+		byte[] toByteArray(String name, String superName) {
+			for (int[] fixup : fixups) {
+				int offset = positions[fixup[2]] - fixup[0];
+				int at = fixup[1];
+				if (fixup[3] == 4) {
+					code[at++] = (byte) (offset >>> 24);
+					code[at++] = (byte) (offset >>> 16);
+				} else if (offset != (short) offset) {
+					throw new IllegalStateException("Branch offset out of range: " + offset);
+				}
+				code[at++] = (byte) (offset >>> 8);
+				code[at] = (byte) offset;
+			}
+			int thisClass = cls(name);
+			int superClass = cls(superName);
+			int init = member(CONSTANT_METHODREF, superName, "<init>", "()V");
+			int initName = utf8("<init>");
+			int initDesc = utf8("()V");
+			int executeName = utf8("execute");
+			int executeDesc = utf8("(L" + LUA + ";" + FUNCTION_DESC + "II)I");
+			int codeName = utf8("Code");
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(poolBytes.size() + length + 128);
+			DataOutputStream out = new DataOutputStream(bytes);
+			try {
+				out.writeInt(0xcafebabe);
+				out.writeShort(0);
+				out.writeShort(49);
+				out.writeShort(poolSize);
+				poolBytes.writeTo(out);
+				out.writeShort(0x1030); // ACC_SYNTHETIC | ACC_SUPER | ACC_FINAL
+				out.writeShort(thisClass);
+				out.writeShort(superClass);
+				out.writeShort(0); // interfaces
+				out.writeShort(0); // fields
+				out.writeShort(2); // methods
+
+				// public <init>() { super(); }
+				out.writeShort(0x0001);
+				out.writeShort(initName);
+				out.writeShort(initDesc);
+				out.writeShort(1);
+				out.writeShort(codeName);
+				out.writeInt(12 + 5);
+				out.writeShort(1);
+				out.writeShort(1);
+				out.writeInt(5);
+				out.writeByte(0x2a); // aload_0
+				out.writeByte(INVOKESPECIAL);
+				out.writeShort(init);
+				out.writeByte(RETURN);
+				out.writeShort(0);
+				out.writeShort(0);
+
+				// final int execute(Lua, LuaFunction, int, int)
+				out.writeShort(0x0010);
+				out.writeShort(executeName);
+				out.writeShort(executeDesc);
+				out.writeShort(1);
+				out.writeShort(codeName);
+				out.writeInt(12 + length);
+				out.writeShort(MAX_STACK);
+				out.writeShort(MAX_LOCALS);
+				out.writeInt(length);
+				out.write(code, 0, length);
+				out.writeShort(0);
+				out.writeShort(0);
+
+				out.writeShort(0); // attributes
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			return bytes.toByteArray();
+		}
+
+		private int utf8(String s) {
+			return entry(CONSTANT_UTF8, s, out -> out.writeUTF(s));
+		}
+
+		private int cls(String name) {
+			return entry(CONSTANT_CLASS, name, out -> out.writeShort(utf8(name)));
+		}
+
+		private int member(int tag, String owner, String name, String desc) {
+			return entry(tag, owner + '.' + name + desc, out -> {
+				int c = cls(owner);
+				int nameAndType = entry(CONSTANT_NAME_AND_TYPE, name + ':' + desc, out2 -> {
+					int n = utf8(name);
+					int t = utf8(desc);
+					out2.writeShort(n);
+					out2.writeShort(t);
+				});
+				out.writeShort(c);
+				out.writeShort(nameAndType);
+			});
+		}
+
+		/**
+		 * Finds or adds a constant pool entry.  <var>body</var> writes the
+		 * entry after its tag, and may add entries of its own first.
+		 */
+		private int entry(int tag, String key, Body body) {
+			key = tag + key;
+			Integer index = entries.get(key);
+			if (index != null)
+				return index;
+			try {
+				// Entries that the body refers to are added as it runs, so
+				// this one is written after them.
+				ByteArrayOutputStream saved = new ByteArrayOutputStream();
+				body.write(new DataOutputStream(saved));
+				int n = poolSize;
+				pool.writeByte(tag);
+				saved.writeTo(pool);
+				poolSize += tag == CONSTANT_DOUBLE ? 2 : 1;
+				entries.put(key, n);
+				return n;
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		private interface Body {
+			void write(DataOutputStream out) throws IOException;
+		}
+
+		private void u1(int v) {
+			if (length == code.length)
+				code = Arrays.copyOf(code, length * 2);
+			code[length++] = (byte) v;
+		}
+
+		private void u2(int v) {
+			u1(v >>> 8);
+			u1(v);
+		}
+
+		private void u4(int v) {
+			u2(v >>> 16);
+			u2(v);
+		}
+	}
+}
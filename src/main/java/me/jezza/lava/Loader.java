@@ -280,6 +280,7 @@ public final class Loader {
 
 		debug(newProto);
 		// :todo: call code verifier
+		Lua.fuse(newProto);
 		return newProto;
 	}
 
@@ -287,18 +288,18 @@ public final class Loader {
 
 	/**
 	 * A chunk header that is correct.  Except for the endian byte, at
-	 * index 6, which is always overwritten with the one from the file,
-	 * before comparison.  We cope with either endianness.
+	 * index 6, which is ignored during comparison (the header read from
+	 * the file is poked instead).  We cope with either endianness.
 	 * Default access so that {@link Lua#load} can read the first entry.
-	 * On no account should anyone except {@link #header} modify
-	 * this array.
+	 * On no account should anyone modify this array, it is shared by
+	 * every Lua state in the JVM.
 	 *
 	 * TODO Look up the first byte. I don't think it's supposed to be an octal, but I could be wrong.
 	 */
 	static final byte[] HEADER = new byte[]
 			{
 					033, (byte) 'L', (byte) 'u', (byte) 'a',
-					0x51, 0, 99, 4,
+					0x51, 0, 0, 4,
 					4, 4, 8, 0};
 
 	/**
@@ -333,9 +334,9 @@ public final class Loader {
 		byte[] buf = new byte[HEADER_SIZE];
 		read(buf);
 
-		// poke the HEADER's endianness byte and compare.
+		// poke the endianness byte read with HEADER's one and compare.
 		byte byteOrderMark = buf[6];
-		HEADER[6] = byteOrderMark;
+		buf[6] = HEADER[6];
 		if (byteOrderMark < 0 || byteOrderMark > 1 || !arrayEquals(HEADER, buf))
 			throw new IOException();
 		bigendian = byteOrderMark == 0;
@@ -24,7 +24,9 @@
 package me.jezza.lava;
 
 import java.io.*;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Objects;
 import java.util.OptionalDouble;
 import java.util.OptionalInt;
@@ -82,6 +84,22 @@ public final class Lua {
 	private LuaTable global;
 	private LuaTable registry;
 
+	/**
+	 * Patterns compiled for the string library, most recently used last,
+	 * shared like the globals.  See {@link Pattern#of}.
+	 */
+	final Map<String, Pattern> patterns;
+	/**
+	 * Templates parsed for string.format, shared in the same way.  See
+	 * {@link Format#of}.
+	 */
+	final Map<String, Format> formats;
+	/**
+	 * Whether OP_CLOSURE hands out the same closure each time for a
+	 * function without upvalues, see {@link #shareClosures}.
+	 */
+	private boolean shareClosures;
+
 	/**
 	 * Reference the main Lua thread.  Itself if this is the main Lua
 	 * thread.
@@ -89,19 +107,21 @@ public final class Lua {
 	private Lua main;
 
 	/**
-	 * VM data stack.
+	 * VM data stack.  Stored as three parallel arrays, all indexed by
+	 * absolute stack index, rather than as an array of objects.  The
+	 * type tag of each value is in <code>tags</code>.  Numbers are kept
+	 * unboxed in <code>numbers</code>; every other value (booleans are
+	 * held as {@link Boolean#TRUE} and {@link Boolean#FALSE}) is in
+	 * <code>refs</code>.  {@link #TNIL} is 0, so the zeroed elements of a
+	 * freshly allocated stack are all nil.  Default access so that code
+	 * compiled by {@link Jit} can index them directly.
 	 */
-	private Slot[] stack = new Slot[0];
-	/**
-	 * One more than the highest stack slot that has been written to
-	 * (ever).
-	 * Used by {@link #stacksetsize} to determine which stack slots
-	 * need nilling when growing the stack.
-	 */
-	int stackhighwater;   // = 0;
+	byte[] tags = new byte[0];
+	double[] numbers = new double[0];
+	Object[] refs = new Object[0];
 	/**
 	 * Number of active elemements in the VM stack.  Should always be
-	 * <code><= stack.length</code>.
+	 * <code><= tags.length</code>.
 	 */
 	private int stackSize;        // = 0;
 	/**
@@ -115,32 +135,49 @@ public final class Lua {
 	/**
 	 * Instruction to resume execution at.  Index into code array.
 	 */
-	private int savedpc;  // = 0;
+	int savedpc;  // = 0;
+
+	/**
+	 * Initial number of CallInfo records, as BASIC_CI_SIZE in ldo.c.
+	 */
+	private static final int BASIC_CI_SIZE = 8;
+
+	/**
+	 * Stack of CallInfo records, of which the first {@link #nci} are in
+	 * use.  The records past that are left allocated, and are reused by
+	 * the next calls, rather than every call making a new one.
+	 */
+	private CallInfo[] civ = new CallInfo[BASIC_CI_SIZE];
 
 	/**
-	 * Vector of CallInfo records.  Actually it's a Stack which is a
-	 * subclass of Vector, but it mostly the Vector methods that are used.
+	 * Number of CallInfo records in use.
 	 */
-	private ExtendedArrayList<CallInfo> civ = new ExtendedArrayList<>();
+	private int nci = 1;
 
 	{
-		civ.add(new CallInfo());
+		for (int i = 0; i < BASIC_CI_SIZE; i++)
+			civ[i] = new CallInfo();
 	}
 
 	/**
 	 * CallInfo record for currently active function.
 	 */
 	private CallInfo ci() {
-		return civ.peekLast();
+		return civ[nci - 1];
 	}
 
 	/**
-	 * Open Upvalues.  All UpVal objects that reference the VM stack.
-	 * openupval is a java.util.Vector of UpVal stored in order of stack
-	 * slot index: higher stack indexes are stored at higher Vector
-	 * positions.
+	 * Open Upvalues.  All UpVal objects that reference the VM stack,
+	 * each held at the index of the stack slot it references, so that
+	 * this grows along with the stack.
+	 */
+	private UpVal[] openupval = UpVal.EMPTY;
+
+	/**
+	 * Every open upvalue references a stack slot below this, so that
+	 * {@link #fClose} only has to look at the slots in between.
 	 */
-	private ExtendedArrayList<UpVal> openupval = new ExtendedArrayList<>();
+	private int openupvalTop;
 
 	int hookcount;
 	int basehookcount;
@@ -158,6 +195,36 @@ public final class Lua {
 	 */
 	private static final int MAX_TAG_LOOP = 100;
 
+	// Metamethod events, as TMS in ltm.h.  Their order is significant:
+	// TM_ADD to TM_UNM follow OP_ADD to OP_UNM.
+	static final int TM_INDEX = 0;
+	static final int TM_NEWINDEX = 1;
+	static final int TM_GC = 2;
+	static final int TM_MODE = 3;
+	static final int TM_EQ = 4;
+	static final int TM_ADD = 5;
+	static final int TM_SUB = 6;
+	static final int TM_MUL = 7;
+	static final int TM_DIV = 8;
+	static final int TM_MOD = 9;
+	static final int TM_POW = 10;
+	static final int TM_UNM = 11;
+	static final int TM_LEN = 12;
+	static final int TM_LT = 13;
+	static final int TM_LE = 14;
+	static final int TM_CONCAT = 15;
+	static final int TM_CALL = 16;
+
+	/**
+	 * Names of the metamethod events, indexed by TM_* constant.
+	 */
+	static final String[] TM_NAMES = {
+			"__index", "__newindex", "__gc", "__mode", "__eq",
+			"__add", "__sub", "__mul", "__div", "__mod",
+			"__pow", "__unm", "__len", "__lt", "__le",
+			"__concat", "__call"
+	};
+
 	/**
 	 * The current error handler (set by {@link #pcall}).  A Lua
 	 * function to call.
@@ -189,9 +256,18 @@ public final class Lua {
 	static final Object BYPASS_TYPE = new Object();
 
 	/**
-	 * Spare Slot used for a temporary.
+	 * Spare Slots used for the operands of VM instructions that take
+	 * their slow path, which need them as a {@link Slot}.  Kept per Lua
+	 * thread so that unrelated Lua states can be executed concurrently.
+	 */
+	private final Slot rkb = new Slot();
+	private final Slot rkc = new Slot();
+
+	/**
+	 * Number of calls compiled code has made to Lua functions that are
+	 * still running, each of which nests a {@link #vmExecute}.
 	 */
-	private static final Slot SPARE_SLOT = new Slot();
+	private int jitDepth;
 
 	/**
 	 * Registry key for loaded modules.
@@ -210,6 +286,9 @@ public final class Lua {
 		this.global = L.global;
 		this.registry = L.registry;
 		this.metatable = L.metatable;
+		this.patterns = L.patterns;
+		this.formats = L.formats;
+		this.shareClosures = L.shareClosures;
 		this.main = L;
 	}
 
@@ -223,6 +302,8 @@ public final class Lua {
 		this.global = new LuaTable();
 		this.registry = new LuaTable();
 		this.metatable = new LuaTable[NUM_TAGS];
+		this.patterns = Pattern.cache();
+		this.formats = Format.cache();
 		this.main = this;
 	}
 
@@ -395,8 +476,9 @@ public final class Lua {
 	/**
 	 * Array of numeric operands.  Used when converting strings to numbers
 	 * by an arithmetic opcode (ADD, SUB, MUL, DIV, MOD, POW, UNM).
+	 * Kept per Lua thread, as with {@link #rkb}.
 	 */
-	private static final double[] NUMOP = new double[2];
+	private final double[] numop = new double[2];
 
 
 	/**
@@ -610,9 +692,7 @@ public final class Lua {
 	 * @return the value t[k].
 	 */
 	public Object getTable(Object t, Object k) {
-		Slot v = new Slot();
-		vmGettable(t, new Slot(k), v);
-		return v.asObject();
+		return vmGettable(t, new Slot(k));
 	}
 
 	/**
@@ -668,6 +748,19 @@ public final class Lua {
 		return o instanceof LuaFunction || o instanceof LuaJavaCallback;
 	}
 
+	/**
+	 * Sets whether a function without upvalues, defined again in the same
+	 * environment, is the same closure each time, as in Lua 5.2, rather
+	 * than a new one, as in Lua 5.1, which is the default.  Sharing saves
+	 * making a closure each time, but a script that compares closures,
+	 * uses them as keys, or calls setfenv on one of them, sees every copy
+	 * as the same function.  Threads made from this one afterwards share
+	 * the setting.
+	 */
+	public void shareClosures(boolean share) {
+		this.shareClosures = share;
+	}
+
 	/**
 	 * Tests that a Lua thread is the main thread.
 	 *
@@ -840,17 +933,20 @@ public final class Lua {
 	}
 
 	/**
-	 * Slowly get the next key from a table.  Unlike most other functions
+	 * Get the next key from a table.  Unlike most other functions
 	 * in the API this one uses the stack.  The top-of-stack is popped and
 	 * used to find the next key in the table at the position specified by
 	 * index.  If there is a next key then the key and its value are
 	 * pushed onto the stack and <code>true</code> is returned.
 	 * Otherwise (the end of the table has been reached)
 	 * <code>false</code> is returned.
+	 * <p>
+	 * The previous key is found directly in the table (see
+	 * {@link LuaTable#index}), so a whole traversal is linear in the size
+	 * of the table.
 	 *
 	 * @param idx stack index of table.
 	 * @return true if and only if there are more keys in the table.
-	 * @deprecated Use {@link #tableKeys} enumeration protocol instead.
 	 */
 	public boolean next(int idx) {
 		Object o = value(idx);
@@ -858,30 +954,15 @@ public final class Lua {
 		LuaTable t = (LuaTable) o;
 		Object key = value(-1);
 		pop(1);
-		Iterator<Object> keys = t.keys();
-		if (key == NIL) {
-			if (keys.hasNext()) {
-				key = keys.next();
-				push(key);
-				push(t.get(key));
-				return true;
-			}
+		int i = t.index(key);
+		if (i == -2)
+			throw gRunError("invalid key to 'next'");
+		i = t.next(i + 1);
+		if (i < 0)
 			return false;
-		}
-		while (keys.hasNext()) {
-			Object k = keys.next();
-			if (k.equals(key)) {
-				if (keys.hasNext()) {
-					key = keys.next();
-					push(key);
-					push(t.get(key));
-					return true;
-				}
-				return false;
-			}
-		}
-		// protocol error which we could potentially diagnose.
-		return false;
+		push(t.keyAt(i));
+		push(t.valueAt(i));
+		return true;
 	}
 
 	/**
@@ -982,7 +1063,7 @@ public final class Lua {
 		apiChecknelems(nargs + 1);
 		int restoreStack = stackSize - (nargs + 1);
 		// Most of this code comes from luaD_pcall
-		int restoreCi = civ.size();
+		int restoreCi = nci;
 		int oldnCcalls = nCcalls;
 		Object old_errfunc = errfunc;
 		errfunc = ef;
@@ -994,7 +1075,7 @@ public final class Lua {
 			fClose(restoreStack);   // close eventual pending closures
 			dSeterrorobj(e.errorStatus(), restoreStack);
 			nCcalls = oldnCcalls;
-			civ.setSize(restoreCi);
+			nci = restoreCi;
 			CallInfo ci = ci();
 			base = ci.base();
 			savedpc = ci.savedpc();
@@ -1004,7 +1085,7 @@ public final class Lua {
 			fClose(restoreStack);     // close eventual pending closures
 			dSeterrorobj(ERRMEM, restoreStack);
 			nCcalls = oldnCcalls;
-			civ.setSize(restoreCi);
+			nci = restoreCi;
 			CallInfo ci = ci();
 			base = ci.base();
 			savedpc = ci.savedpc();
@@ -1046,7 +1127,9 @@ public final class Lua {
 	 * @param b the boolean to push.
 	 */
 	public void pushBoolean(boolean b) {
-		push(b);
+		int i = stackSize;
+		stacksetsize(i + 1);
+		setBooleanAt(b, i);
 	}
 
 	/**
@@ -1071,8 +1154,9 @@ public final class Lua {
 	 * @param d the number to push.
 	 */
 	public void pushNumber(double d) {
-		// :todo: optimise to avoid creating Double instance
-		push(d);
+		int i = stackSize;
+		stacksetsize(i + 1);
+		setNumberAt(d, i);
 	}
 
 	/**
@@ -1091,8 +1175,14 @@ public final class Lua {
 	 * @param idx stack index of value to push.
 	 */
 	public void pushValue(int idx) {
-		// :todo: optimised to avoid creating Double instance
-		push(value(idx));
+		int from = absIndex(idx);
+		int i = stackSize;
+		stacksetsize(i + 1);
+		if (from < 0) {
+			setNilAt(i);
+		} else {
+			copySlot(from, i);
+		}
 	}
 
 	/**
@@ -1184,7 +1274,7 @@ public final class Lua {
 		if (status != YIELD) {
 			if (status != 0)
 				return resume_error("cannot resume dead coroutine");
-			else if (civ.size() != 1)
+			else if (nci != 1)
 				return resume_error("cannot resume non-suspended coroutine");
 		}
 		// assert errfunc == 0 && nCcalls == 0;
@@ -1195,7 +1285,7 @@ public final class Lua {
 			int firstArg = stackSize - narg;
 			if (status == 0)  // start coroutine?
 			{
-				// assert civ.size() == 1 && firstArg > base);
+				// assert nci == 1 && firstArg > base);
 				if (vmPrecall(firstArg - 1, MULTRET) != PCRLUA)
 					break protect;
 			} else      // resuming from previous yield
@@ -1211,7 +1301,7 @@ public final class Lua {
 				} else    // yielded inside a hook: just continue its execution
 					base = ci().base();
 			}
-			vmExecute(civ.size() - 1);
+			vmExecute(nci - 1);
 		} catch (LuaError e) {
 			status = e.errorStatus();   // mark thread as 'dead'
 			dSeterrorobj(e.errorStatus(), stackSize);
@@ -1236,6 +1326,10 @@ public final class Lua {
 
 		if (o instanceof LuaFunction) {
 			LuaFunction f = (LuaFunction) o;
+			// Closures made from now on shouldn't see the new environment.
+			Proto p = f.proto();
+			if (p.closure == f)
+				p.closure = null;
 			f.env(t);
 			return true;
 		}
@@ -1448,7 +1542,7 @@ public final class Lua {
 	 */
 	public int type(int idx) {
 		idx = absIndex(idx);
-		return idx < 0 ? TNONE : stack[idx].t;
+		return idx < 0 ? TNONE : tags[idx];
 	}
 
 	/**
@@ -1498,7 +1592,7 @@ public final class Lua {
 	 */
 	public Object value(int idx) {
 		idx = absIndex(idx);
-		return idx < 0 ? NIL : stack[idx].asObject();
+		return idx < 0 ? NIL : objectAt(idx);
 	}
 
 	/**
@@ -1653,7 +1747,7 @@ public final class Lua {
 		narg = absIndex(narg);
 		if (narg < 0)
 			throw tagError(narg, TBOOLEAN);
-		return !stack[narg].isFalse();
+		return !isFalseAt(narg);
 	}
 
 	/**
@@ -1674,6 +1768,9 @@ public final class Lua {
 	 * @return the argument as a double.
 	 */
 	public double checkNumber(int narg) {
+		int idx = absIndex(narg);
+		if (idx >= 0 && tags[idx] == TNUMBER)
+			return numbers[idx];
 		Object o = value(narg);
 		if (o == NIL)
 			throw tagError(narg, TNUMBER);
@@ -1991,8 +2088,8 @@ public final class Lua {
 		CallInfo callinfo = null;
 		// :todo: complete me
 		if (ar.ici() > 0) {   // no tail call?
-			callinfo = civ.get(ar.ici());
-			f = stack[callinfo.function()].r;
+			callinfo = civ[ar.ici()];
+			f = refs[callinfo.function()];
 			//# assert isFunction(f)
 		}
 		boolean status = auxgetinfo(what, ar, f, callinfo);
@@ -2013,8 +2110,8 @@ public final class Lua {
 	Debug getStack(int level) {
 		int ici; // Index of CallInfo
 
-		for (ici = civ.size() - 1; level > 0 && ici > 0; --ici) {
-			CallInfo ci = civ.get(ici);
+		for (ici = nci - 1; level > 0 && ici > 0; --ici) {
+			CallInfo ci = civ[ici];
 			--level;
 			if (isLua(ci))                    // Lua function?
 				level -= ci.tailcalls();        // skip lost tail calls
@@ -2072,7 +2169,7 @@ public final class Lua {
 		int pc = currentpc(ci);
 		if (pc < 0)
 			return -1;        // only active Lua functions have current-line info
-		LuaFunction f = (LuaFunction) stack[ci.function()].r;
+		LuaFunction f = (LuaFunction) refs[ci.function()];
 		return f.proto().getline(pc);
 	}
 
@@ -2104,7 +2201,7 @@ public final class Lua {
 	 * Equivalent to macro isLua _and_ f_isLua from lstate.h.
 	 */
 	private boolean isLua(CallInfo callinfo) {
-		return stack[callinfo.function()].r instanceof LuaFunction;
+		return refs[callinfo.function()] instanceof LuaFunction;
 	}
 
 	//////////////////////////////////////////////////////////////////////
@@ -2121,7 +2218,7 @@ public final class Lua {
 		if (hook != null && allowhook) {
 			int top = stackSize;
 			int ci_top = ci().top();
-			int ici = civ.size() - 1;
+			int ici = nci - 1;
 			if (event == HOOK_TAIL_RET) // not supported yet
 			{
 				ici = 0;
@@ -2153,11 +2250,11 @@ public final class Lua {
 			stacksetsize(oldtop + 1);
 		switch (errcode) {
 			case ERRMEM:
-				stack[oldtop].setObject(MEMERRMSG);
+				setRefAt(MEMERRMSG, TSTRING, oldtop);
 				break;
 
 			case ERRERR:
-				stack[oldtop].setObject(ERRERRMSG);
+				setRefAt(ERRERRMSG, TSTRING, oldtop);
 				break;
 
 			case ERRFILE:
@@ -2188,36 +2285,35 @@ public final class Lua {
 	 *
 	 * @param level Absolute stack index.
 	 */
-	private void fClose(int level) {
-		int i = openupval.size();
-		while (--i >= 0) {
-			UpVal uv = openupval.get(i);
-			if (uv.offset() < level)
-				break;
-			uv.close();
+	void fClose(int level) {
+		int top = openupvalTop;
+		if (level >= top)
+			return;
+		UpVal[] openupval = this.openupval;
+		for (int i = level; i < top; i++) {
+			UpVal uv = openupval[i];
+			if (uv != null) {
+				uv.close();
+				openupval[i] = null;
+			}
 		}
-		openupval.setSize(i + 1);
+		openupvalTop = level;
 	}
 
 	/**
-	 * We search from the end of the Vector towards the beginning,
-	 * looking for an UpVal for the required stack-slot.
+	 * Finds the open UpVal for the required stack-slot, making one if
+	 * there isn't one yet.
 	 */
 	private UpVal fFindupval(int idx) {
-		int i = openupval.size();
-		while (--i >= 0) {
-			UpVal uv = openupval.get(i);
-			if (uv.offset() == idx) {
-				return uv;
-			}
-			if (uv.offset() < idx) {
-				break;
-			}
+		UpVal[] openupval = this.openupval;
+		if (idx >= openupval.length)
+			this.openupval = openupval = Arrays.copyOf(openupval, tags.length);
+		UpVal uv = openupval[idx];
+		if (uv == null) {
+			openupval[idx] = uv = new UpVal(this, idx);
+			if (idx >= openupvalTop)
+				openupvalTop = idx + 1;
 		}
-		// i points to be position _after_ which we want to insert a new
-		// UpVal (it's -1 when we want to insert at the beginning).
-		UpVal uv = new UpVal(idx, stack[idx]);
-		openupval.add(i + 1, uv);
 		return uv;
 	}
 
@@ -2229,7 +2325,7 @@ public final class Lua {
 
 	/**
 	 * <var>p1</var> and <var>p2</var> are operands to a numeric opcode.
-	 * Corrupts <code>NUMOP[0]</code>.
+	 * Corrupts <code>numop[0]</code>.
 	 * There is the possibility of using <var>p1</var> and <var>p2</var> to
 	 * identify (for example) for local variable being used in the
 	 * computation (consider the error message for code like <code>local
@@ -2247,10 +2343,10 @@ public final class Lua {
 	 * <var>p1</var> and <var>p2</var> are absolute stack indexes.
 	 */
 	private LuaError gConcatError(int p1, int p2) {
-		if (stack[p1].t == TSTRING)
+		if (tags[p1] == TSTRING)
 			p1 = p2;
 		// assert !(p1 instanceof String);
-		throw gTypeError(stack[p1], "concatenate");
+		throw gTypeError(objectAt(p1), "concatenate");
 	}
 
 	boolean gCheckcode(Proto p) {
@@ -2354,7 +2450,7 @@ public final class Lua {
 	 *
 	 * @see Syntax#oInt2fb
 	 */
-	private static int oFb2int(int x) {
+	static int oFb2int(int x) {
 		int e = (x >>> 3) & 31;
 		if (e == 0)
 			return x;
@@ -2557,23 +2653,61 @@ public final class Lua {
 	 * Near equivalent of macros RKB and RKC.  Note: non-static as it
 	 * requires stack and base instance members.  Stands for "Register or
 	 * Konstant" by the way, it gets value from either the register file
-	 * (stack) or the constant array (k).
+	 * (stack) or the constant array (k).  A register is copied into
+	 * <var>scratch</var>, which is returned in its place.
 	 */
-	private Slot RK(Slot[] k, int field) {
+	private Slot RK(Slot[] k, int field, Slot scratch) {
 		if (ISK(field))
 			return k[field & 0xff];
-		return stack[base + field];
+		return slotAt(base + field, scratch);
+	}
+
+	/**
+	 * As {@link #RK(Slot[], int, Slot)}, but gets the value as an Object.
+	 */
+	private Object RKObject(Slot[] k, int field) {
+		if (ISK(field))
+			return k[field & 0xff].asObject();
+		return objectAt(base + field);
+	}
+
+	/**
+	 * Tests that the RK operand <var>field</var> is a number, without
+	 * copying it anywhere.
+	 */
+	private boolean RKIsNumber(Slot[] k, int field) {
+		if (ISK(field))
+			return k[field & 0xff].t == TNUMBER;
+		return tags[base + field] == TNUMBER;
+	}
+
+	/**
+	 * The value of the RK operand <var>field</var>, which
+	 * {@link #RKIsNumber} has found to be a number.
+	 */
+	private double RKNumber(Slot[] k, int field) {
+		if (ISK(field))
+			return k[field & 0xff].d;
+		return numbers[base + field];
+	}
+
+	/**
+	 * Tests that the RK operand <var>field</var> is a string.
+	 */
+	private boolean RKIsString(Slot[] k, int field) {
+		if (ISK(field))
+			return k[field & 0xff].t == TSTRING;
+		return tags[base + field] == TSTRING;
 	}
 
 	/**
-	 * Slower version of RK that does not receive the constant array.  Not
-	 * recommend for routine use, but is used by some error handling code
-	 * to avoid having a constant array passed around too much.
+	 * The value of the RK operand <var>field</var>, which
+	 * {@link #RKIsString} has found to be a string.
 	 */
-	private Slot RK(int field) {
-		LuaFunction function = (LuaFunction) stack[ci().function()].r;
-		Slot[] k = function.proto().constants();
-		return RK(k, field);
+	private String RKString(Slot[] k, int field) {
+		if (ISK(field))
+			return (String) k[field & 0xff].r;
+		return stringAt(base + field);
 	}
 
 	// CREATE functions are required by FuncState, so default access.
@@ -2638,6 +2772,165 @@ public final class Lua {
 	static final int OP_CLOSURE = 36;
 	static final int OP_VARARG = 37;
 
+	// Quickened opcodes.  The interpreter rewrites an instruction into one
+	// of these once it has seen the types of its operands, and back again
+	// (see GENERIC) if they stop matching.  They take the same arguments as
+	// the opcode they stand for, and never appear in a dump, or in the code
+	// given to the Jit.
+	// The _NN forms have two register operands and the _NK forms a register
+	// and a numeric constant, both of which hold numbers.
+	static final int OP_ADD_NN = 38;
+	static final int OP_ADD_NK = 39;
+	static final int OP_SUB_NN = 40;
+	static final int OP_SUB_NK = 41;
+	static final int OP_MUL_NN = 42;
+	static final int OP_MUL_NK = 43;
+	// Comparisons of two numbers, or of two strings, in OP_EQ, OP_LT,
+	// OP_LE order.
+	static final int OP_EQ_NUM = 44;
+	static final int OP_LT_NUM = 45;
+	static final int OP_LE_NUM = 46;
+	static final int OP_EQ_STR = 47;
+	static final int OP_LT_STR = 48;
+	static final int OP_LE_STR = 49;
+
+	// Superinstructions.  The instruction in the first opcode's place is
+	// executed, then, unless there's a hook to count it, the next one too,
+	// within the same dispatch.  The next instruction is left as it is, so
+	// the fusion is invisible to jumps into it.  See fuse.
+	static final int OP_GETTABLE_GETTABLE = 50;
+	static final int OP_GETTABLE_SETTABLE = 51;
+	static final int OP_GETTABLE_TEST = 52;
+	static final int OP_SETTABLE_FORLOOP = 53;
+	static final int OP_MOVE_MOVE = 54;
+
+	/**
+	 * The generic opcode of each opcode.
+	 */
+	private static final byte[] GENERIC = new byte[64];
+
+	static {
+		for (int op = 0; op <= OP_VARARG; ++op)
+			GENERIC[op] = (byte) op;
+		GENERIC[OP_ADD_NN] = GENERIC[OP_ADD_NK] = OP_ADD;
+		GENERIC[OP_SUB_NN] = GENERIC[OP_SUB_NK] = OP_SUB;
+		GENERIC[OP_MUL_NN] = GENERIC[OP_MUL_NK] = OP_MUL;
+		GENERIC[OP_EQ_NUM] = GENERIC[OP_EQ_STR] = OP_EQ;
+		GENERIC[OP_LT_NUM] = GENERIC[OP_LT_STR] = OP_LT;
+		GENERIC[OP_LE_NUM] = GENERIC[OP_LE_STR] = OP_LE;
+		GENERIC[OP_GETTABLE_GETTABLE] = GENERIC[OP_GETTABLE_SETTABLE] = GENERIC[OP_GETTABLE_TEST] = OP_GETTABLE;
+		GENERIC[OP_SETTABLE_FORLOOP] = OP_SETTABLE;
+		GENERIC[OP_MOVE_MOVE] = OP_MOVE;
+	}
+
+	/**
+	 * Stop quickening the instructions of a function once they've been
+	 * deoptimised this many times, as its types are evidently unstable.
+	 */
+	private static final int MAX_DEOPTS = 16;
+
+	/**
+	 * @return the instruction <var>i</var>, with its generic opcode in
+	 * place of any quickened one.
+	 */
+	static int generic(int i) {
+		return SET_OPCODE(i, GENERIC[OPCODE(i)]);
+	}
+
+	/**
+	 * @return a copy of <var>code</var> with only generic instructions.
+	 */
+	static int[] generic(int[] code) {
+		int[] result = code.clone();
+		for (int pc = 0; pc < result.length; ++pc) {
+			int i = result[pc] = generic(result[pc]);
+			if (OPCODE(i) == OP_SETLIST && ARGC(i) == 0)
+				++pc;   // the next word is C, not an instruction
+		}
+		return result;
+	}
+
+	/**
+	 * The post-codegen pass that replaces the opcode of each instruction
+	 * that starts a common pair with the superinstruction for the pair.
+	 * The pairs were chosen from the dynamic pair counts of the speed
+	 * suite.  Comparisons and OP_TEST need no superinstruction with the
+	 * OP_JMP that always follows them, as their handlers already take it.
+	 */
+	static void fuse(Proto p) {
+		int[] code = p.code();
+		for (int pc = 0; pc < code.length - 1; ++pc) {
+			int i = code[pc];
+			int op = OPCODE(i);
+			int next = OPCODE(code[pc + 1]);
+			int fused = -1;
+			switch (op) {
+				case OP_GETTABLE:
+					if (next == OP_GETTABLE)
+						fused = OP_GETTABLE_GETTABLE;
+					else if (next == OP_SETTABLE)
+						fused = OP_GETTABLE_SETTABLE;
+					else if (next == OP_TEST)
+						fused = OP_GETTABLE_TEST;
+					break;
+				case OP_SETTABLE:
+					if (next == OP_FORLOOP)
+						fused = OP_SETTABLE_FORLOOP;
+					break;
+				case OP_MOVE:
+					if (next == OP_MOVE)
+						fused = OP_MOVE_MOVE;
+					break;
+				case OP_CLOSURE:
+					// skip the pseudo-instructions, which only describe upvalues
+					pc += p.proto()[ARGBx(i)].nups();
+					break;
+				case OP_SETLIST:
+					if (ARGC(i) == 0)
+						++pc;   // the next word is C, not an instruction
+					break;
+			}
+			if (fused >= 0)
+				code[pc] = SET_OPCODE(i, fused);
+		}
+	}
+
+	/**
+	 * Quickens the arithmetic instruction <var>i</var>, at pc - 1, whose
+	 * operands are numbers, into <var>nn</var> or the _NK form after it.
+	 */
+	private static void quickenArith(Proto proto, int[] code, int pc, int i, int nn) {
+		if (proto.deopts < MAX_DEOPTS && !ISK(ARGB(i)))
+			code[pc - 1] = SET_OPCODE(i, ISK(ARGC(i)) ? nn + 1 : nn);
+	}
+
+	/**
+	 * Quickens the comparison <var>i</var>, at pc - 1, if its operands are
+	 * both numbers or both strings.
+	 */
+	private void quickenCompare(Proto proto, int[] code, int pc, Slot[] k, int i) {
+		if (proto.deopts >= MAX_DEOPTS)
+			return;
+		int b = ARGB(i);
+		int c = ARGC(i);
+		int offset = OPCODE(i) - OP_EQ;
+		if (RKIsNumber(k, b) && RKIsNumber(k, c))
+			code[pc - 1] = SET_OPCODE(i, OP_EQ_NUM + offset);
+		else if (RKIsString(k, b) && RKIsString(k, c))
+			code[pc - 1] = SET_OPCODE(i, OP_EQ_STR + offset);
+	}
+
+	/**
+	 * Restores the quickened instruction <var>i</var>, at pc - 1, whose
+	 * operands no longer match, to its generic form.
+	 *
+	 * @return the generic instruction.
+	 */
+	private static int deopt(Proto proto, int[] code, int pc, int i) {
+		proto.deopts++;
+		return code[pc - 1] = generic(i);
+	}
+
 	// end of instruction decomposition
 
 	static final int SIZE_C = 9;
@@ -2688,20 +2981,32 @@ public final class Lua {
 			int top = base + last + 1;
 			int n = 2;  // number of elements handled in this pass (at least 2)
 			if (!_toString(top - 2) || !_toString(top - 1)) {
-				if (!call_binTM(stack[top - 2], stack[top - 1], stack[top - 2], "__concat"))
+				if (!call_binTM(slotAt(top - 2, rkb), slotAt(top - 1, rkc), top - 2, TM_CONCAT))
 					throw gConcatError(top - 2, top - 1);
-			} else if ((length = ((String) stack[top - 1].r).length()) > 0) {
+			} else if ((length = stringLength(top - 1)) > 0) {
 				int tl = length;
 				for (n = 1; n < total && _toString(top - n - 1); ++n) {
-					tl += ((String) stack[top - n - 1].r).length();
+					tl += stringLength(top - n - 1);
 					if (tl < 0)
 						throw gRunError("string length overflow");
 				}
-				StringBuilder buffer = new StringBuilder(tl);
-				// Concat all strings
-				for (int i = n; i > 0; i--)
-					buffer.append(stack[top - i].r);
-				stack[top - n].setObject(buffer.toString());
+				// Concatenations onto a long string make a rope, which the
+				// next one onto it can extend rather than copy.
+				Object first = refs[top - n];
+				if (first instanceof Rope || ((String) first).length() >= Rope.MIN_LENGTH) {
+					StringBuilder buffer = first instanceof Rope
+							? ((Rope) first).extend(tl)
+							: new StringBuilder(tl).append((String) first);
+					for (int i = n - 1; i > 0; i--)
+						buffer.append(refs[top - i]);
+					setRefAt(new Rope(buffer), TSTRING, top - n);
+				} else {
+					StringBuilder buffer = new StringBuilder(tl);
+					// Concat all strings
+					for (int i = n; i > 0; i--)
+						buffer.append(refs[top - i]);
+					setRefAt(buffer.toString(), TSTRING, top - n);
+				}
 			}
 			total -= n - 1;     // got n strings to create 1 new
 			last -= n - 1;
@@ -2749,20 +3054,20 @@ public final class Lua {
 		// Same class, but different objects.
 		if (a instanceof LuaJavaCallback || a instanceof LuaTable) {
 			// Resort to metamethods.
-			Object tm = get_compTM(getMetatable(a), getMetatable(b), "__eq");
+			Object tm = get_compTM(getMetatable(a), getMetatable(b), TM_EQ);
 			// no TM?
 			if (tm == NIL)
 				return false;
-			Slot s = new Slot();
-			callTMres(s, tm, a, b);   // call TM
-			return !s.isFalse();
+			return toBoolean(callTMres(tm, a, b));   // call TM
 		}
 		return false;
 	}
 
 	/**
-	 * The core VM execution engine.
+	 * The core VM execution engine.  Each fused opcode runs its first
+	 * half, then falls through to the handler of its second.
 	 */
+	@SuppressWarnings("fallthrough")
 	private void vmExecute(int nexeccalls) {
 		// This labelled while loop is used to simulate the effect of C's
 		// goto.  The end of the while loop is never reached.  The beginning
@@ -2770,13 +3075,25 @@ public final class Lua {
 		// statement (when a Lua function is called or returns).
 		reentry:
 		while (true) {
-			// assert stack[ci.function()].r instanceof LuaFunction;
-			LuaFunction function = (LuaFunction) stack[ci().function()].r;
+			// assert refs[ci.function()] instanceof LuaFunction;
+			LuaFunction function = (LuaFunction) refs[ci().function()];
 			Proto proto = function.proto();
 			int[] code = proto.code();
 			Slot[] k = proto.constants();
 			int pc = savedpc;
 
+			Jit.Code compiled = pc == 0 ? tierUp(proto) : proto.compiled;
+			if (compiled != null && hookmask == 0) {
+				pc = compiled.execute(this, function, base, pc);
+				if (pc < 0) {
+					if (pc == Jit.YIELD)
+						return;
+					// assert pc == Jit.CALL
+					nexeccalls++;
+					continue reentry;
+				}
+			}
+
 			// main loop of interpreter
 			while (true) {
 
@@ -2789,6 +3106,10 @@ public final class Lua {
 
 				int i = code[pc++];       // VM instruction.
 				// :todo: line hook
+				// There's no second, hook-free copy of this loop: hot code
+				// runs compiled by Jit, which only looks at hookmask where
+				// it enters a loop, and this test was measured to cost
+				// nothing noticeable with Jit off.
 				if ((hookmask & MASK_COUNT) != 0 && --hookcount == 0) {
 					traceexec(pc);
 					if (status == YIELD)  // did hook yield?
@@ -2800,26 +3121,30 @@ public final class Lua {
 				}
 
 				int a = ARGA(i);          // its A field.
-				Slot rb;
-				Slot rc;
 
 				switch (OPCODE(i)) {
+					case OP_MOVE_MOVE:
+						copySlot(base + ARGB(i), base + a);
+						if (hookmask != 0)
+							continue;
+						i = code[pc++];
+						a = ARGA(i);
+						// fall through
 					case OP_MOVE:
-						//	stack_set(base + a, stack[base + ARGB(i)]);
-						stack[base + a].setObject(stack[base + ARGB(i)]);
+						copySlot(base + ARGB(i), base + a);
 						continue;
 					case OP_LOADK:
-						stack[base + a].setObject(k[ARGBx(i)]);
+						setSlotAt(k[ARGBx(i)], base + a);
 						continue;
 					case OP_LOADBOOL:
-						stack[base + a].setObject(ARGB(i) != 0);
+						setBooleanAt(ARGB(i) != 0, base + a);
 						if (ARGC(i) != 0)
 							++pc;
 						continue;
 					case OP_LOADNIL: {
 						int b = base + ARGB(i);
 						do {
-							stack[b--].setObject(NIL);
+							setNilAt(b--);
 						} while (b >= base + a);
 						continue;
 					}
@@ -2829,200 +3154,297 @@ public final class Lua {
 						continue;
 					}
 					case OP_GETGLOBAL:
-						rb = k[ARGBx(i)];
-						// assert rb instance of String;
 						savedpc = pc; // Protect
-						vmGettable(function.env(), rb, stack[base + a]);
+						opGetglobal(function, k, i);
 						continue;
-					case OP_GETTABLE: {
+					case OP_GETTABLE_GETTABLE:
+						savedpc = pc; // Protect
+						opGettable(k, i);
+						if (hookmask != 0)
+							continue;
+						i = code[pc++];
+						a = ARGA(i);
+						// fall through
+					case OP_GETTABLE:
 						savedpc = pc; // Protect
-						vmGettable(objectAt(base + ARGB(i)), RK(k, ARGC(i)), stack[base + a]);
+						opGettable(k, i);
 						continue;
-					}
 					case OP_SETUPVAL: {
 						function.upVal(ARGB(i)).setValue(objectAt(base + a));
 						continue;
 					}
-					case OP_SETGLOBAL: {
+					case OP_SETGLOBAL:
+						savedpc = pc; // Protect
+						opSetglobal(function, k, i);
+						continue;
+					case OP_GETTABLE_SETTABLE:
 						savedpc = pc; // Protect
-						vmSettable(function.env(), k[ARGBx(i)], objectAt(base + a));
+						opGettable(k, i);
+						if (hookmask != 0)
+							continue;
+						i = code[pc++];
+						a = ARGA(i);
+						// fall through
+					case OP_SETTABLE:
+						savedpc = pc; // Protect
+						opSettable(k, i);
+						continue;
+					case OP_NEWTABLE: {
+						setRefAt(new LuaTable(oFb2int(ARGB(i)), oFb2int(ARGC(i))), TTABLE, base + a);
 						continue;
 					}
-					case OP_SETTABLE: {
+					case OP_SELF:
 						savedpc = pc; // Protect
-						Object t = stack[base + a].asObject();
-						vmSettable(t, RK(k, ARGB(i)), RK(k, ARGC(i)).asObject());
+						opSelf(k, i);
+						continue;
+					case OP_ADD: {
+						int b = ARGB(i);
+						int c = ARGC(i);
+						if (RKIsNumber(k, b) && RKIsNumber(k, c)) {
+							setNumberAt(RKNumber(k, b) + RKNumber(k, c), base + a);
+							quickenArith(proto, code, pc, i, OP_ADD_NN);
+						} else {
+							savedpc = pc; // Protect
+							opArith(k, i);
+						}
 						continue;
 					}
-					case OP_NEWTABLE: {
-						stack[base + a].setObject(new LuaTable(oFb2int(ARGB(i)), oFb2int(ARGC(i))));
+					case OP_ADD_NN: {
+						int b = base + ARGB(i);
+						int c = base + ARGC(i);
+						if (tags[b] == TNUMBER && tags[c] == TNUMBER) {
+							setNumberAt(numbers[b] + numbers[c], base + a);
+						} else {
+							savedpc = pc; // Protect
+							opArith(k, deopt(proto, code, pc, i));
+						}
+						continue;
+					}
+					case OP_ADD_NK: {
+						int b = base + ARGB(i);
+						if (tags[b] == TNUMBER) {
+							setNumberAt(numbers[b] + k[ARGC(i) & 0xff].d, base + a);
+						} else {
+							savedpc = pc; // Protect
+							opArith(k, deopt(proto, code, pc, i));
+						}
 						continue;
 					}
-					case OP_SELF: {
+					case OP_SUB: {
 						int b = ARGB(i);
-						rb = stack[base + b];
-						stack[base + a + 1].setObject(rb);
-						savedpc = pc; // Protect
-						vmGettable(rb.asObject(), RK(k, ARGC(i)), stack[base + a]);
+						int c = ARGC(i);
+						if (RKIsNumber(k, b) && RKIsNumber(k, c)) {
+							setNumberAt(RKNumber(k, b) - RKNumber(k, c), base + a);
+							quickenArith(proto, code, pc, i, OP_SUB_NN);
+						} else {
+							savedpc = pc; // Protect
+							opArith(k, i);
+						}
+						continue;
+					}
+					case OP_SUB_NN: {
+						int b = base + ARGB(i);
+						int c = base + ARGC(i);
+						if (tags[b] == TNUMBER && tags[c] == TNUMBER) {
+							setNumberAt(numbers[b] - numbers[c], base + a);
+						} else {
+							savedpc = pc; // Protect
+							opArith(k, deopt(proto, code, pc, i));
+						}
+						continue;
+					}
+					case OP_SUB_NK: {
+						int b = base + ARGB(i);
+						if (tags[b] == TNUMBER) {
+							setNumberAt(numbers[b] - k[ARGC(i) & 0xff].d, base + a);
+						} else {
+							savedpc = pc; // Protect
+							opArith(k, deopt(proto, code, pc, i));
+						}
 						continue;
 					}
-					case OP_ADD:
-						rb = RK(k, ARGB(i));
-						rc = RK(k, ARGC(i));
-						if (rb.t == TNUMBER && rc.t == TNUMBER) {
-							stack[base + a].setObject(rb.d + rc.d);
-						} else if (toNumberPair(rb, rc, NUMOP)) {
-							stack[base + a].setObject(NUMOP[0] + NUMOP[1]);
-						} else if (!call_binTM(rb, rc, stack[base + a], "__add")) {
-							throw gArithError(rb, rc);
+					case OP_MUL: {
+						int b = ARGB(i);
+						int c = ARGC(i);
+						if (RKIsNumber(k, b) && RKIsNumber(k, c)) {
+							setNumberAt(RKNumber(k, b) * RKNumber(k, c), base + a);
+							quickenArith(proto, code, pc, i, OP_MUL_NN);
+						} else {
+							savedpc = pc; // Protect
+							opArith(k, i);
 						}
 						continue;
-					case OP_SUB:
-						rb = RK(k, ARGB(i));
-						rc = RK(k, ARGC(i));
-						if (rb.t == TNUMBER && rc.t == TNUMBER) {
-							stack[base + a].setObject(rb.d - rc.d);
-						} else if (toNumberPair(rb, rc, NUMOP)) {
-							stack[base + a].setObject(NUMOP[0] - NUMOP[1]);
-						} else if (!call_binTM(rb, rc, stack[base + a], "__sub")) {
-							throw gArithError(rb, rc);
+					}
+					case OP_MUL_NN: {
+						int b = base + ARGB(i);
+						int c = base + ARGC(i);
+						if (tags[b] == TNUMBER && tags[c] == TNUMBER) {
+							setNumberAt(numbers[b] * numbers[c], base + a);
+						} else {
+							savedpc = pc; // Protect
+							opArith(k, deopt(proto, code, pc, i));
 						}
 						continue;
-					case OP_MUL:
-						rb = RK(k, ARGB(i));
-						rc = RK(k, ARGC(i));
-						if (rb.t == TNUMBER && rc.t == TNUMBER) {
-							stack[base + a].setObject(rb.d * rc.d);
-						} else if (toNumberPair(rb, rc, NUMOP)) {
-							stack[base + a].setObject(NUMOP[0] * NUMOP[1]);
-						} else if (!call_binTM(rb, rc, stack[base + a], "__mul")) {
-							throw gArithError(rb, rc);
+					}
+					case OP_MUL_NK: {
+						int b = base + ARGB(i);
+						if (tags[b] == TNUMBER) {
+							setNumberAt(numbers[b] * k[ARGC(i) & 0xff].d, base + a);
+						} else {
+							savedpc = pc; // Protect
+							opArith(k, deopt(proto, code, pc, i));
 						}
 						continue;
-					case OP_DIV:
-						rb = RK(k, ARGB(i));
-						rc = RK(k, ARGC(i));
-						if (rb.t == TNUMBER && rc.t == TNUMBER) {
-							stack[base + a].setObject(rb.d / rc.d);
-						} else if (toNumberPair(rb, rc, NUMOP)) {
-							stack[base + a].setObject(NUMOP[0] / NUMOP[1]);
-						} else if (!call_binTM(rb, rc, stack[base + a], "__div")) {
-							throw gArithError(rb, rc);
+					}
+					case OP_DIV: {
+						int b = ARGB(i);
+						int c = ARGC(i);
+						if (RKIsNumber(k, b) && RKIsNumber(k, c)) {
+							setNumberAt(RKNumber(k, b) / RKNumber(k, c), base + a);
+						} else {
+							savedpc = pc; // Protect
+							opArith(k, i);
 						}
 						continue;
-					case OP_MOD:
-						rb = RK(k, ARGB(i));
-						rc = RK(k, ARGC(i));
-						if (rb.t == TNUMBER && rc.t == TNUMBER) {
-							stack[base + a].setObject(modulus(rb.d, rc.d));
-						} else if (toNumberPair(rb, rc, NUMOP)) {
-							stack[base + a].setObject(modulus(NUMOP[0], NUMOP[1]));
-						} else if (!call_binTM(rb, rc, stack[base + a], "__mod")) {
-							throw gArithError(rb, rc);
+					}
+					case OP_MOD: {
+						int b = ARGB(i);
+						int c = ARGC(i);
+						if (RKIsNumber(k, b) && RKIsNumber(k, c)) {
+							setNumberAt(modulus(RKNumber(k, b), RKNumber(k, c)), base + a);
+						} else {
+							savedpc = pc; // Protect
+							opArith(k, i);
 						}
 						continue;
-					case OP_POW:
-						rb = RK(k, ARGB(i));
-						rc = RK(k, ARGC(i));
-						if (rb.t == TNUMBER && rc.t == TNUMBER) {
-							stack[base + a].setObject(Math.pow(rb.d, rc.d));
-						} else if (toNumberPair(rb, rc, NUMOP)) {
-							stack[base + a].setObject(Math.pow(NUMOP[0], NUMOP[1]));
-						} else if (!call_binTM(rb, rc, stack[base + a], "__pow")) {
-							throw gArithError(rb, rc);
+					}
+					case OP_POW: {
+						int b = ARGB(i);
+						int c = ARGC(i);
+						if (RKIsNumber(k, b) && RKIsNumber(k, c)) {
+							setNumberAt(Math.pow(RKNumber(k, b), RKNumber(k, c)), base + a);
+						} else {
+							savedpc = pc; // Protect
+							opArith(k, i);
 						}
 						continue;
-					case OP_UNM:
-						rb = stack[base + ARGB(i)];
-						OptionalDouble optNum;
-						if (rb.t == TNUMBER) {
-							stack[base + a].setObject(-rb.d);
-						} else if ((optNum = _toNumber(rb)).isPresent()) {
-							stack[base + a].setObject(-optNum.getAsDouble());
-						} else if (!call_binTM(rb, rb, stack[base + a], "__unm")) {
-							throw gArithError(rb, rb);
+					}
+					case OP_UNM: {
+						int b = base + ARGB(i);
+						if (tags[b] == TNUMBER) {
+							setNumberAt(-numbers[b], base + a);
+						} else {
+							savedpc = pc; // Protect
+							opArith(k, i);
 						}
 						continue;
+					}
 					case OP_NOT: {
 						// All numbers are treated as true, so no need to examine the other fields.
-						stack[base + a].setObject(stack[base + ARGB(i)].isFalse());
+						setBooleanAt(isFalseAt(base + ARGB(i)), base + a);
 						continue;
 					}
 					case OP_LEN:
-						rb = stack[base + ARGB(i)];
-						if (rb.t == TTABLE) {
-							stack[base + a].setObject(((LuaTable) rb.r).firstNilIndex());
-							continue;
-						} else if (rb.t == TSTRING) {
-							stack[base + a].setObject(((String) rb.r).length());
-							continue;
-						}
 						savedpc = pc; // Protect
-						if (!call_binTM(rb, rb, stack[base + a], "__len"))
-							throw gTypeError(rb, "get length of");
+						opLen(i);
 						continue;
-					case OP_CONCAT: {
-						int b = ARGB(i);
-						int c = ARGC(i);
+					case OP_CONCAT:
 						savedpc = pc; // Protect
-						// :todo: The compiler assumes that all
-						// stack locations _above_ b end up with junk in them.  In
-						// which case we can improve the speed of vmConcat (by not
-						// converting each stack slot, but simply using
-						// StringBuilder.append on whatever is there).
-						vmConcat(c - b + 1, c);
-						stack[base + a].setObject(stack[base + b]);
+						opConcat(i);
 						continue;
-					}
-					case OP_JMP:
+					case OP_JMP: {
+						int sbx = ARGsBx(i);
 						// dojump
-						pc += ARGsBx(i);
+						pc += sbx;
+						if (sbx < 0 && tierUp(proto) != null && hookmask == 0) {
+							savedpc = pc;
+							continue reentry;
+						}
 						continue;
+					}
 					case OP_EQ:
-						rb = RK(k, ARGB(i));
-						rc = RK(k, ARGC(i));
-						if (vmEqual(rb, rc) == (a != 0)) {
+					case OP_LT:
+					case OP_LE:
+						savedpc = pc; // Protect
+						quickenCompare(proto, code, pc, k, i);
+						if (opCompare(k, i)) {
 							// dojump
 							pc += ARGsBx(code[pc]);
 						}
 						++pc;
 						continue;
-					case OP_LT:
-						rb = RK(k, ARGB(i));
-						rc = RK(k, ARGC(i));
-						savedpc = pc; // Protect
-						if (vmLessThan(rb, rc) == (a != 0)) {
+					case OP_EQ_NUM:
+					case OP_LT_NUM:
+					case OP_LE_NUM: {
+						int b = ARGB(i);
+						int c = ARGC(i);
+						boolean result;
+						if (RKIsNumber(k, b) && RKIsNumber(k, c)) {
+							double x = RKNumber(k, b);
+							double y = RKNumber(k, c);
+							int op = OPCODE(i);
+							result = op == OP_LT_NUM ? x < y : op == OP_LE_NUM ? x <= y : x == y;
+							result = result == (a != 0);
+						} else {
+							savedpc = pc; // Protect
+							result = opCompare(k, deopt(proto, code, pc, i));
+						}
+						if (result) {
 							// dojump
 							pc += ARGsBx(code[pc]);
 						}
 						++pc;
 						continue;
-					case OP_LE:
-						rb = RK(k, ARGB(i));
-						rc = RK(k, ARGC(i));
-						savedpc = pc; // Protect
-						if (vmLessEqual(rb, rc) == (a != 0)) {
+					}
+					case OP_EQ_STR:
+					case OP_LT_STR:
+					case OP_LE_STR: {
+						int b = ARGB(i);
+						int c = ARGC(i);
+						boolean result;
+						if (RKIsString(k, b) && RKIsString(k, c)) {
+							String x = RKString(k, b);
+							String y = RKString(k, c);
+							int op = OPCODE(i);
+							// :todo: PUC-Rio use strcoll, as vmLessThan.
+							result = op == OP_EQ_STR ? x.equals(y) : op == OP_LT_STR ? x.compareTo(y) < 0 : x.compareTo(y) <= 0;
+							result = result == (a != 0);
+						} else {
+							savedpc = pc; // Protect
+							result = opCompare(k, deopt(proto, code, pc, i));
+						}
+						if (result) {
 							// dojump
 							pc += ARGsBx(code[pc]);
 						}
 						++pc;
 						continue;
+					}
+					case OP_GETTABLE_TEST:
+						savedpc = pc; // Protect
+						opGettable(k, i);
+						if (hookmask != 0)
+							continue;
+						i = code[pc++];
+						a = ARGA(i);
+						// fall through
 					case OP_TEST:
-						if (stack[base + a].isFalse() == (ARGC(i) == 0)) {
+						if (isFalseAt(base + a) == (ARGC(i) == 0)) {
 							// dojump
 							pc += ARGsBx(code[pc]);
 						}
 						++pc;
 						continue;
-					case OP_TESTSET:
-						rb = stack[base + ARGB(i)];
-						if (rb.isFalse() == (ARGC(i) == 0)) {
-							stack[base + a].setObject(rb);
+					case OP_TESTSET: {
+						int b = base + ARGB(i);
+						if (isFalseAt(b) == (ARGC(i) == 0)) {
+							copySlot(b, base + a);
 							// dojump
 							pc += ARGsBx(code[pc]);
 						}
 						++pc;
 						continue;
+					}
 					case OP_CALL: {
 						int b = ARGB(i);
 						int nresults = ARGC(i) - 1;
@@ -3053,7 +3475,7 @@ public final class Lua {
 						switch (vmPrecall(base + a, MULTRET)) {
 							case PCRLUA: {
 								// tail call: put new frame in place of previous one.
-								CallInfo ci = civ.get(civ.size() - 2);
+								CallInfo ci = civ[nci - 2];
 								int func = ci.function();
 								CallInfo fci = ci();    // Fresh CallInfo
 								int pfunc = fci.function();
@@ -3062,10 +3484,10 @@ public final class Lua {
 								int aux;        // loop index is used after loop ends
 								for (aux = 0; pfunc + aux < stackSize; ++aux) {
 									// move frame down
-									stack[func + aux].setObject(stack[pfunc + aux]);
+									copySlot(pfunc + aux, func + aux);
 								}
 								stacksetsize(func + aux);        // correct top
-								// assert stackSize == base + ((LuaFunction)stack[func]).proto().maxstacksize();
+								// assert stackSize == base + ((LuaFunction)refs[func]).proto().maxstacksize();
 								ci.tailcall(base, stackSize);
 								dec_ci();       // remove new frame.
 								continue reentry;
@@ -3097,158 +3519,531 @@ public final class Lua {
 						}
 						continue reentry;
 					}
+					case OP_SETTABLE_FORLOOP:
+						savedpc = pc; // Protect
+						opSettable(k, i);
+						if (hookmask != 0)
+							continue;
+						i = code[pc++];
+						a = ARGA(i);
+						// fall through
 					case OP_FORLOOP: {
-						double step = stack[base + a + 2].d;
-						double idx = stack[base + a].d + step;
-						double limit = stack[base + a + 1].d;
+						int ra = base + a;
+						double[] numbers = this.numbers;
+						double step = numbers[ra + 2];
+						double idx = numbers[ra] + step;
+						double limit = numbers[ra + 1];
 						if (0 < step && idx <= limit || step <= 0 && limit <= idx) {
 							// dojump
 							pc += ARGsBx(i);
-							stack[base + a].setObject(idx);    // internal index
-							stack[base + a + 3].setObject(idx);  // external index
+							numbers[ra] = idx;    // internal index
+							setNumberAt(idx, ra + 3);  // external index
+							if (tierUp(proto) != null && hookmask == 0) {
+								savedpc = pc;
+								continue reentry;
+							}
 						}
 						continue;
 					}
-					case OP_FORPREP: {
-						int init = base + a;
-						int plimit = base + a + 1;
-						int pstep = base + a + 2;
+					case OP_FORPREP:
 						savedpc = pc;       // next steps may throw errors
-						if (!_setNumber(init)) {
-							throw gRunError("'for' initial value must be a number");
-						} else if (!_setNumber(plimit)) {
-							throw gRunError("'for' limit must be a number");
-						} else if (!_setNumber(pstep)) {
-							throw gRunError("'for' step must be a number");
-						}
-						stack[init].setObject(stack[init].d - stack[pstep].d);
+						opForprep(i);
 						// dojump
 						pc += ARGsBx(i);
 						continue;
-					}
-					case OP_TFORLOOP: {
-						int cb = base + a + 3;  // call base
-						stack[cb + 2].setObject(stack[base + a + 2]);
-						stack[cb + 1].setObject(stack[base + a + 1]);
-						stack[cb].setObject(stack[base + a]);
-						stacksetsize(cb + 3);
+					case OP_TFORLOOP:
 						savedpc = pc; // Protect
-						vmCall(cb, ARGC(i));
-						stacksetsize(ci().top());
-						if (NIL != stack[cb].r) { // continue loop
-							stack[cb - 1].setObject(stack[cb]);
+						if (opTforloop(i)) { // continue loop
 							// dojump
-							pc += ARGsBx(code[pc]);
+							pc += ARGsBx(code[pc]) + 1;
+							if (tierUp(proto) != null && hookmask == 0) {
+								savedpc = pc;
+								continue reentry;
+							}
+							continue;
 						}
 						++pc;
 						continue;
-					}
 					case OP_SETLIST: {
-						int n = ARGB(i);
 						int c = ARGC(i);
-						boolean setstack = false;
-						if (0 == n) {
-							n = (stackSize - (base + a)) - 1;
-							setstack = true;
-						}
 						if (0 == c) {
 							c = code[pc++];
 						}
-						LuaTable t = (LuaTable) stack[base + a].r;
-						int last = ((c - 1) * LFIELDS_PER_FLUSH) + n;
-						// :todo: consider expanding space in table
-						for (; n > 0; n--) {
-							Object val = objectAt(base + a + n);
-							t.put(last--, val);
-						}
-						if (setstack) {
-							stacksetsize(ci().top());
-						}
+						opSetlist(i, c);
 						continue;
 					}
 					case OP_CLOSE:
 						fClose(base + a);
 						continue;
-					case OP_CLOSURE: {
-						Proto p = proto.proto()[ARGBx(i)];
-						int nup = p.nups();
-						UpVal[] up;
-						if (nup > 0) {
-							up = new UpVal[nup];
-							for (int j = 0; j < nup; j++, pc++) {
-								int in = code[pc];
-								if (OPCODE(in) == OP_GETUPVAL) {
-									up[j] = function.upVal(ARGB(in));
-								} else {
-									// assert OPCODE(in) == OP_MOVE;
-									up[j] = fFindupval(base + ARGB(in));
-								}
-							}
-						} else {
-							up = UpVal.EMPTY;
-						}
-						stack[base + a].setObject(new LuaFunction(p, up, function.env()));
+					case OP_CLOSURE:
+						pc = opClosure(function, i, pc);
 						continue;
-					}
-					case OP_VARARG: {
-						int b = ARGB(i) - 1;
-						int n = base - ci().function() - function.proto().numparams() - 1;
-						if (b == MULTRET) {
-							// :todo: Protect
-							// :todo: check stack
-							b = n;
-							stacksetsize(base + a + n);
-						}
-						for (int j = 0; j < b; ++j) {
-							if (j < n) {
-								stack[base + a + j].setObject(stack[base - n + j]);
-							} else {
-								stack[base + a + j].setObject(NIL);
-							}
-						}
+					case OP_VARARG:
+						opVararg(function, i);
 						continue;
-					}
 				} /* switch */
 			} /* while */
 		} /* reentry: while */
 	}
 
+	/**
+	 * Counts a call to, or a loop iteration in, a function, compiling it
+	 * once it is hot.
+	 *
+	 * @return the compiled code for <var>p</var>, if there is any.
+	 */
+	private static Jit.Code tierUp(Proto p) {
+		Jit.Code compiled = p.compiled;
+		if (compiled == null && ++p.hotness == Jit.THRESHOLD)
+			compiled = p.compiled = Jit.compile(p);
+		return compiled;
+	}
+
+	// The bodies of the more involved VM instructions, shared by
+	// vmExecute and the code compiled by Jit.  Each executes instruction
+	// i of the running Lua function, whose registers start at base; the
+	// caller does any Protect.
+
+	/**
+	 * The slot in an environment table of the global named by an
+	 * OP_GETGLOBAL or OP_SETGLOBAL instruction, which stays valid while
+	 * the function has that environment, and the table has that layout.
+	 */
+	static final class GlobalCache {
+		final LuaTable env;
+		final int layout;
+		final int slot;
+
+		GlobalCache(LuaTable env, int slot) {
+			this.env = env;
+			this.layout = env.layout();
+			this.slot = slot;
+		}
+	}
+
+	/**
+	 * @return the inline cache of the instruction at <var>pc</var> if
+	 * it's valid for <var>env</var>, otherwise null.
+	 */
+	private static GlobalCache globalCache(LuaFunction function, LuaTable env, int pc) {
+		GlobalCache[] globals = function.proto().globals;
+		if (globals == null)
+			return null;
+		GlobalCache cache = globals[pc];
+		return cache != null && cache.env == env && cache.layout == env.layout() ? cache : null;
+	}
+
+	/**
+	 * Fills the inline cache of the instruction at <var>pc</var>, if
+	 * <var>key</var> is in <var>env</var>.  A global set to nil keeps its
+	 * slot, so the cache can already hold it; only a cache for another
+	 * environment, layout or slot is replaced.
+	 */
+	private static void fillGlobalCache(LuaFunction function, LuaTable env, int pc, Object key) {
+		int slot = env.slotOf(key);
+		if (slot < 0)
+			return;
+		Proto p = function.proto();
+		GlobalCache[] globals = p.globals;
+		if (globals == null)
+			p.globals = globals = new GlobalCache[p.code.length];
+		GlobalCache cache = globals[pc];
+		if (cache == null || cache.env != env || cache.layout != env.layout() || cache.slot != slot)
+			globals[pc] = new GlobalCache(env, slot);
+	}
+
+	/**
+	 * As the other op helpers, but the pc of the instruction, for its
+	 * inline cache, is taken from savedpc, which both the interpreter
+	 * and compiled code set before a global access.
+	 */
+	void opGetglobal(LuaFunction function, Slot[] k, int i) {
+		// assert k[ARGBx(i)] instance of String;
+		LuaTable env = function.env();
+		int pc = savedpc - 1;
+		GlobalCache cache = globalCache(function, env, pc);
+		if (cache != null) {
+			Object v = env.slotValue(cache.slot);
+			if (v != NIL) {
+				setObjectAt(v, base + ARGA(i));
+				return;
+			}
+		}
+		Slot key = k[ARGBx(i)];
+		setObjectAt(vmGettable(env, key), base + ARGA(i));
+		fillGlobalCache(function, env, pc, key.asObject());
+	}
+
+	void opGettable(Slot[] k, int i) {
+		Object t = objectAt(base + ARGB(i));
+		setObjectAt(vmGettable(t, RK(k, ARGC(i), rkc)), base + ARGA(i));
+	}
+
+	void opSetglobal(LuaFunction function, Slot[] k, int i) {
+		LuaTable env = function.env();
+		int pc = savedpc - 1;
+		GlobalCache cache = globalCache(function, env, pc);
+		// An existing (non-nil) key never consults __newindex.
+		if (cache != null && env.slotValue(cache.slot) != NIL) {
+			env.slotValue(cache.slot, objectAt(base + ARGA(i)));
+			return;
+		}
+		Slot key = k[ARGBx(i)];
+		vmSettable(env, key, objectAt(base + ARGA(i)));
+		fillGlobalCache(function, env, pc, key.asObject());
+	}
+
+	void opSettable(Slot[] k, int i) {
+		Object t = objectAt(base + ARGA(i));
+		vmSettable(t, RK(k, ARGB(i), rkb), RKObject(k, ARGC(i)));
+	}
+
+	void opSelf(Slot[] k, int i) {
+		int a = base + ARGA(i);
+		int b = base + ARGB(i);
+		Object t = objectAt(b);
+		copySlot(b, a + 1);
+		setObjectAt(vmGettable(t, RK(k, ARGC(i), rkc)), a);
+	}
+
+	/**
+	 * The slow path of OP_ADD to OP_UNM, for operands that are not both
+	 * numbers.
+	 */
+	void opArith(Slot[] k, int i) {
+		int op = OPCODE(i);
+		Slot rb = RK(k, ARGB(i), rkb);
+		Slot rc = op == OP_UNM ? rb : RK(k, ARGC(i), rkc);
+		vmArith(rb, rc, base + ARGA(i), TM_ADD + (op - OP_ADD));
+	}
+
+	void opLen(int i) {
+		int a = base + ARGA(i);
+		int b = base + ARGB(i);
+		switch (tags[b]) {
+			case TTABLE:
+				setNumberAt(((LuaTable) refs[b]).firstNilIndex(), a);
+				return;
+			case TSTRING:
+				setNumberAt(stringLength(b), a);
+				return;
+		}
+		Slot rb = slotAt(b, rkb);
+		if (!call_binTM(rb, rb, a, TM_LEN))
+			throw gTypeError(rb, "get length of");
+	}
+
+	void opConcat(int i) {
+		int b = ARGB(i);
+		int c = ARGC(i);
+		// :todo: The compiler assumes that all
+		// stack locations _above_ b end up with junk in them.  In
+		// which case we can improve the speed of vmConcat (by not
+		// converting each stack slot, but simply using
+		// StringBuilder.append on whatever is there).
+		vmConcat(c - b + 1, c);
+		copySlot(base + b, base + ARGA(i));
+	}
+
+	/**
+	 * OP_EQ, OP_LT and OP_LE.
+	 *
+	 * @return whether to take the jump that follows the instruction.
+	 */
+	boolean opCompare(Slot[] k, int i) {
+		Slot rb = RK(k, ARGB(i), rkb);
+		Slot rc = RK(k, ARGC(i), rkc);
+		boolean result;
+		switch (OPCODE(i)) {
+			case OP_EQ:
+				result = vmEqual(rb, rc);
+				break;
+			case OP_LT:
+				result = vmLessThan(rb, rc);
+				break;
+			default:
+				// assert OPCODE(i) == OP_LE;
+				result = vmLessEqual(rb, rc);
+		}
+		return result == (ARGA(i) != 0);
+	}
+
+	void opForprep(int i) {
+		int init = base + ARGA(i);
+		int plimit = init + 1;
+		int pstep = init + 2;
+		if (!_setNumber(init)) {
+			throw gRunError("'for' initial value must be a number");
+		} else if (!_setNumber(plimit)) {
+			throw gRunError("'for' limit must be a number");
+		} else if (!_setNumber(pstep)) {
+			throw gRunError("'for' step must be a number");
+		}
+		numbers[init] -= numbers[pstep];
+	}
+
+	/**
+	 * @return whether the loop continues, in which case the jump that
+	 * follows the instruction is to be taken.
+	 */
+	boolean opTforloop(int i) {
+		int a = base + ARGA(i);
+		int cb = a + 3;  // call base
+		if (tags[a + 1] == TTABLE && hookmask == 0) {
+			int more = iterate(a, ARGC(i));
+			if (more >= 0)
+				return more != 0;
+		}
+		copySlot(a + 2, cb + 2);
+		copySlot(a + 1, cb + 1);
+		copySlot(a, cb);
+		stacksetsize(cb + 3);
+		vmCall(cb, ARGC(i));
+		stacksetsize(ci().top());
+		if (tags[cb] == TNIL)
+			return false;
+		copySlot(cb, cb - 1);
+		return true;
+	}
+
+	/**
+	 * Takes a step of the generic for loop at <var>a</var> without
+	 * calling its generator, if that's the one of pairs (or next itself)
+	 * or ipairs, which don't use metamethods, over a table.  As the call
+	 * would, it sets the <var>c</var> loop variables and the control
+	 * variable.
+	 *
+	 * @return 1 if the loop continues, 0 if it's over, or -1 if the
+	 * generator has to be called after all.
+	 */
+	private int iterate(int a, int c) {
+		Object f = refs[a];
+		LuaTable t = (LuaTable) refs[a + 1];
+		int cb = a + 3;
+		if (f == BaseLib.PAIRS_AUX_FUN || f == BaseLib.NEXT_FUN) {
+			int k = t.index(objectAt(a + 2));
+			if (k == -2)
+				return -1;  // let next raise the error
+			k = t.next(k + 1);
+			if (k < 0)
+				return 0;
+			setObjectAt(t.keyAt(k), cb);
+			if (c > 1)
+				setObjectAt(t.valueAt(k), cb + 1);
+		} else if (f == BaseLib.IPAIRS_AUX_FUN) {
+			double d = numbers[a + 2];
+			int k = (int) d + 1;
+			if (tags[a + 2] != TNUMBER || k - 1 != d || k < 1)
+				return -1;
+			Object v = t.get(k);
+			if (v == NIL)
+				return 0;
+			setNumberAt(k, cb);
+			if (c > 1)
+				setObjectAt(v, cb + 1);
+		} else {
+			return -1;
+		}
+		for (int n = 2; n < c; ++n)
+			setNilAt(cb + n);
+		copySlot(cb, a + 2);
+		return 1;
+	}
+
+	/**
+	 * @param c the block number, from C or the instruction that follows.
+	 */
+	void opSetlist(int i, int c) {
+		int a = base + ARGA(i);
+		int n = ARGB(i);
+		boolean setstack = false;
+		if (0 == n) {
+			n = (stackSize - a) - 1;
+			setstack = true;
+		}
+		LuaTable t = (LuaTable) refs[a];
+		int last = ((c - 1) * LFIELDS_PER_FLUSH) + n;
+		// The whole range goes into the array part, which is grown in one
+		// step if the constructor's size hint fell short (as it does for a
+		// trailing call or '...').
+		Object[] array = t.arrayFor(last);
+		for (int j = last - n, from = a + 1; j < last; ++j, ++from)
+			array[j] = objectAt(from);
+		if (setstack) {
+			stacksetsize(ci().top());
+		}
+	}
+
+	/**
+	 * @param pc the index of the pseudo-instructions that follow the
+	 *           instruction, one per upvalue.
+	 * @return the index of the instruction after them.
+	 */
+	int opClosure(LuaFunction function, int i, int pc) {
+		Proto p = function.proto().proto()[ARGBx(i)];
+		int[] code = function.proto().code();
+		int nup = p.nups();
+		if (nup == 0) {
+			LuaTable env = function.env();
+			LuaFunction f = p.closure;
+			if (f == null || f.env() != env) {
+				f = new LuaFunction(p, UpVal.EMPTY, env);
+				if (shareClosures)
+					p.closure = f;
+			}
+			setRefAt(f, TFUNCTION, base + ARGA(i));
+			return pc;
+		}
+		UpVal[] up = new UpVal[nup];
+		for (int j = 0; j < nup; j++, pc++) {
+			int in = code[pc];
+			if (OPCODE(in) == OP_GETUPVAL) {
+				up[j] = function.upVal(ARGB(in));
+			} else {
+				// assert OPCODE(in) == OP_MOVE;
+				up[j] = fFindupval(base + ARGB(in));
+			}
+		}
+		setRefAt(new LuaFunction(p, up, function.env()), TFUNCTION, base + ARGA(i));
+		return pc;
+	}
+
+	void opVararg(LuaFunction function, int i) {
+		int a = base + ARGA(i);
+		int b = ARGB(i) - 1;
+		int n = base - ci().function() - function.proto().numparams() - 1;
+		if (b == MULTRET) {
+			// :todo: Protect
+			// :todo: check stack
+			b = n;
+			stacksetsize(a + n);
+		}
+		for (int j = 0; j < b; ++j) {
+			if (j < n) {
+				copySlot(base - n + j, a + j);
+			} else {
+				setNilAt(a + j);
+			}
+		}
+	}
+
+	/**
+	 * OP_CALL for compiled code.  Unlike {@link #vmExecute}, which
+	 * continues with a called Lua function in the same loop, this runs it
+	 * to completion in a nested loop so that the compiled code can carry
+	 * on after the call; up to {@link Jit#MAX_DEPTH} deep, after which the
+	 * call is left to the interpreter.
+	 *
+	 * @param pc the index of the instruction after the call.
+	 * @return 0 to continue with the compiled code, or else a value for it
+	 * to return (see {@link Jit.Code#execute}).
+	 */
+	int jitCall(int i, int pc) {
+		int a = ARGA(i);
+		int b = ARGB(i);
+		int nresults = ARGC(i) - 1;
+		if (b != 0) {
+			stacksetsize(base + a + b);
+		}
+		savedpc = pc;
+		switch (vmPrecall(base + a, nresults)) {
+			case PCRLUA:
+				if (jitDepth == Jit.MAX_DEPTH)
+					return Jit.CALL;
+				++jitDepth;
+				try {
+					vmExecute(1);
+				} finally {
+					--jitDepth;
+				}
+				if (status == YIELD)
+					return Jit.YIELD;
+				break;
+			case PCRJ:
+				break;
+			default:
+				return Jit.YIELD;
+		}
+		if (nresults >= 0) {
+			stacksetsize(ci().top());
+		}
+		// A hook set by the callee is only run by the interpreter.
+		return hookmask == 0 ? 0 : pc;
+	}
+
 	/**
 	 * Equivalent of luaV_gettable.
+	 *
+	 * @return the value of <code>t[key]</code>.
 	 */
-	private void vmGettable(Object t, Slot key, Slot val) {
+	private Object vmGettable(Object t, Slot key) {
 		Object tm;
 		for (int loop = 0; loop < MAX_TAG_LOOP; ++loop) {
 			// 't' is a table?
 			if (t instanceof LuaTable) {
 				LuaTable h = (LuaTable) t;
-				h.get(key, SPARE_SLOT);
-
-				if (SPARE_SLOT.r != NIL) {
-					val.setObject(SPARE_SLOT);
-					return;
-				}
-				tm = tagmethod(h, "__index");
-				if (tm == NIL) {
-					val.setObject(NIL);
-					return;
-				}
+				Object v = h.get(key);
+				if (v != NIL)
+					return v;
+				tm = fasttm(h.metatable(), TM_INDEX);
+				if (tm == NIL)
+					return NIL;
 				// else will try the tag method
 			} else {
-				tm = tagmethod(t, "__index");
+				tm = tagmethod(t, TM_INDEX);
 				if (tm == NIL)
 					throw gTypeError(t, "index");
 			}
-			if (isFunction(tm)) {
-				SPARE_SLOT.setObject(t);
-				callTMres(val, tm, SPARE_SLOT, key);
-				return;
-			}
+			if (isFunction(tm))
+				return callTMres(tm, t, key);
 			t = tm;     // else repeat with 'tm'
 		}
 		throw gRunError("loop in gettable");
 	}
 
+	/**
+	 * Equivalent of Arith in lvm.c.  The slow path of the arithmetic
+	 * opcodes, for when the operands are not both numbers.
+	 *
+	 * @param res   absolute stack index of result.
+	 * @param event TM_ADD to TM_UNM, which also selects the operation.
+	 */
+	private void vmArith(Slot rb, Slot rc, int res, int event) {
+		if (toNumberPair(rb, rc, numop)) {
+			double x = numop[0];
+			double y = numop[1];
+			double r;
+			switch (event) {
+				case TM_ADD:
+					r = x + y;
+					break;
+				case TM_SUB:
+					r = x - y;
+					break;
+				case TM_MUL:
+					r = x * y;
+					break;
+				case TM_DIV:
+					r = x / y;
+					break;
+				case TM_MOD:
+					r = modulus(x, y);
+					break;
+				case TM_POW:
+					r = Math.pow(x, y);
+					break;
+				case TM_UNM:
+					r = -x;
+					break;
+				default:
+					throw new IllegalArgumentException(TM_NAMES[event]);
+			}
+			setNumberAt(r, res);
+		} else if (!call_binTM(rb, rc, res, event)) {
+			throw gArithError(rb, rc);
+		}
+	}
+
 	/**
 	 * Equivalent of luaV_lessthan.
 	 */
@@ -3269,7 +4064,7 @@ public final class Lua {
 		} else if (l.r.getClass() != r.r.getClass()) {
 			throw gOrderError(l, r);
 		}
-		int res = call_orderTM(l, r, "__lt");
+		int res = call_orderTM(l, r, TM_LT);
 		if (res >= 0)
 			return res != 0;
 		throw gOrderError(l, r);
@@ -3294,10 +4089,10 @@ public final class Lua {
 		} else if (l.r.getClass() != r.r.getClass()) {
 			throw gOrderError(l, r);
 		}
-		int res = call_orderTM(l, r, "__le");       // first try 'le'
+		int res = call_orderTM(l, r, TM_LE);       // first try 'le'
 		if (res >= 0)
 			return res != 0;
-		res = call_orderTM(r, l, "__lt");   // else try 'lt'
+		res = call_orderTM(r, l, TM_LT);   // else try 'lt'
 		if (res >= 0)
 			return res == 0;
 		throw gOrderError(l, r);
@@ -3327,7 +4122,7 @@ public final class Lua {
 		// The movement is always downwards, so copying from the top-most
 		// result first is always correct.
 		while (i != 0 && firstResult < top) {
-			stack[res].setObject(stack[firstResult]);
+			copySlot(firstResult, res);
 			++res;
 			++firstResult;
 			i--;
@@ -3338,7 +4133,7 @@ public final class Lua {
 		// :todo: consider using two stacksetsize calls to nil out
 		// remaining required results.
 		while (i-- > 0) {
-			stack[res++].setObject(NIL);
+			setNilAt(res++);
 		}
 		stacksetsize(res);
 		return wanted != MULTRET;
@@ -3352,7 +4147,7 @@ public final class Lua {
 	 * @param r    number of results expected.
 	 */
 	private int vmPrecall(int func, int r) {
-		Object faso = stack[func].r; // Function AS Object
+		Object faso = refs[func]; // Function AS Object
 		if (!isFunction(faso)) {
 			faso = tryfuncTM(func);
 		}
@@ -3418,19 +4213,14 @@ public final class Lua {
 			Object tm;
 			if (t instanceof LuaTable) { // 't' is a table
 				LuaTable h = (LuaTable) t;
-				h.get(key, SPARE_SLOT);
-				if (SPARE_SLOT.r != NIL) {   // result is not nil?
-					h.put(this, key, val);
-					return;
-				}
-				tm = tagmethod(h, "__newindex");
-				if (tm == NIL) {  // or no TM?
+				tm = fasttm(h.metatable(), TM_NEWINDEX);
+				if (tm == NIL || h.get(key) != NIL) {   // no TM or result is not nil?
 					h.put(this, key, val);
 					return;
 				}
 				// else will try the tag method
 			} else {
-				tm = tagmethod(t, "__newindex");
+				tm = tagmethod(t, TM_NEWINDEX);
 				if (tm == NIL)
 					throw gTypeError(t, "index");
 			}
@@ -3447,7 +4237,7 @@ public final class Lua {
 	 * Printf format item used to convert numbers to strings (in {@link
 	 * #vmToString}).  The initial '%' should be not specified.
 	 */
-	private static final String NUMBER_FMT = ".14g";
+	private static final FormatItem NUMBER_FMT = new FormatItem(".14g", 0);
 
 	private static String vmToString(Object o) {
 		if (o instanceof String)
@@ -3461,15 +4251,8 @@ public final class Lua {
 		// ".0") but this does not give an accurate emulation of the PUC-Rio
 		// behaviour which Intuwave require.  So now we use "%.14g" like
 		// PUC-Rio.
-		// :todo: consider optimisation of making FormatItem an immutable
-		// class and keeping a static reference to the required instance
-		// (which never changes).  A possible half-way house would be to
-		// create a copied instance from an already create prototype
-		// instance which would be faster than parsing the format string
-		// each time.
-		FormatItem f = new FormatItem(null, NUMBER_FMT);
 		StringBuilder b = new StringBuilder();
-		f.formatFloat(b, (Double) o);
+		NUMBER_FMT.formatFloat(b, (Double) o);
 		return b.toString();
 	}
 
@@ -3486,9 +4269,10 @@ public final class Lua {
 		int fixed = stackSize - actual;  // first fixed argument
 		int newbase = stackSize; // final position of first argument
 		for (int i = 0; i < nfixargs; ++i) {
-			// :todo: arraycopy?
-			push(stack[fixed + i]);
-			stack[fixed + i].setObject(NIL);
+			int top = stackSize;
+			stacksetsize(top + 1);
+			copySlot(fixed + i, top);
+			setNilAt(fixed + i);
 		}
 		return newbase;
 	}
@@ -3501,20 +4285,20 @@ public final class Lua {
 	 * @param res absolute stack index of result.
 	 * @return false if no tagmethod, true otherwise
 	 */
-	private boolean call_binTM(Slot p1, Slot p2, Slot res, String event) {
+	private boolean call_binTM(Slot p1, Slot p2, int res, int event) {
 		Object tm = tagmethod(p1.asObject(), event);        // try first operand
 		if (isNil(tm))
 			tm = tagmethod(p2.asObject(), event);     // try second operand
 		if (!isFunction(tm))
 			return false;
-		callTMres(res, tm, p1, p2);
+		setObjectAt(callTMres(tm, p1, p2), res);
 		return true;
 	}
 
 	/**
 	 * @return -1 if no tagmethod, 0 false, 1 true
 	 */
-	private int call_orderTM(Slot p1, Slot p2, String event) {
+	private int call_orderTM(Slot p1, Slot p2, int event) {
 		Object tm1 = tagmethod(p1.asObject(), event);
 		// not metamethod
 		if (tm1 == NIL)
@@ -3523,9 +4307,7 @@ public final class Lua {
 		// different metamethods?
 		if (!oRawEqual(tm1, tm2))
 			return -1;
-		Slot s = new Slot();
-		callTMres(s, tm1, p1, p2);
-		return s.isFalse() ? 0 : 1;
+		return toBoolean(callTMres(tm1, p1, p2)) ? 1 : 0;
 	}
 
 	private void callTM(Object f, Object p1, Slot p2, Object p3) {
@@ -3536,13 +4318,17 @@ public final class Lua {
 		vmCall(stackSize - 4, 0);
 	}
 
-	private void callTMres(Slot res, Object f, Slot p1, Slot p2) {
+	/**
+	 * @return the result of the tagmethod.
+	 */
+	private Object callTMres(Object f, Slot p1, Slot p2) {
 		push(f);
 		push(p1);
 		push(p2);
 		vmCall(stackSize - 3, 1);
-		res.setObject(stack[stackSize - 1]);
+		Object res = objectAt(stackSize - 1);
 		pop(1);
+		return res;
 	}
 
 	/**
@@ -3550,26 +4336,36 @@ public final class Lua {
 	 * Textuall identical, but a different (overloaded) push method is
 	 * invoked.
 	 */
-	private void callTMres(Slot res, Object f, Object p1, Object p2) {
+	private Object callTMres(Object f, Object p1, Object p2) {
+		push(f);
+		push(p1);
+		push(p2);
+		vmCall(stackSize - 3, 1);
+		Object res = objectAt(stackSize - 1);
+		pop(1);
+		return res;
+	}
+
+	/**
+	 * Overloaded version of callTMres used by {@link #vmGettable}.
+	 */
+	private Object callTMres(Object f, Object p1, Slot p2) {
 		push(f);
 		push(p1);
 		push(p2);
 		vmCall(stackSize - 3, 1);
-		res.setObject(stack[stackSize - 1]);
+		Object res = objectAt(stackSize - 1);
 		pop(1);
+		return res;
 	}
 
-	private Object get_compTM(LuaTable mt1, LuaTable mt2, String event) {
-		if (mt1 == null)
-			return NIL;
-		Object tm1 = mt1.get(event);
+	private Object get_compTM(LuaTable mt1, LuaTable mt2, int event) {
+		Object tm1 = fasttm(mt1, event);
 		if (isNil(tm1))
 			return NIL;       // no metamethod
 		if (mt1 == mt2)
 			return tm1;       // same metatables => same metamethods
-		if (mt2 == null)
-			return NIL;
-		Object tm2 = mt2.get(event);
+		Object tm2 = fasttm(mt2, event);
 		if (isNil(tm2))
 			return NIL;       // no metamethod
 		if (oRawEqual(tm1, tm2))
@@ -3580,17 +4376,29 @@ public final class Lua {
 	/**
 	 * Gets tagmethod for object.
 	 *
+	 * @param event one of the TM_* constants.
+	 * @return method or nil.
+	 */
+	private Object tagmethod(Object o, int event) {
+		return fasttm(getMetatable(o), event);
+	}
+
+	/**
+	 * Equivalent of the fasttm macro: gets a metamethod from a metatable,
+	 * which is usually a bit test when it is absent.
+	 *
+	 * @param mt a metatable, or null.
 	 * @return method or nil.
 	 */
-	private Object tagmethod(Object o, String event) {
-		return getMetafield(o, event);
+	private static Object fasttm(LuaTable mt, int event) {
+		return mt == null ? NIL : mt.metamethod(event);
 	}
 
 	/**
 	 * Computes the result of Lua's modules operator (%).  Note that this
 	 * modulus operator does not match Java's %.
 	 */
-	private static double modulus(double x, double y) {
+	static double modulus(double x, double y) {
 		return x - Math.floor(x / y) * y;
 	}
 
@@ -3606,41 +4414,24 @@ public final class Lua {
 		// has at least the required size number of elements.
 		// :todo: consider policies where the stack may also shrink.
 		int oldSize = stackSize;
-		int oldArrayLength = stack.length;
+		int oldArrayLength = tags.length;
 		if (n > oldArrayLength) {
 			int newLength = Math.max(n, oldArrayLength + 1 + (oldArrayLength + 1 >> 1));
-			Slot[] newStack = new Slot[newLength];
 			// Currently the stack only ever grows, so the number of items to
 			// copy is the length of the old stack.
-			System.arraycopy(stack, 0, newStack, 0, oldArrayLength);
-			stack = newStack;
+			tags = Arrays.copyOf(tags, newLength);
+			numbers = Arrays.copyOf(numbers, newLength);
+			refs = Arrays.copyOf(refs, newLength);
 		}
 		stackSize = n;
 		// Nilling out.  The VM requires that fresh stack slots allocated
-		// for a new function activation are initialised to nil (which is
-		// Lua.NIL, which is not Java null).
-		// There are basically two approaches: nil out when the stack grows,
-		// or nil out when it shrinks.  Nilling out when the stack grows is
-		// slightly simpler, but nilling out when the stack shrinks means
-		// that semantic garbage is not retained by the GC.
-		// We nil out slots when the stack shrinks, but we also need to make
-		// sure they are nil initially.
-		// In order to avoid nilling the entire array when we allocate one
-		// we maintain a stackhighwater which is 1 more than that largest
-		// stack slot that has been nilled.  We use this to nil out stacks
-		// slow when we grow.
-		if (n <= oldSize) {
-			Slot[] stack = this.stack;
-			// when shrinking
-			for (int i = n; i < oldSize; ++i)
-				stack[i].setObject(NIL);
-		}
-		if (n > stackhighwater) {
-			Slot[] stack = this.stack;
-			// when growing above stackhighwater for the first time
-			for (int i = stackhighwater; i < n; ++i)
-				stack[i] = new Slot(NIL);
-			stackhighwater = n;
+		// for a new function activation are initialised to nil.
+		// Slots of a freshly allocated stack are already nil (zeroed
+		// tags), so we nil out slots when the stack shrinks, which also
+		// means that semantic garbage is not retained by the GC.
+		if (n < oldSize) {
+			Arrays.fill(tags, n, oldSize, (byte) TNIL);
+			Arrays.fill(refs, n, oldSize, null);
 		}
 	}
 
@@ -3650,7 +4441,7 @@ public final class Lua {
 	private void stackAdd(Object o) {
 		int i = stackSize;
 		stacksetsize(i + 1);
-		stack[i].setObject(o);
+		setObjectAt(o, i);
 	}
 
 	/**
@@ -3659,19 +4450,17 @@ public final class Lua {
 	private void push(Slot p) {
 		int i = stackSize;
 		stacksetsize(i + 1);
-		stack[i].setObject(p);
+		setSlotAt(p, i);
 	}
 
 	private void stackInsertAt(Object o, int i) {
 		int n = stackSize - i;
 		stacksetsize(stackSize + 1);
-		// Copy each slot N into its neighbour N+1.  Loop proceeds from high
-		// index slots to lower index slots.
-		// A loop from n to 1 copies n slots.
-		Slot[] stack = this.stack;
-		for (int j = n; j >= 1; --j)
-			stack[i + j].setObject(stack[i + j - 1]);
-		stack[i].setObject(o);
+		// Move slots [i, i + n) up by one.
+		System.arraycopy(tags, i, tags, i + 1, n);
+		System.arraycopy(numbers, i, numbers, i + 1, n);
+		System.arraycopy(refs, i, refs, i + 1, n);
+		setObjectAt(o, i);
 	}
 
 	/**
@@ -3719,28 +4508,19 @@ public final class Lua {
 		return OptionalDouble.empty();
 	}
 
-	/**
-	 * Note: This actually sets the stack's value, and doesn't return it.
-	 * If you wish to return the number, and not set it, simply call {@link #_toNumber(Slot)}
-	 *
-	 * @param o - The slot whose value will be determined, and attempted to convert to a number.
-	 * @return True, if the number was parsed correctly, and if it was set into the slot correctly.
-	 */
-	static boolean _setNumber(Slot o) {
-		OptionalDouble number = _toNumber(o);
-		if (number.isPresent()) {
-			o.setObject(number.getAsDouble());
-			return true;
-		}
-		return false;
-	}
-
 	/**
 	 * @param idx - The absolute stack index that the slot can be found at.
 	 * @return The number that was parsed from the slot at the given index, if any. Be sure to check isPresent where relevant.
 	 */
 	OptionalDouble _toNumber(int idx) {
-		return _toNumber(stack[idx]);
+		switch (tags[idx]) {
+			case TNUMBER:
+				return OptionalDouble.of(numbers[idx]);
+			case TSTRING:
+				return parseDouble(stringAt(idx));
+			default:
+				return OptionalDouble.empty();
+		}
 	}
 
 	/**
@@ -3751,7 +4531,14 @@ public final class Lua {
 	 * @return True, if the number was parsed correctly, and if it was set into the slot correctly.
 	 */
 	boolean _setNumber(int idx) {
-		return _setNumber(stack[idx]);
+		if (tags[idx] == TNUMBER)
+			return true;
+		OptionalDouble number = _toNumber(idx);
+		if (number.isPresent()) {
+			setNumberAt(number.getAsDouble(), idx);
+			return true;
+		}
+		return false;
 	}
 
 	/**
@@ -3778,15 +4565,20 @@ public final class Lua {
 	 * (the number will have been converted to a string), false otherwise.
 	 * Note this actually modifies the element stored at <var>idx</var> in
 	 * the stack (in faithful emulation of the PUC-Rio code), and when it
-	 * returns <code>true</code>, <code>stack[idx].r instanceof String</code>
-	 * is true.
+	 * returns <code>true</code>, the element is tagged {@link #TSTRING}
+	 * and <code>refs[idx]</code> is either a {@link String} or a
+	 * {@link Rope}, so callers must not cast it to String.
 	 */
 	private boolean _toString(int idx) {
-		Object o = objectAt(idx);
-		if (!isString(o))
-			return false;
-		stack[idx].setObject(vmToString(o));
-		return true;
+		switch (tags[idx]) {
+			case TSTRING:
+				return true;
+			case TNUMBER:
+				setRefAt(vmToString(numbers[idx]), TSTRING, idx);
+				return true;
+			default:
+				return false;
+		}
 	}
 
 	/**
@@ -3795,9 +4587,9 @@ public final class Lua {
 	 * @param func absolute stack index of the function object.
 	 */
 	private Object tryfuncTM(int func) {
-		Object tm = tagmethod(stack[func].asObject(), "__call");
+		Object tm = tagmethod(objectAt(func), TM_CALL);
 		if (!isFunction(tm))
-			throw gTypeError(stack[func], "call");
+			throw gTypeError(objectAt(func), "call");
 		stackInsertAt(tm, func);
 		return tm;
 	}
@@ -3816,19 +4608,34 @@ public final class Lua {
 //	}
 
 	/**
-	 * Make new CallInfo record.
+	 * Push a CallInfo record, reusing one left by an earlier call.
 	 */
 	private CallInfo inc_ci(int func, int baseArg, int top, int nresults) {
-		CallInfo ci = new CallInfo(func, baseArg, top, nresults);
-		civ.add(ci);
+		CallInfo[] civ = this.civ;
+		if (nci == civ.length)
+			civ = growCI();
+		CallInfo ci = civ[nci++];
+		ci.set(func, baseArg, top, nresults);
 		return ci;
 	}
 
 	/**
-	 * Pop topmost CallInfo record and return it.
+	 * Doubles the number of CallInfo records, as luaD_growCI.
+	 */
+	private CallInfo[] growCI() {
+		int size = civ.length;
+		CallInfo[] civ = Arrays.copyOf(this.civ, size * 2);
+		for (int i = size; i < civ.length; i++)
+			civ[i] = new CallInfo();
+		return this.civ = civ;
+	}
+
+	/**
+	 * Pop topmost CallInfo record and return it.  The record stays valid
+	 * only until the next call to {@link #inc_ci}, which reuses it.
 	 */
 	private CallInfo dec_ci() {
-		return civ.pollLast();
+		return civ[--nci];
 	}
 
 	/**
@@ -3846,8 +4653,39 @@ public final class Lua {
 	 *
 	 * @param idx absolute index into stack (0 <= idx < stackSize).
 	 */
-	private Object objectAt(int idx) {
-		return stack[idx].asObject();
+	Object objectAt(int idx) {
+		switch (tags[idx]) {
+			case TNIL:
+				return NIL;
+			case TNUMBER:
+				return numbers[idx];
+			case TSTRING:
+				return stringAt(idx);
+			default:
+				return refs[idx];
+		}
+	}
+
+	/**
+	 * Return the string stack element, turning it from a {@link Rope}
+	 * into a String, in place, if it is one.
+	 *
+	 * @param idx absolute index into stack of a {@link #TSTRING} element.
+	 */
+	String stringAt(int idx) {
+		Object o = refs[idx];
+		if (o instanceof Rope)
+			refs[idx] = o = o.toString();
+		return (String) o;
+	}
+
+	/**
+	 * The length of the string stack element, without turning a
+	 * {@link Rope} into a String.
+	 */
+	private int stringLength(int idx) {
+		Object o = refs[idx];
+		return o instanceof Rope ? ((Rope) o).length() : ((String) o).length();
 	}
 
 	/**
@@ -3856,7 +4694,108 @@ public final class Lua {
 	 * @param o   Object to store.
 	 * @param idx absolute index into stack (0 <= idx < stackSize).
 	 */
-	private void setObjectAt(Object o, int idx) {
-		stack[idx].setObject(o);
+	void setObjectAt(Object o, int idx) {
+		if (o instanceof Double) {
+			setNumberAt((Double) o, idx);
+		} else if (o instanceof Boolean) {
+			setBooleanAt((Boolean) o, idx);
+		} else if (o == NIL) {
+			setNilAt(idx);
+		} else {
+			setRefAt(o, type(o), idx);
+		}
+	}
+
+	private void setNumberAt(double d, int idx) {
+		tags[idx] = TNUMBER;
+		numbers[idx] = d;
+		refs[idx] = null;
+	}
+
+	void setBooleanAt(boolean b, int idx) {
+		tags[idx] = TBOOLEAN;
+		refs[idx] = b ? Boolean.TRUE : Boolean.FALSE;
+	}
+
+	private void setNilAt(int idx) {
+		tags[idx] = TNIL;
+		refs[idx] = null;
+	}
+
+	/**
+	 * Sets the stack element to a reference value, whose type,
+	 * <var>t</var>, is already known.
+	 */
+	void setRefAt(Object o, int t, int idx) {
+		tags[idx] = (byte) t;
+		refs[idx] = o;
+	}
+
+	/**
+	 * Copies one stack element to another.
+	 */
+	private void copySlot(int from, int to) {
+		tags[to] = tags[from];
+		numbers[to] = numbers[from];
+		refs[to] = refs[from];
+	}
+
+	/**
+	 * Sets the stack element from a {@link Slot}.
+	 */
+	void setSlotAt(Slot s, int idx) {
+		switch (s.t) {
+			case TNUMBER:
+				setNumberAt(s.d, idx);
+				break;
+			case TBOOLEAN:
+				setBooleanAt(s.b, idx);
+				break;
+			case TNIL:
+				setNilAt(idx);
+				break;
+			default:
+				setRefAt(s.r, s.t, idx);
+		}
+	}
+
+	/**
+	 * Copies the stack element into a {@link Slot}.
+	 *
+	 * @return <var>s</var>.
+	 */
+	Slot slotAt(int idx, Slot s) {
+		int t = tags[idx];
+		switch (t) {
+			case TNUMBER:
+				s.setObject(numbers[idx]);
+				break;
+			case TBOOLEAN:
+				s.setObject(refs[idx] == Boolean.TRUE);
+				break;
+			case TNIL:
+				s.setObject(NIL);
+				break;
+			case TSTRING:
+				s.r = stringAt(idx);
+				s.t = t;
+				s.b = false;
+				s.d = 0;
+				break;
+			default:
+				s.r = refs[idx];
+				s.t = t;
+				s.b = false;
+				s.d = 0;
+		}
+		return s;
+	}
+
+	/**
+	 * Lua's is False predicate, for a stack element.
+	 */
+	boolean isFalseAt(int idx) {
+		int t = tags[idx];
+		return t == TNIL || t == TBOOLEAN && refs[idx] == Boolean.FALSE;
 	}
 }
@@ -24,27 +24,94 @@
 package me.jezza.lava;
 
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 
 /**
  * Class that models Lua's tables.  Each Lua table is an instance of
- * this class.  Whilst you can clearly see that this class extends
- * {@link java.util.Hashtable} you should in no way rely upon that.
- * Calling any methods that are not defined in this class (but are
- * defined in a super class) is extremely deprecated.
+ * this class.
+ * <p>
+ * Like PUC-Rio's tables, there is an array part, for the integer keys
+ * [1,n], and a hash part for everything else.  The hash part is an open
+ * addressed (double hashing) table held in parallel arrays, which
+ * means every key has a fixed position that can be found directly.
+ * {@link #next(int)} uses those positions to resume a traversal in
+ * constant time.
+ * <p>
+ * Numeric keys are held unboxed, in their own lane, so that neither
+ * storing nor looking up a number (from a {@link Slot}) allocates.
+ * When the hash part is full, both parts are resized as by
+ * <code>rehash</code> in ltable.c, so that integer keys that were
+ * stored out of order still end up in the array part once it would be
+ * more than half full.
+ * <p>
+ * A table starts out as a record: while every key of its hash part is
+ * a string, and there are only a few of them, the keys are kept in a
+ * {@link Shape} shared with the other tables that have the same keys,
+ * and {@link #values} only holds the values, in the shape's order.  The
+ * first key that doesn't fit turns the hash part into a dictionary, for
+ * good.
  */
 public final class LuaTable {
 	private static final Object[] EMPTY = new Object[0];
+	private static final int[] EMPTY_HASHES = new int[0];
+	private static final double[] EMPTY_NUMBERS = new double[0];
 
-	private static final int MIN_HASH_SIZE = 3;
+	/**
+	 * Stands in {@link #keys} for a numeric key, whose value is then in
+	 * {@link #numbers}.
+	 */
+	private static final Object NUMBER = new Object();
+
+	private static final int MIN_HASH_SIZE = 4;
+
+	/**
+	 * As MAXBITS in ltable.c: integer keys up to 2^MAX_BITS are counted
+	 * when sizing the array part.
+	 */
+	private static final int MAX_BITS = 26;
+
+	/**
+	 * Keys of the hash part, or empty while this table is a record.
+	 * <code>null</code> marks a slot that has never been used.  A key whose value is set to nil stays in its
+	 * slot (with a value of {@link Lua#NIL}) until the next rehash, just
+	 * like PUC-Rio's dead keys, so that a traversal can still find it.
+	 */
+	private Object[] keys;
+
+	/**
+	 * Values of the hash part, parallel to {@link #keys}.  While this
+	 * table is a record, the values of the keys of {@link #shape}
+	 * instead, at the same index (and unused past its size).  A field
+	 * set to nil keeps its place, just like a dead key.
+	 */
+	private Object[] values;
+
+	/**
+	 * The keys of the hash part while this table is a record, or null
+	 * once it is a dictionary.
+	 */
+	private Shape shape;
+
+	/**
+	 * The {@link #hash} of each key in {@link #keys}, so that a probe
+	 * only has to look at a key when the hashes match, and a rehash
+	 * never has to.
+	 */
+	private int[] hashes;
+
+	/**
+	 * Numeric keys of the hash part, for the slots where {@link #keys}
+	 * holds {@link #NUMBER}.  Allocated with the first numeric key, so
+	 * its length is either 0 or that of {@link #keys}.
+	 */
+	private double[] numbers;
 
 	/**
-	 * The internal {@link HashMap} that the table uses when the key isn't an index.
+	 * Number of slots in {@link #keys} that are in use, including dead
+	 * keys.
 	 */
-	private final Map<Object, Object> map;
+	private int occupied;
 
 	/**
 	 * Array used so that tables accessed like arrays are more efficient.
@@ -64,13 +131,46 @@ public final class LuaTable {
 	 */
 	private int expansionRate;
 
+	/**
+	 * The length the array part must reach before {@link #growArray} next
+	 * counts the keys of the hash part, which costs as much as the hash
+	 * part is large, so that the count is paid for by the keys added since
+	 * the last one.
+	 */
+	private int recount;
+
 	/**
 	 * Metatable to fallback on when something wasn't found here.
 	 */
 	private LuaTable metatable;
 
+	/**
+	 * For a table used as a metatable, bit <var>e</var> is set once the
+	 * table is known to have no metamethod for event <var>e</var> (one of
+	 * the <code>Lua.TM_*</code> constants), as PUC-Rio's flags.  Cleared
+	 * whenever a key starting with "__" is stored.
+	 */
+	private int flags;
+
+	/**
+	 * Changed whenever a key of the hash part may have moved, so that a
+	 * slot found by {@link #slotOf} stays valid while this stays the same.
+	 */
+	private int layout;
+
+	/**
+	 * A hint for {@link #firstNilIndex}: the last border found in the
+	 * array part, moved along as keys are appended to or removed from the
+	 * end of it.  It may be stale, so it's checked before it's used.
+	 */
+	private int border;
+
 	public LuaTable() {
-		map = new HashMap<>(MIN_HASH_SIZE);
+		keys = EMPTY;
+		values = EMPTY;
+		shape = Shape.EMPTY;
+		hashes = EMPTY_HASHES;
+		numbers = EMPTY_NUMBERS;
 		array = EMPTY;
 		expansionRate = calcExpansionRate(0);
 	}
@@ -82,7 +182,18 @@ public final class LuaTable {
 	 * @param hashCount  number of hash slots to preallocate.
 	 */
 	public LuaTable(int arrayCount, int hashCount) {
-		map = new HashMap<>(Math.min(hashCount, MIN_HASH_SIZE));
+		if (hashCount <= Shape.MAX_FIELDS) {
+			keys = EMPTY;
+			values = hashCount == 0 ? EMPTY : new Object[hashCount];
+			shape = Shape.EMPTY;
+			hashes = EMPTY_HASHES;
+		} else {
+			int capacity = capacityFor(hashCount);
+			keys = new Object[capacity];
+			values = new Object[capacity];
+			hashes = new int[capacity];
+		}
+		numbers = EMPTY_NUMBERS;
 
 		if (arrayCount == 0) {
 			this.array = EMPTY;
@@ -123,7 +234,29 @@ public final class LuaTable {
 
 	@Override
 	public String toString() {
-		return Arrays.toString(array) + ':' + map.toString();
+		StringBuilder b = new StringBuilder();
+		b.append(Arrays.toString(array));
+		b.append(":{");
+		boolean first = true;
+		if (shape != null) {
+			for (int i = 0; i < shape.size(); i++) {
+				if (values[i] != Lua.NIL) {
+					if (!first)
+						b.append(", ");
+					first = false;
+					b.append(shape.key(i)).append('=').append(values[i]);
+				}
+			}
+		}
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != null && values[i] != Lua.NIL) {
+				if (!first)
+					b.append(", ");
+				first = false;
+				b.append(keys[i] == NUMBER ? numbers[i] : keys[i]).append('=').append(values[i]);
+			}
+		}
+		return b.append('}').toString();
 	}
 
 	private static int calcExpansionRate(int oldSize) {
@@ -131,50 +264,295 @@ public final class LuaTable {
 	}
 
 	/**
+	 * @return the smallest power of 2 hash part capacity that holds
+	 * <var>count</var> keys without exceeding the load factor.
+	 */
+	private static int capacityFor(int count) {
+		int capacity = MIN_HASH_SIZE;
+		while (threshold(capacity) < count)
+			capacity <<= 1;
+		return capacity;
+	}
+
+	/**
+	 * The maximum number of occupied slots (a load factor of 3/4).
+	 */
+	private static int threshold(int capacity) {
+		return capacity - (capacity >> 2);
+	}
+
+	/**
+	 * Hash code of a numeric key.  Integral numbers hash to themselves,
+	 * so that runs of integer keys land in runs of slots.  Equal numbers
+	 * must hash equally, so -0 is folded onto 0.
+	 */
+	private static int hash(double d) {
+		int k = (int) d;
+		if (k == d)
+			return k;
+		long bits = Double.doubleToLongBits(d);
+		return spread((int) (bits ^ bits >>> 32));
+	}
+
+	/**
+	 * Hash code of any other key.
+	 */
+	private static int hash(Object key) {
+		return spread(key.hashCode());
+	}
+
+	/**
+	 * Spreads a hash code over the bits used to index the hash part.
+	 */
+	private static int spread(int h) {
+		h ^= h >>> 16;
+		h *= 0x9E3779B9;
+		return h ^ h >>> 16;
+	}
+
+	/**
+	 * The probe step for a key whose first slot was taken.  Because
+	 * integer keys aren't spread, a dense run of them forms a long
+	 * cluster, so rather than probing linearly (and crawling through
+	 * the cluster) we step by an odd amount, derived from all the bits of
+	 * the hash, that visits every slot of the (power of 2) hash part.
+	 */
+	private static int step(int h, int mask) {
+		return h * 0x9E3779B9 >>> Integer.numberOfLeadingZeros(mask) | 1;
+	}
+
+	/**
+	 * @return the first unused slot in <var>keys</var> for a key with hash <var>h</var>.
+	 */
+	private static int free(Object[] keys, int h) {
+		int mask = keys.length - 1;
+		int i = h & mask;
+		if (keys[i] != null) {
+			int step = step(h, mask);
+			do {
+				i = i + step & mask;
+			} while (keys[i] != null);
+		}
+		return i;
+	}
+
+	/**
+	 * @return the slot in the hash part holding the number <var>d</var>
+	 * (which may be a dead key), or -1 if there isn't one.
+	 */
+	private int slot(double d) {
+		double[] numbers = this.numbers;
+		if (numbers.length == 0)
+			return -1;
+		Object[] keys = this.keys;
+		int mask = keys.length - 1;
+		int h = hash(d);
+		int i = h & mask;
+		Object k = keys[i];
+		if (k == null)
+			return -1;
+		if (k == NUMBER && numbers[i] == d)
+			return i;
+		int step = step(h, mask);
+		while (true) {
+			i = i + step & mask;
+			if ((k = keys[i]) == null)
+				return -1;
+			if (k == NUMBER && numbers[i] == d)
+				return i;
+		}
+	}
+
+	/**
+	 * @return the slot in the hash part holding <var>key</var> (which
+	 * may be a dead key), or -1 if there isn't one.
+	 */
+	private int slot(Object key) {
+		if (key instanceof Double)
+			return slot((double) (Double) key);
+		Object[] keys = this.keys;
+		if (keys.length == 0)
+			return -1;
+		int mask = keys.length - 1;
+		int[] hashes = this.hashes;
+		int h = hash(key);
+		int i = h & mask;
+		Object k = keys[i];
+		if (k == null)
+			return -1;
+		if (hashes[i] == h && (key == k || key.equals(k)))
+			return i;
+		int step = step(h, mask);
+		while (true) {
+			i = i + step & mask;
+			if ((k = keys[i]) == null)
+				return -1;
+			if (hashes[i] == h && (key == k || key.equals(k)))
+				return i;
+		}
+	}
+
+	/**
+	 * Looks the number <var>d</var> up in the hash part.
+	 */
+	private Object hashGet(double d) {
+		int i = slot(d);
+		return i >= 0 ? values[i] : Lua.NIL;
+	}
+
+	/**
+	 * Looks <var>key</var> up in the hash part.
+	 */
+	private Object hashGet(Object key) {
+		int i = slotOf(key);
+		return i >= 0 ? values[i] : Lua.NIL;
+	}
+
+	/**
+	 * Stores a field of a record.  As {@link #hashPut(Object, Object)}.
+	 *
+	 * @return false if <var>key</var> doesn't fit in the record, which
+	 * must then become a dictionary.
+	 */
+	private boolean fieldPut(Object key, Object value) {
+		Shape shape = this.shape;
+		int i = shape.indexOf(key);
+		if (i >= 0) {
+			values[i] = value;
+			return true;
+		}
+		if (value == Lua.NIL)
+			return true;
+		if (!(key instanceof String))
+			return false;
+		Shape next = shape.add((String) key);
+		if (next == null)
+			return false;
+		i = shape.size();
+		if (i == values.length)
+			values = Arrays.copyOf(values, Math.min(Math.max(i << 1, MIN_HASH_SIZE), Shape.MAX_FIELDS));
+		values[i] = value;
+		this.shape = next;
+		return true;
+	}
+
+	/**
+	 * Turns this record into a dictionary, with room for at least one
+	 * more key.
+	 */
+	private void dictionary() {
+		Shape shape = this.shape;
+		Object[] fields = values;
+		int capacity = capacityFor(shape.size() + 1);
+		Object[] keys = new Object[capacity];
+		Object[] values = new Object[capacity];
+		int[] hashes = new int[capacity];
+		int live = 0;
+		for (int i = 0; i < shape.size(); i++) {
+			if (fields[i] != Lua.NIL) {
+				String key = shape.key(i);
+				int h = hash(key);
+				int j = free(keys, h);
+				keys[j] = key;
+				values[j] = fields[i];
+				hashes[j] = h;
+				live++;
+			}
+		}
+		this.keys = keys;
+		this.values = values;
+		this.hashes = hashes;
+		this.occupied = live;
+		this.shape = null;
+		layout++;
+	}
+
+	/**
+	 * Rebuilds the hash part, dropping dead keys.
+	 */
+	private void compact() {
+		int live = 0;
+		for (int i = 0; i < keys.length; i++)
+			if (keys[i] != null && values[i] != Lua.NIL)
+				live++;
+		resize(array.length, live);
+	}
+
+	/**
+	 * Grows the array part, moving the keys that now fall into it out of
+	 * the hash part.
+	 *
 	 * @param newLength - The array will be expanded to this length.
 	 */
 	private void resize(int newLength) {
 		int length = array.length;
-		if (newLength == length)
+		if (newLength <= length)
 			return;
 		Object[] newArray = new Object[newLength];
-		if (newLength > length) {
-			System.arraycopy(array, 0, newArray, 0, length);
-			//	Fills the array with NIL after the initial array copy
-			for (int i = 0; i < newLength; i++)
-				if (newArray[i] == null)
-					newArray[i] = Lua.NIL;
-			if (map.size() < newLength - length) {
-				Iterator<Entry<Object, Object>> it = map.entrySet().iterator();
-				while (it.hasNext()) {
-					Entry<Object, Object> entry = it.next();
-					Object key = entry.getKey();
-					if (key instanceof Double) {
-						double d = (Double) key;
-						int k = (int) d;
-						if (k == d && k >= 1 && k <= newLength) {
-							newArray[k - 1] = entry.getValue();
-							it.remove();
-						}
+		System.arraycopy(array, 0, newArray, 0, length);
+		//	Fills the array with NIL after the initial array copy
+		for (int i = 0; i < newLength; i++)
+			if (newArray[i] == null)
+				newArray[i] = Lua.NIL;
+		// Migrate the keys that now fall into the array part, leaving
+		// dead keys behind, which are then dropped by compact.
+		boolean moved = false;
+		if (occupied < newLength - length) {
+			Object[] keys = this.keys;
+			Object[] values = this.values;
+			double[] numbers = this.numbers;
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] == NUMBER && values[i] != Lua.NIL) {
+					double d = numbers[i];
+					int k = (int) d;
+					if (k == d && k >= 1 && k <= newLength) {
+						newArray[k - 1] = values[i];
+						values[i] = Lua.NIL;
+						moved = true;
 					}
 				}
-			} else {
-				for (int i = length; i < newLength; ++i) {
-					Object v = map.remove((double) (i + 1));
-					if (v != null)
-						newArray[i] = v;
+			}
+		} else {
+			for (int i = length; i < newLength; ++i) {
+				int slot = slot((double) (i + 1));
+				if (slot >= 0 && values[slot] != Lua.NIL) {
+					newArray[i] = values[slot];
+					values[slot] = Lua.NIL;
+					moved = true;
 				}
 			}
-		} else if (newLength < length) {
-			// move elements from array slots nasize to arrayLength-1 to the
-			// hash part.
-			for (int i = newLength; i < length; ++i)
-				if (array[i] != Lua.NIL)
-					map.put((double) (i + 1), array[i]);
-			System.arraycopy(array, 0, newArray, 0, newArray.length);
 		}
 		array = newArray;
 		expansionRate = calcExpansionRate(newLength);
+		if (moved)
+			compact();
+	}
+
+	/**
+	 * Makes room in the array part for the key <var>k</var>, which is past
+	 * its end, but within {@link #expansionRate}.  If the hash part holds
+	 * numbers, both parts are resized as by {@link #rehash}, should that
+	 * give a larger array part, as those may now belong in it too.
+	 */
+	private void growArray(int k) {
+		if (numbers.length != 0 && array.length >= recount) {
+			if (rehash(k, expansionRate))
+				return;
+			recount = expansionRate + occupied / 2;
+		}
+		resize(expansionRate);
+	}
+
+	/**
+	 * Grows the array part, if need be, so that it holds the keys [1,n],
+	 * for OP_SETLIST to fill in bulk.
+	 *
+	 * @return the array part.
+	 */
+	Object[] arrayFor(int n) {
+		if (n > array.length)
+			resize(n);
+		return array;
 	}
 
 	/**
@@ -191,7 +569,7 @@ public final class LuaTable {
 	 * <p>
 	 * :todo: Support metatable's __gc and __mode keys appropriately.
 	 * <p>
-	 * This involves detecting when those keys are present in the metatable, and changing all the entries in the {@link HashMap} to be instance of java.lang.Ref as appropriate.
+	 * This involves detecting when those keys are present in the metatable, and changing all the entries in the hash part to be instance of java.lang.Ref as appropriate.
 	 *
 	 * @param metatable - The metatable that this table will use.
 	 */
@@ -200,13 +578,68 @@ public final class LuaTable {
 		return this;
 	}
 
+	/**
+	 * @return the stamp of the positions of the keys of the hash part.
+	 */
+	int layout() {
+		return layout;
+	}
+
+	/**
+	 * Finds the slot of a key in the hash part, for use with
+	 * {@link #slotValue(int)} while {@link #layout()} is unchanged.  The
+	 * value there may be nil, just as for a dead key.
+	 *
+	 * @param key a key that is never held in the array part.
+	 * @return the slot, or -1 if the key is not in the hash part.
+	 */
+	int slotOf(Object key) {
+		return shape != null ? shape.indexOf(key) : slot(key);
+	}
+
+	Object slotValue(int slot) {
+		return values[slot];
+	}
+
+	void slotValue(int slot, Object value) {
+		values[slot] = value;
+	}
+
+	/**
+	 * Equivalent of luaT_gettm, for this table as a metatable.
+	 *
+	 * @param event one of the <code>Lua.TM_*</code> constants.
+	 * @return the metamethod, or {@link Lua#NIL}.
+	 */
+	Object metamethod(int event) {
+		int bit = 1 << event;
+		if ((flags & bit) != 0)
+			return Lua.NIL;
+		Object tm = hashGet(Lua.TM_NAMES[event]);
+		if (tm == Lua.NIL)
+			flags |= bit;   // cache this fact
+		return tm;
+	}
+
 	/**
 	 * Supports Lua's length (#) operator.  More or less equivalent to luaH_getn and unbound_search in ltable.c.
+	 * The last border found, kept up to date by appends and pops through
+	 * {@link #arrayPut}, is checked first, so that those only cost O(1).
 	 */
 	int firstNilIndex() {
 		Object[] array = this.array;
+		int length = array.length;
+		int b = border;
+		if (b <= length && (b == 0 || array[b - 1] != Lua.NIL)) {
+			if (b < length) {
+				if (array[b] == Lua.NIL)
+					return b;
+			} else {
+				return unboundSearch(length);
+			}
+		}
 		int i = 0;  // Lower bound
-		int j = array.length; // Upper bound
+		int j = length; // Upper bound
 		if (j > 0 && array[j - 1] == Lua.NIL) {
 			// there is a boundary in the array part: (binary) search for it
 			while (j - i > 1) {
@@ -217,11 +650,18 @@ public final class LuaTable {
 					i = m; // Set the lower bound
 				}
 			}
+			border = i;
 			return i;
 		}
+		border = length;
+		return unboundSearch(length);
+	}
 
-		// unbound_search
-		j = 1;
+	/**
+	 * Finds a border past the array part, which is full up to <var>i</var>.
+	 */
+	private int unboundSearch(int i) {
+		int j = i + 1;
 		// Find 'i' and 'j' such that i is present and j is not.
 		while (get(j) != Lua.NIL) {
 			i = j;
@@ -253,7 +693,7 @@ public final class LuaTable {
 	Object get(int k) {
 		if (k >= 1 && k <= array.length)
 			return array[k - 1];
-		return map.getOrDefault((double) k, Lua.NIL);
+		return hashGet((double) k);
 	}
 
 	/**
@@ -268,37 +708,277 @@ public final class LuaTable {
 			int k = (int) d;
 			if (k == d && k >= 1 && k <= array.length)
 				return array[k - 1];
+			return hashGet(d);
 		}
-		return map.getOrDefault(key, Lua.NIL);  // 'key' did not match some condition
+		return hashGet(key);  // 'key' did not match some condition
 	}
 
 	/**
-	 * Like {@link #get(Object)} but the result is written into
-	 * the <var>value</var> {@link Slot}.
+	 * Like {@link #get(Object)} but the key is a {@link Slot}, so that
+	 * numeric keys need not be boxed.
 	 */
-	void get(Slot key, Slot value) {
+	Object get(Slot key) {
 		if (key.t == Lua.TNUMBER) {
 			double d = key.d;
 			int i = (int) d;
-			if (i == d && d >= 1 && d <= array.length) {
-				value.setObject(array[i - 1]);
+			if (i == d && d >= 1 && d <= array.length)
+				return array[i - 1];
+			return hashGet(d);
+		}
+		return hashGet(key.asObject());
+	}
+
+	/**
+	 * Claims an unused slot for a new key with hash <var>h</var>, which
+	 * the caller has made room for.
+	 */
+	private int claim(int h) {
+		occupied++;
+		return free(keys, h);
+	}
+
+	/**
+	 * @return whether the hash part is full, and has to be resized
+	 * before another key can be added.
+	 */
+	private boolean full() {
+		return occupied >= threshold(keys.length);
+	}
+
+	/**
+	 * @return ceil(log2(k)), for k &gt;= 1.
+	 */
+	private static int ceilLog2(int k) {
+		return 32 - Integer.numberOfLeadingZeros(k - 1);
+	}
+
+	/**
+	 * Counts <var>d</var> in <var>nums</var>, if it is a candidate for
+	 * the array part, as countint in ltable.c.
+	 *
+	 * @return 1 if it was counted, otherwise 0.
+	 */
+	private static int countInt(double d, int[] nums) {
+		int k = (int) d;
+		if (k == d && k >= 1 && k <= 1 << MAX_BITS) {
+			nums[ceilLog2(k)]++;
+			return 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Equivalent of rehash from ltable.c: resizes both parts, so that
+	 * there's room for one more key, <var>key</var> (which is NaN if the
+	 * key isn't a number).  The array part gets the largest size
+	 * <var>n</var> such that more than half of the keys [1,n] are in use
+	 * (as computesizes), and the hash part everything else.
+	 * <p>
+	 * Counting is cheap compared to rebuilding the hash part, so nothing
+	 * is resized if <var>n</var> would be no more than <var>minSize</var>.
+	 *
+	 * @return whether the table was resized.
+	 */
+	private boolean rehash(double key, int minSize) {
+		// nums[i] = number of keys k where 2^(i-1) < k <= 2^i
+		int[] nums = new int[MAX_BITS + 1];
+		int ints = 0;
+		Object[] array = this.array;
+		for (int k = 1; k <= array.length; k++) {
+			if (array[k - 1] != Lua.NIL) {
+				nums[ceilLog2(k)]++;
+				ints++;
+			}
+		}
+		int total = ints;
+		Object[] keys = this.keys;
+		Object[] values = this.values;
+		double[] numbers = this.numbers;
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != null && values[i] != Lua.NIL) {
+				total++;
+				if (keys[i] == NUMBER)
+					ints += countInt(numbers[i], nums);
+			}
+		}
+		total++;
+		ints += countInt(key, nums);
+
+		// computesizes
+		int size = 0;
+		int inArray = 0;
+		int a = 0;
+		for (int i = 0, twotoi = 1; i <= MAX_BITS && twotoi >> 1 < ints; i++, twotoi <<= 1) {
+			if (nums[i] > 0) {
+				a += nums[i];
+				if (a > twotoi >> 1) {
+					size = twotoi;
+					inArray = a;
+				}
+			}
+			if (a == ints)
+				break;
+		}
+		if (size <= minSize)
+			return false;
+		resize(size, total - inArray);
+		return true;
+	}
+
+	/**
+	 * Equivalent of luaH_resize: rebuilds the array part with
+	 * <var>arraySize</var> slots, and the hash part with room for
+	 * <var>hashCount</var> keys, moving keys between them as need be.
+	 */
+	private void resize(int arraySize, int hashCount) {
+		Object[] oldArray = array;
+		Object[] oldKeys = keys;
+		Object[] oldValues = values;
+		int[] oldHashes = hashes;
+		double[] oldNumbers = numbers;
+
+		Object[] array = oldArray;
+		if (arraySize != oldArray.length) {
+			array = Arrays.copyOf(oldArray, arraySize);
+			if (arraySize > oldArray.length)
+				Arrays.fill(array, oldArray.length, arraySize, Lua.NIL);
+		}
+		int capacity = hashCount == 0 ? 0 : capacityFor(hashCount);
+		Object[] keys = capacity == 0 ? EMPTY : new Object[capacity];
+		Object[] values = capacity == 0 ? EMPTY : new Object[capacity];
+		int[] hashes = capacity == 0 ? EMPTY_HASHES : new int[capacity];
+		double[] numbers = EMPTY_NUMBERS;
+		int occupied = 0;
+
+		// The array part's slice that no longer fits goes to the hash part.
+		for (int k = arraySize + 1; k <= oldArray.length; k++) {
+			if (oldArray[k - 1] != Lua.NIL) {
+				if (numbers.length == 0)
+					numbers = new double[capacity];
+				int h = hash((double) k);
+				int j = free(keys, h);
+				keys[j] = NUMBER;
+				numbers[j] = k;
+				values[j] = oldArray[k - 1];
+				hashes[j] = h;
+				occupied++;
+			}
+		}
+		for (int i = 0; i < oldKeys.length; i++) {
+			Object key = oldKeys[i];
+			if (key == null || oldValues[i] == Lua.NIL)
+				continue;
+			if (key == NUMBER) {
+				double d = oldNumbers[i];
+				int k = (int) d;
+				if (k == d && k >= 1 && k <= arraySize) {
+					array[k - 1] = oldValues[i];
+					continue;
+				}
+				if (numbers.length == 0)
+					numbers = new double[capacity];
+			}
+			int j = free(keys, oldHashes[i]);
+			keys[j] = key;
+			values[j] = oldValues[i];
+			hashes[j] = oldHashes[i];
+			if (key == NUMBER)
+				numbers[j] = oldNumbers[i];
+			occupied++;
+		}
+		this.array = array;
+		this.keys = keys;
+		this.values = values;
+		this.hashes = hashes;
+		this.numbers = numbers;
+		this.occupied = occupied;
+		expansionRate = calcExpansionRate(arraySize);
+		layout++;
+	}
+
+	/**
+	 * Stores into the hash part, with a numeric key.  Storing {@link Lua#NIL}
+	 * into an existing key leaves it as a dead key, and storing it into an
+	 * absent key does nothing.
+	 *
+	 * @param d     key with which the specified value is to be associated
+	 * @param value value to be associated with the specified key, or Lua.NIL.
+	 */
+	private void hashPut(double d, Object value) {
+		int i = slot(d);
+		if (i >= 0) {
+			values[i] = value;
+			return;
+		}
+		if (value == Lua.NIL)
+			return;
+		if (shape != null)
+			dictionary();
+		if (full()) {
+			rehash(d, -1);
+			int k = (int) d;
+			if (k == d && k >= 1 && k <= array.length) {
+				array[k - 1] = value;
 				return;
 			}
 		}
-		value.setObject(map.getOrDefault(key.asObject(), Lua.NIL));
+		int h = hash(d);
+		i = claim(h);
+		if (numbers.length == 0)
+			numbers = new double[keys.length];
+		keys[i] = NUMBER;
+		numbers[i] = d;
+		values[i] = value;
+		hashes[i] = h;
 	}
 
 	/**
-	 * Handles the Lua.NIL case of a map value. (Removes it from the map.)
+	 * Stores into the hash part.  As {@link #hashPut(double, Object)}.
 	 *
 	 * @param key   key with which the specified value is to be associated
-	 * @param value value to be associated with the specified key, or Lua.NIL, then the mapping will be removed.
+	 * @param value value to be associated with the specified key, or Lua.NIL.
 	 */
-	private void _put(Object key, Object value) {
+	private void hashPut(Object key, Object value) {
+		if (key instanceof Double) {
+			hashPut((double) (Double) key, value);
+			return;
+		}
+		if (key instanceof String && ((String) key).startsWith("__"))
+			flags = 0;
+		if (shape != null) {
+			if (fieldPut(key, value))
+				return;
+			dictionary();
+		}
+		int i = slot(key);
+		if (i >= 0) {
+			values[i] = value;
+			return;
+		}
+		if (value == Lua.NIL)
+			return;
+		if (full())
+			rehash(Double.NaN, -1);
+		int h = hash(key);
+		i = claim(h);
+		keys[i] = key;
+		values[i] = value;
+		hashes[i] = h;
+	}
+
+	/**
+	 * Stores into the array part, growing it if need be, for a key within
+	 * {@link #expansionRate}, and moves {@link #border} along.
+	 */
+	private void arrayPut(int k, Object value) {
+		if (k > array.length)
+			growArray(k);
+		array[k - 1] = value;
 		if (value != Lua.NIL) {
-			map.put(key, value);
-		} else {
-			map.remove(key);
+			if (k == border + 1)
+				border = k;
+		} else if (k == border) {
+			border = k - 1;
 		}
 	}
 
@@ -307,11 +987,9 @@ public final class LuaTable {
 	 */
 	void put(int k, Object v) {
 		if (k >= 1 && k <= expansionRate) {
-			if (k > array.length)
-				resize(expansionRate);
-			array[k - 1] = v;
+			arrayPut(k, v);
 		} else {
-			_put((double) k, v);
+			hashPut((double) k, v);
 		}
 	}
 
@@ -335,13 +1013,13 @@ public final class LuaTable {
 				throw L.gRunError("table index is NaN");
 			int k = (int) d;
 			if (k == d && k >= 1 && k <= expansionRate) {
-				if (k > array.length)
-					resize(expansionRate);
-				array[k - 1] = value;
+				arrayPut(k, value);
 				return;
 			}
+			hashPut(d, value);
+			return;
 		}
-		_put(key, value);
+		hashPut(key, value);
 	}
 
 	void put(Lua L, Slot key, Object value) {
@@ -351,16 +1029,77 @@ public final class LuaTable {
 				throw L.gRunError("table index is NaN");
 			int k = (int) d;
 			if (k == d && k >= 1 && k <= expansionRate) {
-				if (k > array.length)
-					resize(expansionRate);
-				array[k - 1] = value;
+				arrayPut(k, value);
 				return;
 			}
+			hashPut(d, value);
+			return;
 		}
 		Object k = key.asObject();
 		if (k == Lua.NIL)
 			throw L.gRunError("table index is nil");
-		_put(k, value);
+		hashPut(k, value);
+	}
+
+	/**
+	 * Finds the traversal index of <var>key</var>.  Indexes [0,arrayLength)
+	 * are the array part, the rest are slots in the hash part.
+	 *
+	 * @param key a key in this table, or {@link Lua#NIL} to begin a traversal.
+	 * @return the index of key, -1 for {@link Lua#NIL}, or -2 if the key is not in the table.
+	 */
+	int index(Object key) {
+		if (key == Lua.NIL)
+			return -1;
+		if (key instanceof Double) {
+			double d = (Double) key;
+			int k = (int) d;
+			if (k == d && k >= 1 && k <= array.length)
+				return k - 1;
+		}
+		int i = slotOf(key);
+		return i >= 0 ? array.length + i : -2;
+	}
+
+	/**
+	 * Finds the first traversal index at or after <var>i</var> holding a
+	 * non-nil value.
+	 *
+	 * @return that index, or -1 when the traversal is over.
+	 */
+	int next(int i) {
+		Object[] array = this.array;
+		int length = array.length;
+		for (; i < length; i++)
+			if (array[i] != Lua.NIL)
+				return i;
+		Object[] values = this.values;
+		int end = shape != null ? shape.size() : values.length;
+		for (int j = i - length; j < end; j++)
+			if (values[j] != null && values[j] != Lua.NIL)
+				return length + j;
+		return -1;
+	}
+
+	/**
+	 * @return the key at traversal index <var>i</var>, as returned by {@link #next(int)}.
+	 */
+	Object keyAt(int i) {
+		int length = array.length;
+		if (i < length)
+			return (double) (i + 1);
+		if (shape != null)
+			return shape.key(i - length);
+		Object key = keys[i - length];
+		return key == NUMBER ? (Object) numbers[i - length] : key;
+	}
+
+	/**
+	 * @return the value at traversal index <var>i</var>, as returned by {@link #next(int)}.
+	 */
+	Object valueAt(int i) {
+		int length = array.length;
+		return i < length ? array[i] : values[i - length];
 	}
 
 	public Iterator<Object> keys() {
@@ -368,38 +1107,20 @@ public final class LuaTable {
 	}
 
 	private class TableIterator implements Iterator<Object> {
-		private Iterator<Object> it = map.keySet().iterator();
-		private int i;
-
-		private TableIterator() {
-			increment();
-		}
+		private int i = LuaTable.this.next(0);
 
 		@Override
 		public boolean hasNext() {
-			return i < array.length || it.hasNext();
+			return i >= 0;
 		}
 
 		@Override
 		public Object next() {
-			if (i < array.length) {
-				// array index i corresponds to key i + 1
-				double value = ++i;
-				increment();
-				return value;
-			}
-			return it.next();
-		}
-
-		/**
-		 * Increments {@link #i} until it either exceeds
-		 * <code>arrayLength</code> or indexes a non-nil element.
-		 */
-		private void increment() {
-			Object[] array = LuaTable.this.array;
-			int l = array.length;
-			while (i < l && array[i] == Lua.NIL)
-				++i;
+			if (i < 0)
+				throw new NoSuchElementException();
+			Object key = keyAt(i);
+			i = LuaTable.this.next(i + 1);
+			return key;
 		}
 	}
 }
@@ -24,21 +24,34 @@
 package me.jezza.lava;
 
 /**
+ * The state of matching a {@link Pattern} against a subject string.
+ *
  * @author Jezza
  */
 final class MatchState {
 	static final char L_ESC = '%';
 	static final String SPECIALS = "^$*+?.([%-";
 
-	private static final int CAP_UNFINISHED = -1;
-	private static final int CAP_POSITION = -2;
+	static final int CAP_UNFINISHED = -1;
+	static final int CAP_POSITION = -2;
+
+	/**
+	 * Steps of backtracking that {@link #find} allows per character of
+	 * the subject and item of the pattern, before it hands the search
+	 * to the pattern's {@link Automaton}, if it has one.  Backtracking
+	 * is quicker for most patterns, but some make it take time
+	 * polynomial in the length of the subject.
+	 */
+	private static final int BUDGET = 8;
 
 	final Lua L;
 
 	/**
-	 * Each capture element is a 2-element array of (index, len).
+	 * The start index and length of each capture, as many as the pattern
+	 * has.
 	 */
-	final ExtendedArrayList<int[]> capture = new ExtendedArrayList<>();
+	private final int[] captureInit;
+	private final int[] captureLen;
 
 	/**
 	 * The entire string that is the subject of the match.
@@ -50,38 +63,75 @@ final class MatchState {
 	 */
 	final int end;
 
+	private final Pattern.Item[] items;
+	private final Automaton automaton;
+
 	/**
 	 * Total number of captures (finished or unfinished).
 	 */
 	int level;
 
-	// :todo: consider adding the pattern string as a member (and removing p parameter from methods).
-	// :todo: consider removing end parameter, if end always == // src.length()
-	MatchState(Lua L, String src, int end) {
+	/**
+	 * Where the match last found by {@link #find} ends.
+	 */
+	int matchEnd;
+
+	/**
+	 * Steps of backtracking left, see {@link #BUDGET}.
+	 */
+	private int budget;
+
+	MatchState(Lua L, String src, Pattern p) {
 		this.L = L;
 		this.src = src;
-		this.end = end;
+		this.end = src.length();
+		this.items = p.items;
+		this.automaton = p.automaton;
+		this.captureInit = new int[p.captures];
+		this.captureLen = new int[p.captures];
 	}
 
 	/**
-	 * Returns the init index of capture <var>i</var>.
+	 * Finds the first match that starts at or after <var>si</var>, or
+	 * only at <var>si</var> if <var>anchor</var>.
+	 *
+	 * @return the start of the match, with its end in {@link #matchEnd},
+	 * or -1 if there isn't one.
 	 */
-	private int captureInit(int i) {
-		return capture.get(i)[0];
+	int find(int si, boolean anchor) {
+		int init = si;
+		budget = automaton == null
+				? Integer.MAX_VALUE
+				: (int) Math.min((long) BUDGET * (end - si + 1) * items.length, Integer.MAX_VALUE);
+		try {
+			do {
+				level = 0;
+				int e = match(si, 0);
+				if (e >= 0) {
+					matchEnd = e;
+					return si;
+				}
+			} while (si++ < end && !anchor);
+		} catch (OverBudget e) {
+			return automaton.find(this, init, anchor);
+		}
+		return -1;
 	}
 
 	/**
-	 * Returns the length of capture <var>i</var>.
+	 * Counts a step of backtracking.
 	 */
-	private int captureLen(int i) {
-		return capture.get(i)[1];
+	private void step() {
+		if (--budget < 0) {
+			if (automaton != null)
+				throw OverBudget.INSTANCE;
+			budget = Integer.MAX_VALUE;
+		}
 	}
 
-	/**
-	 * Returns the 2-element array for the capture <var>i</var>.
-	 */
-	private int[] capture(int i) {
-		return capture.get(i);
+	void setCapture(int i, int init, int len) {
+		captureInit[i] = init;
+		captureLen[i] = len;
 	}
 
 	LuaError invalidCapture() {
@@ -92,59 +142,21 @@ final class MatchState {
 		throw L.error("unfinished capture");
 	}
 
-	LuaError malformedBracket() {
-		throw L.error("malformed pattern (missing '[')");
-	}
-
-	LuaError malformedPattern() {
-		throw L.error("malformed pattern (ends with '%')");
-	}
-
-	char checkCapture(char l) {
-		l -= '1';   // relies on wraparound.
-		if (l >= level || captureLen(l) == CAP_UNFINISHED)
+	int checkCapture(char l) {
+		int i = l - '1';
+		if (i < 0 || i >= level || captureLen[i] == CAP_UNFINISHED)
 			throw invalidCapture();
-		return l;
+		return i;
 	}
 
 	int captureToClose() {
 		int lev = level;
 		for (lev--; lev >= 0; lev--)
-			if (captureLen(lev) == CAP_UNFINISHED)
+			if (captureLen[lev] == CAP_UNFINISHED)
 				return lev;
 		throw invalidCapture();
 	}
 
-	int classend(String p, int pi) {
-		switch (p.charAt(pi++)) {
-			case L_ESC:
-				// assert pi < p.length() // checked by callers
-				return pi + 1;
-
-			case '[':
-				if (p.length() == pi)
-					throw malformedBracket();
-				if (p.charAt(pi) == '^')
-					++pi;
-				do    // look for a ']'
-				{
-					if (p.length() == pi)
-						throw malformedBracket();
-					if (p.charAt(pi++) == L_ESC) {
-						if (p.length() == pi)
-							throw malformedBracket();
-						++pi;     // skip escapes (e.g. '%]')
-						if (p.length() == pi)
-							throw malformedBracket();
-					}
-				} while (p.charAt(pi) != ']');
-				return pi + 1;
-
-			default:
-				return pi;
-		}
-	}
-
 	/**
 	 * @param c  char match.
 	 * @param cl character class.
@@ -242,15 +254,15 @@ final class MatchState {
 
 	// Generally all the various match functions from PUC-Rio which take a
 	// MatchState and return a "const char *" are transformed into
-	// instance methods that take and return string indexes.
+	// instance methods that take and return string indexes, and take the
+	// index of the item of the pattern to match instead of a pattern
+	// pointer.
 
-	int matchBalance(int si, String p, int pi) {
-		if (pi + 1 >= p.length())
-			throw L.error("Unbalanced pattern");
-		if (si >= end || src.charAt(si) != p.charAt(pi))
+	int matchBalance(int si, Pattern.Item item) {
+		char b = item.c;
+		if (si >= end || src.charAt(si) != b)
 			return -1;
-		char b = p.charAt(pi);
-		char e = p.charAt(pi + 1);
+		char e = item.e;
 		int cont = 1;
 		while (++si < end) {
 			if (src.charAt(si) == e) {
@@ -263,13 +275,14 @@ final class MatchState {
 		return -1;  // string ends out of balance
 	}
 
-	int maxExpand(int si, String p, int pi, int ep) {
+	int maxExpand(int si, Pattern.Item item, int pi) {
 		int i = 0;  // counts maximum expand for item
-		while (si + i < end && singleMatch(src.charAt(si + i), p, pi, ep))
+		while (si + i < end && item.matches(src.charAt(si + i)))
 			++i;
+		budget -= i;
 		// keeps trying to match with the maximum repetitions
 		while (i >= 0) {
-			int res = match(si + i, p, ep + 1);
+			int res = match(si + i, pi + 1);
 			if (res >= 0)
 				return res;
 			--i;      // else didn't match; reduce 1 repetition to try again
@@ -277,163 +290,126 @@ final class MatchState {
 		return -1;
 	}
 
-	int minExpand(int si, String p, int pi, int ep) {
+	int minExpand(int si, Pattern.Item item, int pi) {
 		while (true) {
-			int res = match(si, p, ep + 1);
+			int res = match(si, pi + 1);
 			if (res >= 0)
 				return res;
-			else if (si < end && singleMatch(src.charAt(si), p, pi, ep))
+			else if (si < end && item.matches(src.charAt(si)))
 				++si;   // try with one more repetition
 			else
 				return -1;
 		}
 	}
 
-	int startCapture(int si, String p, int pi, int what) {
-		capture.setSize(level + 1);
-		capture.add(level++, new int[]{si, what});
-		int res = match(si, p, pi);
+	int startCapture(int si, int pi, int what) {
+		captureInit[level] = si;
+		captureLen[level++] = what;
+		int res = match(si, pi);
 		// match failed
 		if (res < 0)
 			--level;
 		return res;
 	}
 
-	int endCapture(int si, String p, int pi) {
+	int endCapture(int si, int pi) {
 		int l = captureToClose();
-		capture(l)[1] = si - captureInit(l);        // close it
-		int res = match(si, p, pi);
+		captureLen[l] = si - captureInit[l];        // close it
+		int res = match(si, pi);
 		// match failed?
 		if (res < 0)
-			capture(l)[1] = CAP_UNFINISHED;   // undo capture
+			captureLen[l] = CAP_UNFINISHED;   // undo capture
 		return res;
 	}
 
 	int matchCapture(int si, char l) {
-		l = checkCapture(l);
-		int len = captureLen(l);
-		if (end - si >= len && src.regionMatches(false, captureInit(l), src, si, len))
+		int i = checkCapture(l);
+		int len = captureLen[i];
+		if (end - si >= len && src.regionMatches(false, captureInit[i], src, si, len))
 			return si + len;
 		return -1;
 	}
 
 	/**
 	 * @param si index of subject at which to attempt match.
-	 * @param p  pattern string.
-	 * @param pi index into pattern (from which to being matching).
+	 * @param pi index of the item of the pattern from which to match.
 	 * @return the index of the end of the match, -1 for no match.
 	 */
-	int match(int si, String p, int pi) {
-		// This code has been considerably changed in the transformation
-		// from C to Java.  There are the following non-obvious changes:
-		// - The C code routinely relies on NUL being accessible at the end of
-		//   the pattern string.  In Java we can't do this, so we use many
-		//   more explicit length checks and pull error cases into this
-		//   function.  :todo: consider appending NUL to the pattern string.
-		// - The C code uses a "goto dflt" which is difficult to transform in
-		//   the usual way.
+	int match(int si, int pi) {
+		Pattern.Item[] items = this.items;
 		init:
 		// labelled while loop emulates "goto init", which we use to
 		// optimize tail recursion.
 		while (true) {
-			if (p.length() == pi)     // end of pattern
-				return si;              // match succeeded
-			switch (p.charAt(pi)) {
-				case '(':
-					if (p.length() == pi + 1)
-						throw unfinishedCapture();
-					if (p.charAt(pi + 1) == ')')  // position capture?
-						return startCapture(si, p, pi + 2, CAP_POSITION);
-					return startCapture(si, p, pi + 1, CAP_UNFINISHED);
-
-				case ')':       // end capture
-					return endCapture(si, p, pi + 1);
-
-				case L_ESC:
-					if (p.length() == pi + 1)
-						throw malformedPattern();
-					switch (p.charAt(pi + 1)) {
-						case 'b':   // balanced string?
-							si = matchBalance(si, p, pi + 2);
-							if (si < 0)
-								return si;
-							pi += 4;
-							// else return match(ms, s, p+4);
-							continue init;    // goto init
-
-						case 'f':   // frontier
-						{
-							pi += 2;
-							if (p.length() == pi || p.charAt(pi) != '[')
-								throw L.error("missing '[' after '%f' in pattern");
-							int ep = classend(p, pi);   // indexes what is next
-							char previous = (si == 0) ? '\0' : src.charAt(si - 1);
-							char at = (si == end) ? '\0' : src.charAt(si);
-							if (matchBracketClass(previous, p, pi, ep - 1) ||
-									!matchBracketClass(at, p, pi, ep - 1)) {
-								return -1;
-							}
-							pi = ep;
-							// else return match(ms, s, ep);
-						}
-						continue init;    // goto init
-
-						default:
-							if (Syntax.isdigit(p.charAt(pi + 1))) // capture results (%0-%09)?
-							{
-								si = matchCapture(si, p.charAt(pi + 1));
-								if (si < 0)
-									return si;
-								pi += 2;
-								// else return match(ms, s, p+2);
-								continue init;  // goto init
+			step();
+			Pattern.Item item = items[pi];
+			switch (item.kind) {
+				case Pattern.END:
+					return si;              // match succeeded
+
+				case Pattern.OPEN:
+					return startCapture(si, pi + 1, CAP_UNFINISHED);
+
+				case Pattern.POSITION:
+					return startCapture(si, pi + 1, CAP_POSITION);
+
+				case Pattern.CLOSE:       // end capture
+					return endCapture(si, pi + 1);
+
+				case Pattern.BALANCE:
+					si = matchBalance(si, item);
+					if (si < 0)
+						return si;
+					++pi;
+					continue init;    // goto init
+
+				case Pattern.FRONTIER: {
+					char previous = (si == 0) ? '\0' : src.charAt(si - 1);
+					char at = (si == end) ? '\0' : src.charAt(si);
+					if (item.matches(previous) || !item.matches(at))
+						return -1;
+					++pi;
+					continue init;    // goto init
+				}
+
+				case Pattern.BACKREF:
+					si = matchCapture(si, item.c);
+					if (si < 0)
+						return si;
+					++pi;
+					continue init;  // goto init
+
+				case Pattern.END_ANCHOR:
+					return (si == end) ? si : -1;     // check end of string
+
+				case Pattern.ERROR:
+					throw L.error(item.message);
+
+				default: {        // it is a pattern item
+					boolean m = si < end && item.matches(src.charAt(si));
+					switch (item.quantifier) {
+						case '?':       // optional
+							if (m) {
+								int res = match(si + 1, pi + 1);
+								if (res >= 0)
+									return res;
 							}
-							// We emulate a goto dflt by a fallthrough to the next
-							// case (of the outer switch) and making sure that the
-							// next case has no effect when we fallthrough to it from here.
-							// goto dflt;
-					}
-					// FALLTHROUGH
-				case '$':
-					if (p.charAt(pi) == '$') {
-						if (p.length() == pi + 1)      // is the '$' the last char in pattern?
-							return (si == end) ? si : -1;     // check end of string
-						// else goto dflt;
-					}
-					// FALLTHROUGH
-				default:        // it is a pattern item
-				{
-					int ep = classend(p, pi);   // indexes what is next
-					boolean m = si < end && singleMatch(src.charAt(si), p, pi, ep);
-					if (p.length() > ep) {
-						switch (p.charAt(ep)) {
-							case '?':       // optional
-								if (m) {
-									int res = match(si + 1, p, ep + 1);
-									if (res >= 0)
-										return res;
-								}
-								pi = ep + 1;
-								// else return match(s, ep+1);
-								continue init;      // goto init
-
-							case '*':       // 0 or more repetitions
-								return maxExpand(si, p, pi, ep);
-
-							case '+':       // 1 or more repetitions
-								return m ? maxExpand(si + 1, p, pi, ep) : -1;
-
-							case '-':       // 0 or more repetitions (minimum)
-								return minExpand(si, p, pi, ep);
-						}
+							++pi;
+							continue init;      // goto init
+
+						case '*':       // 0 or more repetitions
+							return maxExpand(si, item, pi);
+
+						case '+':       // 1 or more repetitions
+							return m ? maxExpand(si + 1, item, pi) : -1;
+
+						case '-':       // 0 or more repetitions (minimum)
+							return minExpand(si, item, pi);
 					}
-					// else or default:
 					if (!m)
 						return -1;
 					++si;
-					pi = ep;
-					// return match(ms, s+1, ep);
-					// continue init;
+					++pi;
 				}
 			}
 		}
@@ -449,12 +425,12 @@ final class MatchState {
 				return src.substring(s, e);    // add whole match
 			throw invalidCapture();
 		}
-		int l = captureLen(i);
+		int l = captureLen[i];
 		if (l == CAP_UNFINISHED)
 			throw unfinishedCapture();
 		if (l == CAP_POSITION)
-			return Double.valueOf(captureInit(i) + 1);
-		return src.substring(captureInit(i), captureInit(i) + l);
+			return Double.valueOf(captureInit[i] + 1);
+		return src.substring(captureInit[i], captureInit[i] + l);
 	}
 
 	void push_onecapture(int i, int s, int e) {
@@ -473,61 +449,40 @@ final class MatchState {
 	}
 
 	/**
-	 * A helper for gsub.  Equivalent to add_s from lstrlib.c.
+	 * Appends capture <var>i</var>, or the whole match if <var>i</var> is
+	 * -1, straight from the subject.  A helper for gsub, see
+	 * {@link Replacement}.
+	 *
+	 * @param s index of start of match.
+	 * @param e index of end of match.
 	 */
-	void adds(StringBuilder b, int si, int ei) {
-		String news = L.toString(L.value(3));
-		int l = news.length();
-		for (int i = 0; i < l; ++i) {
-			if (news.charAt(i) != L_ESC) {
-				b.append(news.charAt(i));
-			} else {
-				++i;    // skip L_ESC
-				if (!Syntax.isdigit(news.charAt(i))) {
-					b.append(news.charAt(i));
-				} else if (news.charAt(i) == '0') {
-					b.append(src.substring(si, ei));
-				} else {
-					// add capture to accumulated result
-					b.append(L.toString(onecapture(news.charAt(i) - '1', si, ei)));
-				}
-			}
+	void addCapture(StringBuilder b, int i, int s, int e) {
+		if (i < 0 || i == 0 && level == 0) {
+			b.append(src, s, e);
+			return;
 		}
+		if (i >= level)
+			throw invalidCapture();
+		int l = captureLen[i];
+		if (l == CAP_UNFINISHED)
+			throw unfinishedCapture();
+		if (l == CAP_POSITION) {
+			b.append(L.toString(Double.valueOf(captureInit[i] + 1)));
+			return;
+		}
+		b.append(src, captureInit[i], captureInit[i] + l);
 	}
 
 	/**
-	 * A helper for gsub.  Equivalent to add_value from lstrlib.c.
+	 * Thrown to abandon backtracking for the automaton.
 	 */
-	void addvalue(StringBuilder b, int si, int ei) {
-		switch (L.type(3)) {
-			case Lua.TNUMBER:
-			case Lua.TSTRING:
-				adds(b, si, ei);
-				return;
-
-			case Lua.TFUNCTION: {
-				L.pushValue(3);
-				int n = push_captures(si, ei);
-				L.call(n, 1);
-			}
-			break;
+	private static final class OverBudget extends RuntimeException {
+		private static final long serialVersionUID = 1L;
 
-			case Lua.TTABLE:
-				L.push(L.getTable(L.value(3), onecapture(0, si, ei)));
-				break;
+		static final OverBudget INSTANCE = new OverBudget();
 
-			default: {
-				throw L.argError(3, "string/function/table expected");
-			}
-		}
-		// nil or false
-		if (!Lua.toBoolean(L.value(-1))) {
-			L.pop(1);
-			L.pushString(src.substring(si, ei));
-		} else if (!Lua.isString(L.value(-1))) {
-			throw L.error("invalid replacement value (a " + Lua.typeName(L.type(-1)) + ")");
+		private OverBudget() {
+			super(null, null, false, false);
 		}
-		b.append(L.toString(L.value(-1)));  // add result to accumulator
-		L.pop(1);
 	}
-}
\ No newline at end of file
+}
@@ -35,8 +35,6 @@ import java.util.Random;
  * <code>cosh</code>) are not provided.
  */
 public final class MathLib {
-	private static final Random rng = new Random();
-
 	/**
 	 * Opens the library into the given Lua state.  This registers
 	 * the symbols of the library in the global table.
@@ -45,6 +43,9 @@ public final class MathLib {
 	 */
 	public static void open(Lua L) {
 		LuaTable t = L.register("math");
+		// Each state gets its own generator, so that states running on
+		// different threads neither contend for, nor reseed, one another's.
+		Random rng = new Random();
 
 		r(L, t, "abs", MathLib::abs);
 		r(L, t, "acos", MathLib::acos);
@@ -62,8 +63,8 @@ public final class MathLib {
 		r(L, t, "modf", MathLib::modf);
 		r(L, t, "pow", MathLib::pow); // Non-standard LUA function, research more.
 		r(L, t, "rad", MathLib::rad);
-		r(L, t, "random", MathLib::random);
-		r(L, t, "randomseed", MathLib::randomseed);
+		r(L, t, "random", l -> random(l, rng));
+		r(L, t, "randomseed", l -> randomseed(l, rng));
 		r(L, t, "sin", MathLib::sin);
 		r(L, t, "sqrt", MathLib::sqrt);
 		r(L, t, "tan", MathLib::tan);
@@ -193,12 +194,10 @@ public final class MathLib {
 		return 1;
 	}
 
-	private static int random(Lua L) {
-		// It would seem better style to associate the java.util.Random
-		// instance with the Lua instance (by implementing and using a
-		// registry for example).  However, PUC-rio uses the ISO C library
-		// and so will share the same random number generator across all Lua
-		// states.  So we do too.
+	private static int random(Lua L, Random rng) {
+		// PUC-Rio uses the ISO C library and so shares the same random
+		// number generator across all Lua states.  We don't, as the
+		// generator is bound to the state when the library is opened.
 		// check number of arguments
 		switch (L.getTop()) {
 			case 0:   // no arguments
@@ -228,7 +227,7 @@ public final class MathLib {
 		return 1;
 	}
 
-	private static int randomseed(Lua L) {
+	private static int randomseed(Lua L, Random rng) {
 		rng.setSeed((long) L.checkNumber(1));
 		return 0;
 	}
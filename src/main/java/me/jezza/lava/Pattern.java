@@ -0,0 +1,365 @@
+package me.jezza.lava;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static me.jezza.lava.MatchState.L_ESC;
+
+/**
+ * A Lua pattern, parsed once into a sequence of {@link Item}s that
+ * {@link MatchState} runs, rather than re-parsing its classes, sets and
+ * quantifiers at every position of every match.  Each Lua state keeps
+ * the patterns its string functions use in a small cache, see
+ * {@link #of}.
+ * <p>
+ * Parsing never fails: a malformed part of a pattern becomes an
+ * {@link #ERROR} item, raised when a match reaches it, just as it was
+ * when the pattern was parsed as it was matched.
+ *
+ * @author Jezza
+ */
+final class Pattern {
+	/**
+	 * Most patterns kept by each Lua state.
+	 */
+	private static final int CACHE_SIZE = 64;
+
+	// Kinds of item.
+	/**
+	 * End of the pattern: the match succeeds.
+	 */
+	static final int END = 0;
+	/**
+	 * A single character class, with its quantifier.
+	 */
+	static final int SINGLE = 1;
+	/**
+	 * <code>(</code>
+	 */
+	static final int OPEN = 2;
+	/**
+	 * <code>()</code>
+	 */
+	static final int POSITION = 3;
+	/**
+	 * <code>)</code>
+	 */
+	static final int CLOSE = 4;
+	/**
+	 * <code>%bxy</code>
+	 */
+	static final int BALANCE = 5;
+	/**
+	 * <code>%f[set]</code>
+	 */
+	static final int FRONTIER = 6;
+	/**
+	 * <code>%1</code> to <code>%9</code>.
+	 */
+	static final int BACKREF = 7;
+	/**
+	 * <code>$</code> at the end of the pattern.
+	 */
+	static final int END_ANCHOR = 8;
+	/**
+	 * A malformed part of the pattern.
+	 */
+	static final int ERROR = 9;
+
+	final String source;
+	/**
+	 * Whether the pattern starts with <code>^</code>, which isn't one
+	 * of its items.
+	 */
+	final boolean anchored;
+	final Item[] items;
+	/**
+	 * Number of captures the pattern opens.
+	 */
+	final int captures;
+	/**
+	 * The pattern as an automaton, if it can be one.
+	 */
+	final Automaton automaton;
+	/**
+	 * Of an anchored pattern: the same pattern with its <code>^</code>
+	 * taken literally, for gmatch, once asked for.
+	 */
+	private Pattern unanchored;
+
+	/**
+	 * @param anchor whether a leading <code>^</code> anchors the pattern,
+	 *               as it does everywhere but gmatch.
+	 */
+	Pattern(String p, boolean anchor) {
+		this.source = p;
+		this.anchored = anchor && p.length() > 0 && p.charAt(0) == '^';
+		List<Item> items = new ArrayList<>();
+		parse(p, anchored ? 1 : 0, items);
+		this.items = items.toArray(new Item[0]);
+		int captures = 0;
+		for (Item item : this.items) {
+			if (item.kind == OPEN || item.kind == POSITION)
+				++captures;
+		}
+		this.captures = captures;
+		this.automaton = Automaton.of(this.items, captures);
+	}
+
+	/**
+	 * Creates a fresh, empty, cache of patterns, for a Lua state.
+	 */
+	static Map<String, Pattern> cache() {
+		return new LinkedHashMap<String, Pattern>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+				return size() > CACHE_SIZE;
+			}
+		};
+	}
+
+	/**
+	 * @return the pattern <var>p</var>, anchored by a leading
+	 * <code>^</code>, from <var>L</var>'s cache.
+	 */
+	static Pattern of(Lua L, String p) {
+		Map<String, Pattern> cache = L.patterns;
+		Pattern pattern = cache.get(p);
+		if (pattern == null)
+			cache.put(p, pattern = new Pattern(p, true));
+		return pattern;
+	}
+
+	/**
+	 * @param anchor as for {@link #Pattern(String, boolean)}.
+	 * @return the pattern <var>p</var> from <var>L</var>'s cache, where
+	 * the unanchored form of an anchored pattern shares its entry.
+	 */
+	static Pattern of(Lua L, String p, boolean anchor) {
+		Pattern pattern = of(L, p);
+		if (anchor || !pattern.anchored)
+			return pattern;
+		if (pattern.unanchored == null)
+			pattern.unanchored = new Pattern(p, false);
+		return pattern.unanchored;
+	}
+
+	/**
+	 * Follows {@link MatchState#match} as it was when it worked on the
+	 * pattern string, adding the items it met in turn.
+	 */
+	private static void parse(String p, int pi, List<Item> items) {
+		int length = p.length();
+		while (true) {
+			if (pi == length) {
+				items.add(new Item(END));
+				return;
+			}
+			switch (p.charAt(pi)) {
+				case '(':
+					if (pi + 1 == length) {
+						items.add(error("unfinished capture"));
+						return;
+					}
+					if (p.charAt(pi + 1) == ')') {
+						items.add(new Item(POSITION));
+						pi += 2;
+					} else {
+						items.add(new Item(OPEN));
+						pi += 1;
+					}
+					continue;
+
+				case ')':
+					items.add(new Item(CLOSE));
+					pi += 1;
+					continue;
+
+				case L_ESC:
+					if (pi + 1 == length) {
+						items.add(error("malformed pattern (ends with '%')"));
+						return;
+					}
+					switch (p.charAt(pi + 1)) {
+						case 'b': {
+							if (pi + 3 >= length) {
+								items.add(error("Unbalanced pattern"));
+								return;
+							}
+							Item item = new Item(BALANCE);
+							item.c = p.charAt(pi + 2);
+							item.e = p.charAt(pi + 3);
+							items.add(item);
+							pi += 4;
+							continue;
+						}
+						case 'f': {
+							pi += 2;
+							if (length == pi || p.charAt(pi) != '[') {
+								items.add(error("missing '[' after '%f' in pattern"));
+								return;
+							}
+							int ep = classEnd(p, pi);
+							if (ep < 0) {
+								items.add(error("malformed pattern (missing '[')"));
+								return;
+							}
+							items.add(new Item(FRONTIER, p, pi, ep));
+							pi = ep;
+							continue;
+						}
+						default:
+							if (Syntax.isdigit(p.charAt(pi + 1))) {
+								Item item = new Item(BACKREF);
+								item.c = p.charAt(pi + 1);
+								items.add(item);
+								pi += 2;
+								continue;
+							}
+					}
+					break;
+
+				case '$':
+					if (pi + 1 == length) {
+						items.add(new Item(END_ANCHOR));
+						return;
+					}
+					break;
+			}
+			// A single character class.
+			int ep = classEnd(p, pi);
+			if (ep < 0) {
+				items.add(error("malformed pattern (missing '[')"));
+				return;
+			}
+			Item item = new Item(SINGLE, p, pi, ep);
+			if (ep < length) {
+				switch (p.charAt(ep)) {
+					case '?':
+					case '*':
+					case '+':
+					case '-':
+						item.quantifier = p.charAt(ep++);
+				}
+			}
+			items.add(item);
+			pi = ep;
+		}
+	}
+
+	private static Item error(String message) {
+		Item item = new Item(ERROR);
+		item.message = message;
+		return item;
+	}
+
+	/**
+	 * @return the index in <var>p</var> just after the class that starts
+	 * at <var>pi</var>, or -1 if it's a malformed set.
+	 */
+	private static int classEnd(String p, int pi) {
+		int length = p.length();
+		switch (p.charAt(pi++)) {
+			case L_ESC:
+				// assert pi < length // checked by parse
+				return pi + 1;
+
+			case '[':
+				if (pi == length)
+					return -1;
+				if (p.charAt(pi) == '^')
+					++pi;
+				do {    // look for a ']'
+					if (pi == length)
+						return -1;
+					if (p.charAt(pi++) == L_ESC) {
+						if (pi == length)
+							return -1;
+						++pi;     // skip escapes (e.g. '%]')
+					}
+					if (pi == length)
+						return -1;
+				} while (p.charAt(pi) != ']');
+				return pi + 1;
+
+			default:
+				return pi;
+		}
+	}
+
+	/**
+	 * One item of a pattern.
+	 */
+	static final class Item {
+		final int kind;
+		/**
+		 * Of a {@link #SINGLE}: '?', '*', '+', '-', or 0 to match exactly
+		 * once.
+		 */
+		char quantifier;
+		/**
+		 * The character a {@link #SINGLE} that's a plain character
+		 * matches, the digit of a {@link #BACKREF}, or the opening
+		 * character of a {@link #BALANCE}.
+		 */
+		char c;
+		/**
+		 * The closing character of a {@link #BALANCE}.
+		 */
+		char e;
+		/**
+		 * For a class, which characters below 256 it matches, one bit
+		 * each.  Null for a plain character.
+		 */
+		private long[] set;
+		/**
+		 * The class in the pattern, for characters from 256 on.
+		 */
+		private String p;
+		private int pi;
+		private int ep;
+		/**
+		 * Of an {@link #ERROR}.
+		 */
+		String message;
+
+		Item(int kind) {
+			this.kind = kind;
+		}
+
+		/**
+		 * A class, from <var>pi</var> to <var>ep</var> in <var>p</var>.
+		 */
+		Item(int kind, String p, int pi, int ep) {
+			this.kind = kind;
+			this.p = p;
+			this.pi = pi;
+			this.ep = ep;
+			char first = p.charAt(pi);
+			if (ep == pi + 1 && first != '.' && first != '[') {
+				c = first;
+				return;
+			}
+			long[] set = new long[4];
+			for (char ch = 0; ch < 256; ++ch) {
+				if (MatchState.singleMatch(ch, p, pi, ep))
+					set[ch >> 6] |= 1L << ch;
+			}
+			this.set = set;
+		}
+
+		/**
+		 * Whether the class matches <var>ch</var>.
+		 */
+		boolean matches(char ch) {
+			long[] set = this.set;
+			if (set == null)
+				return ch == c;
+			if (ch < 256)
+				return (set[ch >> 6] & 1L << ch) != 0;
+			return MatchState.singleMatch(ch, p, pi, ep);
+		}
+	}
+}
@@ -87,6 +87,31 @@ final class Proto {
 	int linedefined;
 	int lastlinedefined;
 
+	/**
+	 * Number of calls and loop iterations the interpreter has counted,
+	 * see {@link Jit#THRESHOLD}.
+	 */
+	int hotness;
+	/**
+	 * The code compiled by {@link Jit}, once this function is hot.
+	 */
+	Jit.Code compiled;
+	/**
+	 * Inline caches of the OP_GETGLOBAL and OP_SETGLOBAL instructions,
+	 * indexed by pc.  Allocated when the first one is filled.
+	 */
+	Lua.GlobalCache[] globals;
+	/**
+	 * Number of times the interpreter has had to undo the quickening of
+	 * one of this function's instructions.
+	 */
+	int deopts;
+	/**
+	 * The closure of this function that OP_CLOSURE last made, when it has
+	 * no upvalues, to be handed out again, see {@link Lua#shareClosures}.
+	 */
+	LuaFunction closure;
+
 	/**
 	 * Proto synthesized by {@link Loader}.
 	 * All the arrays that are passed to the constructor are
@@ -204,7 +229,8 @@ final class Proto {
 	}
 
 	/**
-	 * Instruction block (do not modify).
+	 * Instruction block (do not modify).  Once the function has run, it may
+	 * hold quickened instructions, see {@link Lua#generic(int)}.
 	 */
 	int[] code() {
 		return code;
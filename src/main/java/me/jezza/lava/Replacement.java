@@ -0,0 +1,126 @@
+package me.jezza.lava;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static me.jezza.lava.MatchState.L_ESC;
+
+/**
+ * The replacement argument of string.gsub, looked at once per call
+ * rather than once per match.  A replacement string is split into the
+ * text between its <code>%0</code> to <code>%9</code> and the captures
+ * they stand for, so that each match appends both straight into the
+ * result.  Equivalent to add_value and add_s from lstrlib.c.
+ *
+ * @author Jezza
+ */
+final class Replacement {
+	private final Lua L;
+	/**
+	 * The replacement, if it's a function or a table.
+	 */
+	private final Object value;
+	private final int type;
+	/**
+	 * Of a string: the text before each capture, and after the last one.
+	 */
+	private final String[] texts;
+	/**
+	 * Of a string: each capture, from 0 for <code>%1</code>, with -1 for
+	 * <code>%0</code>.
+	 */
+	private final int[] captures;
+
+	/**
+	 * @param narg the replacement's index in <var>L</var>'s stack.
+	 */
+	Replacement(Lua L, int narg) {
+		this.L = L;
+		this.type = L.type(narg);
+		switch (type) {
+			case Lua.TNUMBER:
+			case Lua.TSTRING:
+				break;
+
+			case Lua.TFUNCTION:
+			case Lua.TTABLE:
+				value = L.value(narg);
+				texts = null;
+				captures = null;
+				return;
+
+			default:
+				throw L.argError(narg, "string/function/table expected");
+		}
+		value = null;
+		String news = L.toString(L.value(narg));
+		List<String> texts = new ArrayList<>();
+		List<Integer> captures = new ArrayList<>();
+		StringBuilder text = new StringBuilder();
+		int l = news.length();
+		for (int i = 0; i < l; ++i) {
+			char c = news.charAt(i);
+			if (c != L_ESC) {
+				text.append(c);
+				continue;
+			}
+			++i;    // skip L_ESC
+			// a trailing L_ESC escapes the terminating '\0', as it does in C.
+			c = i < l ? news.charAt(i) : '\0';
+			if (!Syntax.isdigit(c)) {
+				text.append(c);
+			} else {
+				texts.add(text.toString());
+				text.setLength(0);
+				captures.add(c - '1');
+			}
+		}
+		texts.add(text.toString());
+		this.texts = texts.toArray(new String[0]);
+		int n = captures.size();
+		this.captures = new int[n];
+		for (int i = 0; i < n; ++i)
+			this.captures[i] = captures.get(i);
+	}
+
+	/**
+	 * Appends the replacement for the match from <var>si</var> to
+	 * <var>ei</var> to <var>b</var>.
+	 */
+	void add(MatchState ms, StringBuilder b, int si, int ei) {
+		switch (type) {
+			case Lua.TFUNCTION: {
+				L.push(value);
+				int n = ms.push_captures(si, ei);
+				L.call(n, 1);
+			}
+			break;
+
+			case Lua.TTABLE:
+				L.push(L.getTable(value, ms.onecapture(0, si, ei)));
+				break;
+
+			default: {
+				String[] texts = this.texts;
+				int[] captures = this.captures;
+				int n = captures.length;
+				for (int i = 0; i < n; ++i) {
+					b.append(texts[i]);
+					ms.addCapture(b, captures[i], si, ei);
+				}
+				b.append(texts[n]);
+				return;
+			}
+		}
+		Object o = L.value(-1);
+		L.pop(1);
+		// nil or false
+		if (!Lua.toBoolean(o)) {
+			b.append(ms.src, si, ei);   // keep original text
+		} else if (!Lua.isString(o)) {
+			throw L.error("invalid replacement value (a " + Lua.typeName(Lua.type(o)) + ")");
+		} else {
+			b.append(L.toString(o));  // add result to accumulator
+		}
+	}
+}
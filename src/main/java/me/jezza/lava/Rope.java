@@ -0,0 +1,65 @@
+package me.jezza.lava;
+
+/**
+ * A string made by OP_CONCAT that hasn't been looked at yet.  Its
+ * characters are the first {@link #length} of a buffer that later
+ * concatenations onto its end extend in place, so that building up a
+ * string with <code>s = s .. x</code> copies each piece once, rather
+ * than the whole string each time.
+ * <p>
+ * Ropes only ever live in the stack, tagged as {@link Lua#TSTRING}:
+ * everything that reads a string from the stack for any other purpose
+ * turns them back into a {@link String} first (see
+ * {@link Lua#stringAt}), so they're never seen by Lua code, tables,
+ * libraries or the API, and can't change a value's type or equality.
+ *
+ * @author Jezza
+ */
+final class Rope {
+	/**
+	 * Shortest first piece of a concatenation that makes a rope.  Shorter
+	 * strings are cheap enough to copy, and most results are looked at
+	 * straight away, which for a rope costs a copy of its own.
+	 */
+	static final int MIN_LENGTH = 128;
+
+	/**
+	 * Shared with the ropes that extend this one, all of which agree on
+	 * the characters they have in common, as the buffer is only ever
+	 * appended to.
+	 */
+	private final StringBuilder buffer;
+	private final int length;
+	private String string;
+
+	Rope(StringBuilder buffer) {
+		this.buffer = buffer;
+		this.length = buffer.length();
+	}
+
+	int length() {
+		return length;
+	}
+
+	/**
+	 * @param capacity the length the buffer will grow to.
+	 * @return a buffer that starts with this string, to be appended to
+	 * and made into a new rope.
+	 */
+	StringBuilder extend(int capacity) {
+		if (buffer.length() == length) {
+			buffer.ensureCapacity(capacity);
+			return buffer;
+		}
+		// Another rope has already been made by extending this one.
+		return new StringBuilder(capacity).append(buffer, 0, length);
+	}
+
+	@Override
+	public String toString() {
+		String s = string;
+		if (s == null)
+			s = string = buffer.substring(0, length);
+		return s;
+	}
+}
@@ -0,0 +1,113 @@
+package me.jezza.lava;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The layout of a record-style {@link LuaTable}: the string keys it has,
+ * in the order they were added.  Shapes are immutable, and tables that
+ * had the same keys added in the same order share a single shape, so
+ * that each table only needs to hold its values, in a plain array, in
+ * the same order as {@link #keys}.
+ * <p>
+ * Shapes form a tree rooted at {@link #EMPTY}, where each edge adds one
+ * key.  The tree is shared by every Lua state, so the edges are held in
+ * a concurrent map, and only weakly, so that shapes no table uses any
+ * more can be collected.
+ *
+ * @author Jezza
+ */
+final class Shape {
+	/**
+	 * Most keys a shape can have.  Past this a table is more like a
+	 * dictionary than a record, and {@link #indexOf} would no longer be
+	 * cheaper than the hash part.
+	 */
+	static final int MAX_FIELDS = 16;
+
+	/**
+	 * Most distinct keys that can be added to any one shape, which
+	 * bounds the tree for tables that are used as small dictionaries.
+	 */
+	private static final int MAX_TRANSITIONS = 32;
+
+	static final Shape EMPTY = new Shape(new String[0], new int[0]);
+
+	private final String[] keys;
+	private final int[] hashes;
+	private final ConcurrentHashMap<String, WeakReference<Shape>> transitions = new ConcurrentHashMap<>();
+
+	private Shape(String[] keys, int[] hashes) {
+		this.keys = keys;
+		this.hashes = hashes;
+	}
+
+	/**
+	 * @return the number of keys.
+	 */
+	int size() {
+		return keys.length;
+	}
+
+	/**
+	 * @return the key at <var>index</var>.
+	 */
+	String key(int index) {
+		return keys[index];
+	}
+
+	/**
+	 * @return the index of <var>key</var>, or -1 if it isn't one of this shape's keys.
+	 */
+	int indexOf(Object key) {
+		String[] keys = this.keys;
+		// Constant strings are interned, so most lookups match on identity.
+		for (int i = 0; i < keys.length; i++)
+			if (keys[i] == key)
+				return i;
+		if (!(key instanceof String))
+			return -1;
+		int h = key.hashCode();
+		int[] hashes = this.hashes;
+		for (int i = 0; i < keys.length; i++)
+			if (hashes[i] == h && keys[i].equals(key))
+				return i;
+		return -1;
+	}
+
+	/**
+	 * The shape that has the same keys as this one, followed by
+	 * <var>key</var>, which must not already be one of them.
+	 *
+	 * @return that shape, or null when there should be no such shape, as
+	 * it would be too large, or this one already has too many transitions.
+	 */
+	Shape add(String key) {
+		WeakReference<Shape> ref = transitions.get(key);
+		Shape shape = ref != null ? ref.get() : null;
+		if (shape != null)
+			return shape;
+		int size = keys.length;
+		if (size == MAX_FIELDS || ref == null && transitions.size() >= MAX_TRANSITIONS)
+			return null;
+		String[] keys = new String[size + 1];
+		System.arraycopy(this.keys, 0, keys, 0, size);
+		keys[size] = key;
+		int[] hashes = new int[size + 1];
+		System.arraycopy(this.hashes, 0, hashes, 0, size);
+		hashes[size] = key.hashCode();
+		Shape created = new Shape(keys, hashes);
+		WeakReference<Shape> fresh = new WeakReference<>(created);
+		// Another thread may have made the same shape meanwhile; use theirs.
+		while (true) {
+			ref = transitions.putIfAbsent(key, fresh);
+			if (ref == null)
+				return created;
+			shape = ref.get();
+			if (shape != null)
+				return shape;
+			if (transitions.replace(key, ref, fresh))
+				return created;
+		}
+	}
+}
@@ -31,7 +31,8 @@ import java.io.IOException;
  * The library can be opened using the {@link #open} method.
  * <p>
  * Internal Format Classes:
- * {@link FormatItem}, and {@link MatchState}
+ * {@link Format}, {@link FormatItem}, {@link Pattern}, {@link MatchState} and
+ * {@link Replacement}
  */
 public final class StringLib {
 	private static final LuaJavaCallback GMATCH_AUX_FUN = StringLib::gmatchaux;
@@ -166,21 +167,18 @@ public final class StringLib {
 				return 2;
 			}
 		} else {
-			MatchState ms = new MatchState(L, s, l1);
-			boolean anchor = p.charAt(0) == '^';
-			int si = init;
-			do {
-				ms.level = 0;
-				int res = ms.match(si, p, anchor ? 1 : 0);
-				if (res >= 0) {
-					if (isFind) {
-						L.pushNumber(si + 1);       // start
-						L.pushNumber(res);          // end
-						return ms.push_captures(-1, -1) + 2;
-					}     // else
-					return ms.push_captures(si, res);
-				}
-			} while (si++ < ms.end && !anchor);
+			Pattern pattern = Pattern.of(L, p);
+			MatchState ms = new MatchState(L, s, pattern);
+			int si = ms.find(init, pattern.anchored);
+			if (si >= 0) {
+				int res = ms.matchEnd;
+				if (isFind) {
+					L.pushNumber(si + 1);       // start
+					L.pushNumber(res);          // end
+					return ms.push_captures(-1, -1) + 2;
+				}     // else
+				return ms.push_captures(si, res);
+			}
 		}
 		L.pushNil();        // not found
 		return 1;
@@ -197,12 +195,14 @@ public final class StringLib {
 	 * Implement string.match.  Operates slightly differently from the
 	 * PUC-Rio code because instead of storing the iteration state as
 	 * upvalues of the C closure the iteration state is stored in an
-	 * Object[3] and kept on the stack.
+	 * Object[3] and kept on the stack.  A leading '^' doesn't anchor the
+	 * pattern here, as the iteration would stop at once.
 	 */
 	private static int gmatch(Lua L) {
 		Object[] state = new Object[3];
 		state[0] = L.checkString(1);
-		state[1] = L.checkString(2);
+		String p = L.checkString(2);
+		state[1] = Pattern.of(L, p, false);
 		state[2] = 0;
 		L.push(GMATCH_AUX_FUN);
 		L.push(state);
@@ -216,18 +216,17 @@ public final class StringLib {
 	private static int gmatchaux(Lua L) {
 		Object[] state = (Object[]) L.value(1);
 		String s = (String) state[0];
-		String p = (String) state[1];
-		MatchState ms = new MatchState(L, s, s.length());
-		for (int i = (Integer) state[2]; i <= ms.end; ++i) {
-			ms.level = 0;
-			int e = ms.match(i, p, 0);
-			if (e >= 0) {
-				// empty match, then go at least one position
-				state[2] = e == i ? e + 1 : e;
-				return ms.push_captures(i, e);
-			}
-		}
-		return 0;   // not found.
+		MatchState ms = new MatchState(L, s, (Pattern) state[1]);
+		int init = (Integer) state[2];
+		if (init > ms.end)
+			return 0;
+		int i = ms.find(init, false);
+		if (i < 0)
+			return 0;   // not found.
+		int e = ms.matchEnd;
+		// empty match, then go at least one position
+		state[2] = e == i ? e + 1 : e;
+		return ms.push_captures(i, e);
 	}
 
 	/**
@@ -238,22 +237,26 @@ public final class StringLib {
 		int sl = s.length();
 		String p = L.checkString(2);
 		int maxn = L.optInt(4, sl + 1);
-		boolean anchor = p.length() > 0 && p.charAt(0) == '^';
-		if (anchor)
-			p = p.substring(1);
-		MatchState ms = new MatchState(L, s, sl);
-		StringBuilder b = new StringBuilder();
+		Replacement repl = new Replacement(L, 3);
+		Pattern pattern = Pattern.of(L, p);
+		boolean anchor = pattern.anchored;
+		MatchState ms = new MatchState(L, s, pattern);
+		StringBuilder b = null;
 
 		int n = 0;
 		int si = 0;
 		while (n < maxn) {
-			ms.level = 0;
-			int e = ms.match(si, p, 0);
-			if (e >= 0) {
-				++n;
-				ms.addvalue(b, si, e);
-			}
-			if (e >= 0 && e > si)     // non empty match?
+			int start = ms.find(si, anchor);
+			if (start < 0)
+				break;
+			if (b == null)
+				b = new StringBuilder(sl);
+			b.append(s, si, start);
+			si = start;
+			int e = ms.matchEnd;
+			++n;
+			repl.add(ms, b, si, e);
+			if (e > si)     // non empty match?
 				si = e; // skip it
 			else if (si < ms.end)
 				b.append(s.charAt(si++));
@@ -262,8 +265,12 @@ public final class StringLib {
 			if (anchor)
 				break;
 		}
-		b.append(s.substring(si));
-		L.pushString(b.toString());
+		if (b == null) {
+			L.pushString(s);    // no matches, nothing to copy
+		} else {
+			b.append(s, si, sl);
+			L.pushString(b.toString());
+		}
 		L.pushNumber(n);    // number of substitutions
 		return 2;
 	}
@@ -298,58 +305,7 @@ public final class StringLib {
 	}
 
 	static int format(Lua L) {
-		int arg = 1;
-		String target = L.checkString(1);
-		int sfl = target.length();
-		StringBuilder b = new StringBuilder();
-		int i = 0;
-		while (i < sfl) {
-			if (target.charAt(i) != MatchState.L_ESC) {
-				b.append(target.charAt(i++));
-			} else if (target.charAt(++i) == MatchState.L_ESC) {
-				b.append(target.charAt(i++));
-			} else      // format item
-			{
-				++arg;
-				FormatItem item = new FormatItem(L, target.substring(i));
-				i += item.length();
-				switch (item.type()) {
-					case 'c':
-						item.formatChar(b, (char) L.checkNumber(arg));
-						break;
-
-					case 'd':
-					case 'i':
-					case 'o':
-					case 'u':
-					case 'x':
-					case 'X':
-						// :todo: should be unsigned conversions cope better with negative number?
-						item.formatInteger(b, (long) L.checkNumber(arg));
-						break;
-
-					case 'e':
-					case 'E':
-					case 'f':
-					case 'g':
-					case 'G':
-						item.formatFloat(b, L.checkNumber(arg));
-						break;
-
-					case 'q':
-						addquoted(L, b, arg);
-						break;
-
-					case 's':
-						item.formatString(b, L.checkString(arg));
-						break;
-
-					default:
-						throw L.error("invalid option to 'format'");
-				}
-			}
-		}
-		L.pushString(b.toString());
+		L.pushString(Format.of(L, L.checkString(1)).format(L));
 		return 1;
 	}
 
@@ -23,6 +23,7 @@
  */
 package me.jezza.lava;
 
+import java.util.Arrays;
 import java.util.Iterator;
 
 /**
@@ -148,54 +149,118 @@ public final class TableLib {
 	}
 
 	/**
-	 * Implements table.sort.
+	 * Implements table.sort.  The elements are sorted in the table's
+	 * array part: with {@link Arrays#sort} when there's no order function
+	 * and they're all numbers or all strings, and otherwise by the
+	 * quicksort from ltablib.c, on a copy written back however it ends,
+	 * so that an order function can't move the array part from under it.
 	 */
 	private static int sort(Lua L) {
 		int n = aux_getn(L, 1);
 		if (!L.isNoneOrNil(2))      // is there a 2nd argument?
 			L.checkType(2, Lua.TFUNCTION);
 		L.setTop(2);        // make sure there is two arguments
-		auxsort(L, 1, n);
+		if (n < 2)
+			return 0;
+		LuaTable t = (LuaTable) L.value(1);
+		Object f = L.value(2);
+		if (Lua.isNil(f)) {
+			Object[] array = t.arrayFor(n);
+			if (sortNumbers(array, n) || sortStrings(array, n))
+				return 0;
+			f = null;
+		}
+		// a[0] and a[n + 1] are for an invalid order function to read.
+		Object[] a = new Object[n + 2];
+		a[0] = Lua.rawGetI(t, 0);
+		System.arraycopy(t.arrayFor(n), 0, a, 1, n);
+		a[n + 1] = Lua.NIL;
+		try {
+			auxsort(L, f, a, 1, n);
+		} finally {
+			System.arraycopy(a, 1, t.arrayFor(n), 0, n);
+		}
 		return 0;
 	}
 
-	static void auxsort(Lua L, int l, int u) {
-		Object t = L.value(1);
+	/**
+	 * Sorts the first <var>n</var> elements of <var>array</var>, if they're
+	 * all numbers, none of which is NaN.
+	 */
+	private static boolean sortNumbers(Object[] array, int n) {
+		double[] d = new double[n];
+		for (int i = 0; i < n; ++i) {
+			Object o = array[i];
+			if (!(o instanceof Double))
+				return false;
+			double v = (Double) o;
+			if (v != v)
+				return false;
+			d[i] = v;
+		}
+		Arrays.sort(d);
+		for (int i = 0; i < n; ++i) {
+			// keeps the elements already in place, down to the sign of zero.
+			double v = d[i];
+			if (Double.doubleToRawLongBits(v) != Double.doubleToRawLongBits((Double) array[i]))
+				array[i] = v;
+		}
+		return true;
+	}
+
+	/**
+	 * Sorts the first <var>n</var> elements of <var>array</var>, if they're
+	 * all strings, in the order of {@link Lua#lessThan}.
+	 */
+	private static boolean sortStrings(Object[] array, int n) {
+		for (int i = 0; i < n; ++i) {
+			if (!(array[i] instanceof String))
+				return false;
+		}
+		Arrays.sort(array, 0, n);
+		return true;
+	}
+
+	/**
+	 * @param f the order function, or null to use <code>&lt;</code>.
+	 * @param a the elements from index 1, where the table has them.
+	 */
+	static void auxsort(Lua L, Object f, Object[] a, int l, int u) {
 		while (l < u)       // for tail recursion
 		{
 			int i;
 			int j;
 			// sort elements a[l], a[l+u/2], and a[u]
-			Object o1 = Lua.rawGetI(t, l);
-			Object o2 = Lua.rawGetI(t, u);
-			if (sort_comp(L, o2, o1)) // a[u] < a[l]?
+			Object o1 = a[l];
+			Object o2 = a[u];
+			if (sort_comp(L, f, o2, o1)) // a[u] < a[l]?
 			{
-				L.rawSetI(t, l, o2);
-				L.rawSetI(t, u, o1);
+				a[l] = o2;
+				a[u] = o1;
 			}
 			if (u - l == 1)
 				break;  // only 2 elements
 			i = (l + u) / 2;
-			o1 = Lua.rawGetI(t, i);
-			o2 = Lua.rawGetI(t, l);
-			if (sort_comp(L, o1, o2)) // a[i]<a[l]?
+			o1 = a[i];
+			o2 = a[l];
+			if (sort_comp(L, f, o1, o2)) // a[i]<a[l]?
 			{
-				L.rawSetI(t, i, o2);
-				L.rawSetI(t, l, o1);
+				a[i] = o2;
+				a[l] = o1;
 			} else {
-				o2 = Lua.rawGetI(t, u);
-				if (sort_comp(L, o2, o1))       // a[u]<a[i]?
+				o2 = a[u];
+				if (sort_comp(L, f, o2, o1))       // a[u]<a[i]?
 				{
-					L.rawSetI(t, i, o2);
-					L.rawSetI(t, u, o1);
+					a[i] = o2;
+					a[u] = o1;
 				}
 			}
 			if (u - l == 2)
 				break;  // only 3 elements
-			Object p = Lua.rawGetI(t, i); // Pivot
-			o2 = Lua.rawGetI(t, u - 1);
-			L.rawSetI(t, i, o2);
-			L.rawSetI(t, u - 1, p);
+			Object p = a[i]; // Pivot
+			o2 = a[u - 1];
+			a[i] = o2;
+			a[u - 1] = p;
 			// a[l] <= P == a[u-1] <= a[u], only need to sort from l+1 to u-2
 			i = l;
 			j = u - 1;
@@ -204,29 +269,29 @@ public final class TableLib {
 			{
 				// repeat ++i until a[i] >= P
 				while (true) {
-					o1 = Lua.rawGetI(t, ++i);
-					if (!sort_comp(L, o1, p))
+					o1 = a[++i];
+					if (!sort_comp(L, f, o1, p))
 						break;
 					if (i > u)
 						throw L.error("invalid order function for sorting");
 				}
 				// repreat --j until a[j] <= P
 				while (true) {
-					o2 = Lua.rawGetI(t, --j);
-					if (!sort_comp(L, p, o2))
+					o2 = a[--j];
+					if (!sort_comp(L, f, p, o2))
 						break;
 					if (j < l)
 						throw L.error("invalid order function for sorting");
 				}
 				if (j < i)
 					break;
-				L.rawSetI(t, i, o2);
-				L.rawSetI(t, j, o1);
+				a[i] = o2;
+				a[j] = o1;
 			}
-			o1 = Lua.rawGetI(t, u - 1);
-			o2 = Lua.rawGetI(t, i);
-			L.rawSetI(t, u - 1, o2);
-			L.rawSetI(t, i, o1);      // swap pivot (a[u-1]) with a[i]
+			o1 = a[u - 1];
+			o2 = a[i];
+			a[u - 1] = o2;
+			a[i] = o1;      // swap pivot (a[u-1]) with a[i]
 			// a[l..i-1 <= a[i] == P <= a[i+1..u]
 			// adjust so that smaller half is in [j..i] and larger one in [l..u]
 			if (i - l < u - i) {
@@ -238,14 +303,14 @@ public final class TableLib {
 				i = u;
 				u = j - 2;
 			}
-			auxsort(L, j, i); // call recursively the smaller one
+			auxsort(L, f, a, j, i); // call recursively the smaller one
 		} // repeat the routine for the larger one
 	}
 
-	private static boolean sort_comp(Lua L, Object a, Object b) {
+	private static boolean sort_comp(Lua L, Object f, Object a, Object b) {
 		// function?
-		if (!Lua.isNil(L.value(2))) {
-			L.pushValue(2);
+		if (f != null) {
+			L.push(f);
 			L.push(a);
 			L.push(b);
 			L.call(2, 1);
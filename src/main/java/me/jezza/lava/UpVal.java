@@ -42,52 +42,59 @@ final class UpVal {
 	protected static final UpVal[] EMPTY = new UpVal[0];
 
 	/**
-	 * The offset field.  Stored here, but not actually used directly by
-	 * this class.
+	 * The offset field.
 	 * Used (by {@link Lua}) when searching for {@link UpVal} instances.
-	 * An open UpVal has a valid offset field.  Its slot is shared
-	 * with a slot of the VM stack.
-	 * A closed UpVal has offset == -1.  It's slot will be a fresh copy
-	 * and not shared with any other.
+	 * An open UpVal has a valid offset field, and its value is the
+	 * element at that offset in the VM stack of {@link #L}.
+	 * A closed UpVal has offset == -1.  Its value is held in its own
+	 * slot, which is not shared with any other.
 	 */
 	private int offset;
 
 	/**
-	 * The slot object used to store the Lua value.
+	 * The Lua thread whose stack holds the value, while open.
+	 */
+	private Lua L;
+
+	/**
+	 * The slot object used to store the Lua value, once closed.
 	 */
 	private Slot s;
 
 	/**
-	 * A fresh upvalue from an offset, and a slot.
-	 * Conceptually <var>offset</var> and <var>slot</var> convey the same
-	 * information, only one is necessary since the offset implies the
-	 * slot and vice-versa.  <var>slot</var> is used to directly reference
-	 * the value (this avoids an indirection to the VM stack). <var>offset</var>
-	 * is used when searching for UpVals in the openupval list; this
-	 * happens when closing UpVals (function return) or creating them
-	 * (execution of functon declaration).
+	 * A fresh (open) upvalue referencing a stack slot.  The stack is
+	 * made of parallel arrays which may be reallocated as it grows, so
+	 * the value is always accessed by offset, through <var>L</var>.
+	 * Lua's openupval array holds it at <var>offset</var> while it's open;
+	 * there it's found when closing UpVals (function return) or creating
+	 * them (execution of functon declaration).
 	 *
+	 * @param L      Lua thread whose stack holds the value.
 	 * @param offset index into Lua thread's VM stack, must be a valid index.
-	 * @param s      Slot corresponding to offset.
-	 * @throws NullPointerException if L is null.
 	 */
-	UpVal(int offset, Slot s) {
+	UpVal(Lua L, int offset) {
+		this.L = L;
 		this.offset = offset;
-		this.s = s;
 	}
 
 	/**
 	 * Getter for underlying value.
 	 */
 	Object getValue() {
-		return s.asObject();
+		Lua L = this.L;
+		return L != null ? L.objectAt(offset) : s.asObject();
 	}
 
 	/**
 	 * Setter for underlying value.
 	 */
 	void setValue(Object o) {
-		s.setObject(o);
+		Lua L = this.L;
+		if (L != null) {
+			L.setObjectAt(o, offset);
+		} else {
+			s.setObject(o);
+		}
 	}
 
 	/**
@@ -106,12 +113,13 @@ final class UpVal {
 	 * transfers a variable binding from the stack to the heap.
 	 */
 	void close() {
-		s = new Slot(s);
+		s = L.slotAt(offset, new Slot());
+		L = null;
 		offset = -1;
 	}
 
 	@Override
 	public String toString() {
-		return "offset[" + offset + "]=" + s;
+		return "offset[" + offset + "]=" + getValue();
 	}
 }
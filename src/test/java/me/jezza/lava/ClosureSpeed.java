@@ -0,0 +1,85 @@
+package me.jezza.lava;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Times a loop that defines functions without upvalues on every
+ * iteration, and counts the bytes it allocates, with and without
+ * {@link Lua#shareClosures}.  With it, they should not grow with the
+ * number of closures defined.
+ *
+ * @author Jezza
+ */
+final class ClosureSpeed {
+
+	public static void main(String[] args) {
+		System.out.println(report());
+	}
+
+	static String report() {
+		StringBuilder b = new StringBuilder();
+		for (int n = 10000; n <= 10000000; n *= 10) {
+			report(b, n, false);
+			report(b, n, true);
+		}
+		return b.toString();
+	}
+
+	private static void report(StringBuilder b, int n, boolean share) {
+		long[] result = execute(n, share);
+		b.append(share ? "Shared, " : "Distinct, ");
+		b.append(n);
+		b.append(" iterations: ");
+		b.append(result[0] / 1000000000D);
+		b.append(" seconds");
+		if (result[1] >= 0) {
+			b.append(", ");
+			b.append(result[1] / n);
+			b.append(" bytes per iteration");
+		}
+		b.append('.');
+		b.append('\n');
+	}
+
+	/**
+	 * @return execution time in nanoseconds, and bytes allocated (or -1,
+	 * if they can't be counted), for <var>n</var> iterations.
+	 */
+	static long[] execute(int n, boolean share) {
+		Lua L = new Lua();
+		L.shareClosures(share);
+		BaseLib.open(L);
+
+		L.loadFile("/speed/closure.lua");
+		L.pushNumber(n);
+		long allocated = allocated();
+		long start = System.nanoTime();
+		int status = L.pcall(1, 1, Lua.ADD_STACK_TRACE);
+		long time = System.nanoTime() - start;
+		if (allocated >= 0)
+			allocated = allocated() - allocated;
+		if (status != 0)
+			System.out.println(L.value(-1));
+		else if (Lua.toNumber(L.value(-1)).orElse(0) != n / 10 * 285D)
+			System.out.println(n + " iterations summed to " + L.value(-1));
+		return new long[]{time, allocated};
+	}
+
+	/**
+	 * @return bytes allocated by this thread so far, or -1 if the JVM
+	 * doesn't provide HotSpot's com.sun.management.ThreadMXBean.
+	 */
+	private static long allocated() {
+		try {
+			java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			if (threads instanceof com.sun.management.ThreadMXBean) {
+				com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+				if (hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled())
+					return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		} catch (LinkageError e) {
+			// no com.sun.management on this JVM
+		}
+		return -1;
+	}
+}
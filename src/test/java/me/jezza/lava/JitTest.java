@@ -0,0 +1,224 @@
+package me.jezza.lava;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Contains JUnit4 Tests for functions compiled by {@link Jit}.  Each
+ * script runs its function enough times for it to be compiled, and
+ * checks that it still behaves as it would in the interpreter.
+ *
+ * @author Jezza
+ */
+public class JitTest extends AbstractTest {
+	private static final int HOT = Jit.THRESHOLD + 10;
+
+	@Override
+	protected void populate(Lua L) {
+		BaseLib.open(L);
+		StringLib.open(L);
+		MathLib.open(L);
+	}
+
+	private Proto proto(String name) {
+		return ((LuaFunction) L.getGlobal(name)).proto();
+	}
+
+	/**
+	 * Asserts that the global function <var>name</var> has been compiled,
+	 * unless the JIT is off (a threshold of 0), in which case the tests
+	 * only check that the interpreter gives the same results.
+	 */
+	private void assertCompiled(String name) {
+		if (Jit.THRESHOLD > 0)
+			Assert.assertNotNull("Not compiled", proto(name).compiled);
+	}
+
+	private void run(String script) {
+		int status = doString(script);
+		if (status != 0)
+			Assert.fail(L.toString(L.value(-1)));
+	}
+
+	@Test
+	public void testArithmetic() {
+		run("function f(x, y)\n" +
+				"  local a = x + y * 2 - (x / 4) ^ 2 % 3\n" +
+				"  if a < y or a <= x then a = -a end\n" +
+				"  if x == y then return 0 end\n" +
+				"  return a, #\"abc\" .. x\n" +
+				"end\n" +
+				"r = 0\n" +
+				"for i = 1, " + HOT + " do r = r + f(i, 3) end\n" +
+				"s = select(2, f(5, 3))\n" +
+				"n = f(0/0, 0/0)\n");
+		assertCompiled("f");
+		double r = 0;
+		for (int i = 1; i <= HOT; i++) {
+			if (i == 3)
+				continue;
+			double x = i;
+			double a = x + 3 * 2 - Lua.modulus(Math.pow(x / 4, 2), 3);
+			if (a < 3 || a <= x)
+				a = -a;
+			r += a;
+		}
+		Assert.assertEquals(r, L.getGlobal("r"));
+		Assert.assertEquals("35", L.getGlobal("s"));
+		Assert.assertTrue(L.getGlobal("n") instanceof Double);
+	}
+
+	@Test
+	public void testMetamethods() {
+		run("local mt = {}\n" +
+				"mt.__add = function(a, b) return a.v + b end\n" +
+				"mt.__index = function(t, k) return k * 2 end\n" +
+				"mt.__lt = function(a, b) return a.v < b.v end\n" +
+				"function f(t, i)\n" +
+				"  local x = t + i\n" +
+				"  if t < t then x = 0 end\n" +
+				"  return x + t[i]\n" +
+				"end\n" +
+				"local t = setmetatable({v = 1}, mt)\n" +
+				"r = 0\n" +
+				"for i = 1, " + HOT + " do r = r + f(t, i) end\n");
+		assertCompiled("f");
+		double r = 0;
+		for (int i = 1; i <= HOT; i++)
+			r += 1 + i + i * 2;
+		Assert.assertEquals(r, L.getGlobal("r"));
+	}
+
+	@Test
+	public void testLoops() {
+		run("function f(n)\n" +
+				"  local t, s = {}, 0\n" +
+				"  for i = n, 1, -1 do t[i] = i end\n" +
+				"  for _, v in ipairs(t) do s = s + v end\n" +
+				"  local i = 0\n" +
+				"  while i < n do i = i + 1 s = s + i end\n" +
+				"  repeat i = i - 2 until i <= 0\n" +
+				"  return s + i\n" +
+				"end\n" +
+				"r = 0\n" +
+				"for i = 1, " + HOT + " do r = r + f(10) end\n");
+		assertCompiled("f");
+		Assert.assertEquals(HOT * 110D, L.getGlobal("r"));
+	}
+
+	/**
+	 * Numeric for loops with negative and fractional steps, and bounds
+	 * past those of an int.
+	 */
+	@Test
+	public void testForLoops() {
+		run("function f(a, b, c)\n" +
+				"  local n, s = 0, 0\n" +
+				"  for i = a, b, c do n = n + 1 s = s + i end\n" +
+				"  for i = 1, 3 do i = i * 10 s = s + i end\n" +
+				"  for i = 1, 10 do if i > 2 then break end s = s + i end\n" +
+				"  return n, s\n" +
+				"end\n" +
+				"for i = 1, " + HOT + " do f(1, 2, 1) end\n" +
+				"function g(...) local n, s = f(...) return n .. ',' .. s end\n" +
+				"r = {g(1, 10, 1), g(10, 1, -3), g(1, 2, 0.5), g(0.5, 2, 1), g(1, 2.5, 1),\n" +
+				"  g(2147483640, 2147483647, 3), g(-2147483640, -2147483648, -5),\n" +
+				"  g(2147483000, 2147483500, 100), g(5, 1, 1)}\n");
+		assertCompiled("f");
+		LuaTable r = (LuaTable) L.getGlobal("r");
+		String[] expected = {"10,118", "4,85", "3,67.5", "2,65", "2,66",
+				"3,6442450992", "2,-4294967222", "6,12884899563", "0,63"};
+		for (int i = 0; i < expected.length; i++)
+			Assert.assertEquals(expected[i], Lua.rawGet(r, i + 1D));
+		// Entered by the interpreter part way through the loop.
+		run("function h(n) local s = 0 for i = 1, n do s = s + i end return s end\n" +
+				"r = h(" + 3 * HOT + ")\n");
+		assertCompiled("h");
+		Assert.assertEquals(3 * HOT * (3 * HOT + 1) / 2D, L.getGlobal("r"));
+	}
+
+	@Test
+	public void testClosures() {
+		run("function f(n, ...)\n" +
+				"  local c = 0\n" +
+				"  local function inc() c = c + n end\n" +
+				"  inc() inc()\n" +
+				"  local t = {...}\n" +
+				"  return c + #t + select('#', ...)\n" +
+				"end\n" +
+				"r = 0\n" +
+				"for i = 1, " + HOT + " do r = r + f(i, 1, 2, 3) end\n");
+		assertCompiled("f");
+		Assert.assertEquals(HOT * (HOT + 1D) + HOT * 6D, L.getGlobal("r"));
+	}
+
+	/**
+	 * Deeper than Jit.MAX_DEPTH, so that some of the calls are left to the
+	 * interpreter.
+	 */
+	@Test
+	public void testRecursion() {
+		run("function f(n)\n" +
+				"  if n == 0 then return 0 end\n" +
+				"  local x = f(n - 1)\n" +
+				"  return x + 1\n" +
+				"end\n" +
+				"r = 0\n" +
+				"for i = 1, 20 do r = r + f(" + Jit.MAX_DEPTH * 3 + ") end\n");
+		Assert.assertEquals(20D * Jit.MAX_DEPTH * 3, L.getGlobal("r"));
+	}
+
+	@Test
+	public void testError() {
+		run("function f(x)\n" +
+				"  local y = x + 1\n" +
+				"  if y > 0 then error(\"boom\") end\n" +
+				"end\n" +
+				"for i = 1, " + HOT + " do pcall(f, i) end\n" +
+				"ok, e = pcall(f, 1)\n");
+		assertCompiled("f");
+		Assert.assertEquals(Boolean.FALSE, L.getGlobal("ok"));
+		Assert.assertEquals("[string \"function f(x)...\"]:3: boom", L.getGlobal("e"));
+	}
+
+	@Test
+	public void testYield() {
+		run("function f(n)\n" +
+				"  local s = 0\n" +
+				"  for i = 1, n do\n" +
+				"    s = s + coroutine.yield(i)\n" +
+				"  end\n" +
+				"  return s\n" +
+				"end\n" +
+				"function g(n)\n" +
+				"  local s = f(n)\n" +
+				"  return s * 2\n" +
+				"end\n" +
+				"local co = coroutine.wrap(g)\n" +
+				"local v = co(" + HOT + ")\n" +
+				"while v <= " + HOT + " do v = co(v) end\n" +
+				"r = v\n");
+		assertCompiled("f");
+		Assert.assertEquals(HOT * (HOT + 1D), L.getGlobal("r"));
+	}
+
+	@Test
+	public void testHook() {
+		run("function f(n)\n" +
+				"  local s = 0\n" +
+				"  for i = 1, n do s = s + i end\n" +
+				"  return s\n" +
+				"end\n" +
+				"for i = 1, " + HOT + " do f(1) end\n");
+		assertCompiled("f");
+		int[] count = {0};
+		L.setHook((L, ar) -> {
+			count[0]++;
+			return 0;
+		}, Lua.MASK_COUNT, 1);
+		run("r = f(100)");
+		L.setHook(null, 0, 0);
+		Assert.assertEquals(5050D, L.getGlobal("r"));
+		Assert.assertTrue("Hook wasn't run for the loop", count[0] > 100);
+	}
+}
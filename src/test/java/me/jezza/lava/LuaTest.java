@@ -1,5 +1,11 @@
 package me.jezza.lava;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import me.jezza.lava.annotations.Library;
 import me.jezza.lava.annotations.Library.None;
 import org.junit.Assert;
@@ -160,4 +166,36 @@ public class LuaTest extends AbstractTest {
 		long finish = System.nanoTime();
 		System.out.println(finish - start);
 	}
+
+	private static final String CONCURRENT = "local t = setmetatable({}, {__index = function(t, k) return k * 2 end})\n" + "local sum = 0\n" + "for i = 1, 20000 do sum = sum + t[i] + (\"1\" + i) end\n" + "math.randomseed(42)\n" + "local r = 0\n" + "for i = 1, 1000 do r = r + math.random(100) end\n" + "return sum, r";
+
+	private Object[] runConcurrent() {
+		Lua L = newLua();
+		populate(L);
+		Assert.assertTrue("Failed to load", L.loadString(CONCURRENT, "concurrent.test") == 0);
+		L.call(0, 2);
+		return new Object[]{L.value(1), L.value(2)};
+	}
+
+	/**
+	 * Tests that independent Lua states can be executed on different
+	 * threads at the same time without corrupting one another.
+	 */
+	@Test
+	@Library(None.class)
+	public void testLua8() throws Exception {
+		Object[] expected = runConcurrent();
+		Assert.assertEquals("Unexpected sum", 600050000D, expected[0]);
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Object[]>> results = new ArrayList<>();
+			for (int i = 0; i < 16; i++)
+				results.add(executor.submit(this::runConcurrent));
+			for (Future<Object[]> result : results)
+				Assert.assertArrayEquals("States interfered with each other", expected, result.get());
+		} finally {
+			executor.shutdown();
+		}
+	}
 }
@@ -132,6 +132,12 @@ public class MetaTest extends AbstractTest {
 	public void testMetaEq() throws Exception {
 	}
 
+	@Test
+	@Expected(6)
+	@Name("testmetalate")
+	public void testMetaLate() throws Exception {
+	}
+
 	@Test
 	@Name("testmetalen")
 	public void testMetaLen() {
@@ -0,0 +1,66 @@
+package me.jezza.lava;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the {@link Speed} scripts on independent Lua states, one per thread,
+ * for an increasing number of threads.
+ * <p>
+ * Every thread performs the same amount of work, so with no shared state
+ * between Lua instances the wall time should stay roughly flat as threads
+ * are added (up to the number of available cores).
+ *
+ * @author Jezza
+ */
+final class ParallelSpeed {
+
+	public static void main(String[] args) throws Exception {
+		int max = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		System.out.println(report(max));
+	}
+
+	static String report(int max) throws Exception {
+		StringBuilder b = new StringBuilder();
+
+		long single = 0;
+		for (int threads = 1; threads <= max; threads <<= 1) {
+			long t = execute(threads);
+			if (threads == 1)
+				single = t;
+			b.append(threads);
+			b.append(" thread(s): ");
+			b.append(t / 1000000000D);
+			b.append(" seconds, throughput ");
+			b.append(threads * (double) single / t);
+			b.append("x.");
+			b.append('\n');
+		}
+		return b.toString();
+	}
+
+	/**
+	 * @return wall time in nanoseconds for every thread to run every script.
+	 */
+	static long execute(int threads) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			long start = System.nanoTime();
+			List<Future<?>> futures = new ArrayList<>(threads);
+			for (int i = 0; i < threads; i++) {
+				futures.add(executor.submit(() -> {
+					for (String script : Speed.scripts)
+						Speed.execute(script);
+				}));
+			}
+			for (Future<?> future : futures)
+				future.get();
+			return System.nanoTime() - start;
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package me.jezza.lava;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Times table.sort on tables of random numbers, of random strings, and
+ * of random numbers with an order function, next to {@link Arrays#sort}
+ * on as many doubles.
+ *
+ * @author Jezza
+ */
+final class SortSpeed {
+
+	public static void main(String[] args) {
+		System.out.println(report());
+	}
+
+	static String report() {
+		StringBuilder b = new StringBuilder();
+		for (int n = 1000; n <= 1000000; n *= 10) {
+			b.append(n);
+			b.append(" elements: numbers ");
+			b.append(execute(n, false, false) / 1000000000D);
+			b.append(", strings ");
+			b.append(execute(n, true, false) / 1000000000D);
+			b.append(", order function ");
+			b.append(execute(n, false, true) / 1000000000D);
+			b.append(", Arrays.sort ");
+			b.append(arraysSort(n) / 1000000000D);
+			b.append(" seconds.");
+			b.append('\n');
+		}
+		return b.toString();
+	}
+
+	/**
+	 * @return execution time in nanoseconds, to sort a table of
+	 * <var>n</var> elements.
+	 */
+	static long execute(int n, boolean strings, boolean function) {
+		Lua L = new Lua();
+		BaseLib.open(L);
+		TableLib.open(L);
+
+		Random random = new Random(42);
+		LuaTable t = L.createTable(n, 0);
+		for (int i = 1; i <= n; ++i) {
+			double d = random.nextDouble();
+			L.rawSetI(t, i, strings ? (Object) ("key" + d) : (Object) d);
+		}
+		L.push(L.getField(L.getGlobal("table"), "sort"));
+		L.push(t);
+		if (function) {
+			L.loadString("return function(a, b) return a > b end", "=SortSpeed");
+			L.call(0, 1);
+		} else {
+			L.pushNil();
+		}
+		long start = System.nanoTime();
+		int status = L.pcall(2, 0, Lua.ADD_STACK_TRACE);
+		long time = System.nanoTime() - start;
+		if (status != 0)
+			System.out.println(L.value(-1));
+		return time;
+	}
+
+	static long arraysSort(int n) {
+		Random random = new Random(42);
+		double[] d = new double[n];
+		for (int i = 0; i < n; ++i)
+			d[i] = random.nextDouble();
+		long start = System.nanoTime();
+		Arrays.sort(d);
+		return System.nanoTime() - start;
+	}
+}
@@ -25,8 +25,22 @@ package me.jezza.lava;
 
 final class Speed {
 
+	/**
+	 * With no arguments, times each of the {@link #scripts}.  Otherwise,
+	 * times each of the {@link #scaled} scripts named, at each of their
+	 * sizes.
+	 */
 	public static void main(String[] arg) {
-		System.out.println(report());
+		if (arg.length == 0) {
+			System.out.println(report());
+			return;
+		}
+		for (String name : arg) {
+			for (Scaled s : scaled) {
+				if (s.script.equals(name))
+					System.out.print(s.report());
+			}
+		}
 	}
 
 	static final String[] scripts = {
@@ -39,6 +53,21 @@ final class Speed {
 			"spectralnorm",
 	};
 
+	/**
+	 * Scripts that take a size, and any other arguments, and should take
+	 * time linear in that size.  Each checks its own result.
+	 */
+	static final Scaled[] scaled = {
+			new Scaled("backtrack", "characters", 250, 64000, 4),
+			new Scaled("fill", "keys", 1000, 1000000, 10, "forward"),
+			new Scaled("fill", "keys", 1000, 1000000, 10, "backward"),
+			new Scaled("fill", "keys", 1000, 1000000, 10, "sparse"),
+			new Scaled("fill", "keys", 1000, 1000000, 10, "blocks"),
+			new Scaled("format", "lines", 1000, 1000000, 10),
+			new Scaled("gsub", "lines", 1000, 100000, 10),
+			new Scaled("pattern", "passes over 1000 lines", 1, 1000, 10),
+	};
+
 	static String report() {
 		StringBuilder b = new StringBuilder();
 
@@ -83,4 +112,74 @@ final class Speed {
 			System.out.println(L.value(-1));
 		return System.nanoTime() - start;
 	}
+
+	/**
+	 * A script from {@link #scaled}, timed at each size from
+	 * <var>from</var> to <var>to</var>, multiplying by <var>step</var>.
+	 */
+	static final class Scaled {
+		final String script;
+		/**
+		 * What the size counts.
+		 */
+		final String unit;
+		final int from;
+		final int to;
+		final int step;
+		final String[] args;
+
+		Scaled(String script, String unit, int from, int to, int step, String... args) {
+			this.script = script;
+			this.unit = unit;
+			this.from = from;
+			this.to = to;
+			this.step = step;
+			this.args = args;
+		}
+
+		String report() {
+			StringBuilder b = new StringBuilder();
+			for (int n = from; n <= to; n *= step) {
+				long t = execute(n);
+				b.append(script);
+				for (String arg : args) {
+					b.append(' ');
+					b.append(arg);
+				}
+				b.append(", ");
+				b.append(n);
+				b.append(' ');
+				b.append(unit);
+				b.append(": ");
+				b.append(t / 1000000000D);
+				b.append(" seconds, ");
+				b.append(t / n);
+				b.append(" ns each.");
+				b.append('\n');
+			}
+			return b.toString();
+		}
+
+		/**
+		 * @return execution time in nanoseconds, for size <var>n</var>.
+		 */
+		long execute(int n) {
+			Lua L = new Lua();
+			BaseLib.open(L);
+			MathLib.open(L);
+			StringLib.open(L);
+			TableLib.open(L);
+
+			L.loadFile("/speed/" + script + ".lua");
+			L.pushNumber(n);
+			for (String arg : args)
+				L.pushString(arg);
+			long start = System.nanoTime();
+			int status = L.pcall(1 + args.length, 0, Lua.ADD_STACK_TRACE);
+			long time = System.nanoTime() - start;
+			if (status != 0)
+				System.out.println(L.value(-1));
+			return time;
+		}
+	}
 }
@@ -0,0 +1,56 @@
+package me.jezza.lava;
+
+/**
+ * Times a full <code>pairs</code> and <code>next</code> traversal of
+ * tables of increasing size.  The time per entry should stay flat.
+ *
+ * @author Jezza
+ */
+final class TraversalSpeed {
+
+	public static void main(String[] args) {
+		System.out.println(report());
+	}
+
+	static String report() {
+		StringBuilder b = new StringBuilder();
+		for (int n = 1000; n <= 1000000; n *= 10) {
+			long t = execute(n);
+			b.append(n);
+			b.append(" entries: ");
+			b.append(t / 1000000000D);
+			b.append(" seconds, ");
+			b.append(t / (2 * n));
+			b.append(" ns per step.");
+			b.append('\n');
+		}
+		return b.toString();
+	}
+
+	/**
+	 * @return execution time in nanoseconds, for traversing a table with
+	 * <var>n</var> entries in its array part and <var>n</var> in its hash
+	 * part.
+	 */
+	static long execute(int n) {
+		Lua L = new Lua();
+		BaseLib.open(L);
+
+		LuaTable t = L.createTable(n, n);
+		for (int i = 1; i <= n; i++) {
+			L.rawSetI(t, i, (double) i);
+			L.rawSet(t, "k" + i, (double) i);
+		}
+
+		L.loadFile("/speed/traversal.lua");
+		L.push(t);
+		long start = System.nanoTime();
+		int status = L.pcall(1, 1, Lua.ADD_STACK_TRACE);
+		long time = System.nanoTime() - start;
+		if (status != 0)
+			System.out.println(L.value(-1));
+		else if (Lua.toNumber(L.value(-1)).orElse(0) != 4 * n)
+			System.out.println("Traversal of " + n + " entries visited " + L.value(-1));
+		return time;
+	}
+}
@@ -507,4 +507,49 @@ public class VMTest extends AbstractTest {
 		call(L, "VMTest.lua", "testrehash", 1);
 		Assert.assertTrue("Result != true", L.value(-1).equals(Boolean.TRUE));
 	}
+
+	@Test
+	public void testquicken() throws Exception {
+		Lua L = this.L;
+		call(L, "VMTest.lua", "testquicken", 1);
+		Assert.assertTrue("Result != true: " + L.value(-1), L.value(-1).equals(Boolean.TRUE));
+	}
+
+	@Test
+	public void testsetlist() throws Exception {
+		Lua L = this.L;
+		call(L, "VMTest.lua", "testsetlist", 1);
+		Assert.assertTrue("Result != true: " + L.value(-1), L.value(-1).equals(Boolean.TRUE));
+	}
+
+	/**
+	 * Tests that calls still work after errors have unwound deep stacks of
+	 * calls, which leave their CallInfo records behind to be reused.
+	 */
+	@Test
+	public void testcallinfo() throws Exception {
+		Lua L = this.L;
+		for (int i = 1; i <= 3; i++) {
+			loadFileAndFunction(L, "VMTest.lua", "callinfofail");
+			L.pushNumber(100 * i);
+			Assert.assertNotEquals("No error at depth " + 100 * i, 0, L.pcall(1, 0, null));
+			L.setTop(0);
+		}
+		call(L, "VMTest.lua", "testcallinfo", 1);
+		Assert.assertTrue("Result != true: " + L.value(-1), L.value(-1).equals(Boolean.TRUE));
+	}
+
+	@Test
+	public void testupval() throws Exception {
+		Lua L = this.L;
+		call(L, "VMTest.lua", "testupval", 1);
+		Assert.assertTrue("Result != true: " + L.value(-1), L.value(-1).equals(Boolean.TRUE));
+	}
+
+	@Test
+	public void testconcat() throws Exception {
+		Lua L = this.L;
+		call(L, "VMTest.lua", "testconcat", 1);
+		Assert.assertTrue("Result != true: " + L.value(-1), L.value(-1).equals(Boolean.TRUE));
+	}
 }
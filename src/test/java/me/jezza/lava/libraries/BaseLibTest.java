@@ -107,6 +107,12 @@ public final class BaseLibTest extends AbstractTest {
 	public void testIpairs() throws Exception {
 	}
 
+	@Test
+	@Expected(4)
+	@Name("testiterate")
+	public void testIterate() throws Exception {
+	}
+
 	@Test
 	@Expected(7)
 	@Name("testrawequal")
@@ -143,6 +149,26 @@ public final class BaseLibTest extends AbstractTest {
 	public void testSetfenv() throws Exception {
 	}
 
+	@Test
+	@Expected(5)
+	@Name("testglobalcache")
+	public void testGlobalCache() throws Exception {
+	}
+
+	@Test
+	@Expected(3)
+	@Name("testclosureidentity")
+	public void testClosureIdentity() throws Exception {
+	}
+
+	@Test
+	public void testClosureShare() throws Exception {
+		L.shareClosures(true);
+		call("testclosureshare", 3);
+		for (int i = 1; i <= 3; ++i)
+			Assert.assertTrue("Result " + i + " isn't true", Boolean.TRUE.equals(L.value(i)));
+	}
+
 	@Test
 	@Expected(2)
 	@Name("testpcall")
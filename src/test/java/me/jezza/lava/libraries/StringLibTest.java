@@ -136,6 +136,21 @@ public final class StringLibTest extends AbstractTest {
 	public void testgmatch() throws Exception {
 	}
 
+	@Test
+	@Expected(1)
+	public void testpattern() throws Exception {
+	}
+
+	@Test
+	@Expected(1)
+	public void testpatternlinear() throws Exception {
+	}
+
+	@Test
+	@Expected(1)
+	public void testgsubreplacement() throws Exception {
+	}
+
 	@Test
 	@Expected(1)
 	public void testformatmore() throws Exception {
@@ -176,11 +191,21 @@ public final class StringLibTest extends AbstractTest {
 	public void testformatx7() throws Exception {
 	}
 
+	@Test
+	@Expected(1)
+	public void testformatcache() throws Exception {
+	}
+
 	@Test
 	@Expected(1)
 	public void testdump() throws Exception {
 	}
 
+	@Test
+	@Expected(1)
+	public void testdumpgeneric() throws Exception {
+	}
+
 	@Test
 	@Expected(1)
 	public void testaritherror() throws Exception {
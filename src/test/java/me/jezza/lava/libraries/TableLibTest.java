@@ -74,4 +74,9 @@ public final class TableLibTest extends AbstractTest {
 	@Expected(1)
 	public void testsort() throws Exception {
 	}
+
+	@Test
+	@Expected(1)
+	public void testsortarray() throws Exception {
+	}
 }
@@ -83,4 +83,125 @@ public class LuaTableTest extends AbstractTest {
 		L.rawSet(t, "key", "value");
 		Assert.assertTrue("#t != 1", Lua.objLen(t) == 1);
 	}
+
+	/**
+	 * Tests that next can resume from keys that were cleared during the traversal.
+	 */
+	@Test
+	public void testTableNext() throws Exception {
+		Lua L = this.L;
+		LuaTable t = new LuaTable();
+		int n = 1000;
+		for (int i = 1; i <= n; i++) {
+			L.rawSetI(t, i, "v" + i);
+			L.rawSet(t, "k" + i, (double) i);
+		}
+		L.push(t);
+		L.pushNil();
+		int visited = 0;
+		while (L.next(-2)) {
+			++visited;
+			// Assigning nil to an existing field is allowed during a traversal.
+			L.rawSet(t, L.value(-2), Lua.NIL);
+			L.pop(1);
+		}
+		Assert.assertEquals("Traversal didn't visit every entry", 2 * n, visited);
+		L.pushNil();
+		Assert.assertFalse("Cleared table still has entries", L.next(-2));
+	}
+
+	/**
+	 * Tests numeric keys held in the hash part.
+	 */
+	@Test
+	public void testTableNumericKeys() throws Exception {
+		Lua L = this.L;
+		LuaTable t = new LuaTable();
+		L.rawSet(t, 0D, "zero");
+		Assert.assertEquals("-0 and 0 aren't the same key", "zero", Lua.rawGet(t, -0D));
+		L.rawSet(t, -0D, "negative zero");
+		Assert.assertEquals("-0 and 0 aren't the same key", "negative zero", Lua.rawGet(t, 0D));
+
+		int n = 10000;
+		for (int i = 0; i < n; i++) {
+			L.rawSet(t, i + 0.5, "half");
+			L.rawSet(t, (double) -i, "negative");
+			L.rawSet(t, "" + i, "string");
+		}
+		for (int i = 0; i < n; i++) {
+			Assert.assertEquals("half", Lua.rawGet(t, i + 0.5));
+			Assert.assertEquals("negative", Lua.rawGet(t, (double) -i));
+			Assert.assertEquals("string", Lua.rawGet(t, "" + i));
+			Assert.assertTrue(Lua.isNil(Lua.rawGet(t, i + 0.25)));
+		}
+	}
+
+	/**
+	 * Tests tables with only string keys, which are held as records, and
+	 * that they keep working once they have to become dictionaries.
+	 */
+	@Test
+	public void testTableRecord() throws Exception {
+		Lua L = this.L;
+		LuaTable a = new LuaTable();
+		LuaTable b = new LuaTable(0, 2);
+		for (LuaTable t : new LuaTable[]{a, b}) {
+			L.rawSet(t, "x", 1D);
+			L.rawSet(t, "y", 2D);
+			L.rawSet(t, new String(new char[]{'x'}), 3D);
+		}
+		Assert.assertEquals("Equal strings aren't the same key", 3D, Lua.rawGet(a, "x"));
+		L.rawSet(a, "x", Lua.NIL);
+		Assert.assertTrue(Lua.isNil(Lua.rawGet(a, "x")));
+		Assert.assertEquals("Field of another record was cleared", 3D, Lua.rawGet(b, "x"));
+		Iterator<Object> it = a.keys();
+		Assert.assertEquals("Cleared field is still traversed", "y", it.next());
+		Assert.assertFalse(it.hasNext());
+
+		L.rawSet(a, Boolean.TRUE, "true");
+		L.rawSet(b, 0.5, "half");
+		int n = 100;
+		for (int i = 0; i < n; i++)
+			L.rawSet(b, "k" + i, (double) i);
+		Assert.assertEquals("true", Lua.rawGet(a, Boolean.TRUE));
+		Assert.assertEquals(2D, Lua.rawGet(a, "y"));
+		Assert.assertEquals("half", Lua.rawGet(b, 0.5));
+		Assert.assertEquals(2D, Lua.rawGet(b, "y"));
+		for (int i = 0; i < n; i++)
+			Assert.assertEquals((double) i, Lua.rawGet(b, "k" + i));
+		int count = 0;
+		for (it = b.keys(); it.hasNext(); it.next())
+			count++;
+		Assert.assertEquals("Traversal didn't visit every entry", n + 3, count);
+	}
+
+	/**
+	 * Tests that the length stays right as the table is appended to and
+	 * popped from, and when the array part is filled or emptied other than
+	 * at its end.
+	 */
+	@Test
+	public void testTableBorder() throws Exception {
+		Lua L = this.L;
+		LuaTable t = new LuaTable();
+		int n = 100;
+		for (int i = 1; i <= n; i++) {
+			L.rawSetI(t, Lua.objLen(t) + 1, (double) i);
+			Assert.assertEquals(i, Lua.objLen(t));
+		}
+		for (int i = n; i > n / 2; i--) {
+			L.rawSetI(t, Lua.objLen(t), Lua.NIL);
+			Assert.assertEquals(i - 1, Lua.objLen(t));
+		}
+		L.rawSetI(t, 10, Lua.NIL);
+		int len = Lua.objLen(t);
+		Assert.assertTrue("Not a border: " + len, len == 9 || len == n / 2);
+		L.rawSetI(t, 10, 10D);
+		for (int i = n / 2 + 1; i <= n * 2; i++)
+			L.rawSetI(t, i, (double) i);
+		Assert.assertEquals(n * 2, Lua.objLen(t));
+		L.rawSetI(t, 1, Lua.NIL);
+		len = Lua.objLen(t);
+		Assert.assertTrue("Not a border: " + len, len == 0 || len == n * 2);
+	}
 }
@@ -97,6 +97,34 @@ function testipairs()
   end
   return u[1]=='a', u[2]=='b', u[3]=='c', u.foo==nil
 end
+-- Test generic for loops that OP_TFORLOOP steps without calling the
+-- generator, and ones it has to call it for.
+function testiterate()
+  local t = {10, 20, 30, x = 1, y = 2}
+  local n, s = 0, 0
+  for k, v, z in pairs(t) do
+    assert(z == nil)
+    z = true
+    t[k] = v * 2
+    n = n + 1
+    s = s + t[k]
+  end
+  local a = n == 5 and s == 126
+  local u = {}
+  for i = 5, 1, -1 do u[i] = i end
+  u[3] = nil
+  n = 0
+  for i in ipairs(setmetatable(u, {__index = function() return 0 end})) do
+    n = n + i
+  end
+  local b = n == 3
+  local c = not pcall(function() for k in next, t, 'missing' do end end)
+  n = 0
+  for i in function(_, i) if i < 4 then return i + 1 end end, nil, 0 do
+    n = n + i
+  end
+  return a, b, c, n == 10
+end
 function testrawequal()
   local eq = rawequal
   return eq(nil, nil),
@@ -140,6 +168,24 @@ function testsetfenv()
   local d,e,f = (f1()=='global'), (f2()=='first'), (f3()=='second')
   return a,b,c,d,e,f
 end
+function testglobalcache()
+  local function get() return y end
+  local function set(v) y = v end
+  set(1)
+  local a = get()==1
+  for i=1,100 do _G['pad'..i] = i end
+  set(2)
+  local b = get()==2
+  y = nil
+  local c = get()==nil
+  setmetatable(_G, {__index=function(t, k) return k end})
+  local d = get()=='y'
+  setmetatable(_G, nil)
+  for i=1,100 do _G['pad'..i] = nil end
+  setfenv(get, {y='env'})
+  local e = get()=='env'
+  return a,b,c,d,e
+end
 function testpcall()
   return pcall(function()return true end)
 end
@@ -250,3 +296,29 @@ function testhexerror()
   assert(pcall(function()return'a99'+'11'end) == false)
   return true
 end
+-- By default, every closure is a distinct value, as in Lua 5.1.
+function testclosureidentity()
+  local function mk() return function() return closurevalue end end
+  local a, b = mk(), mk()
+  setfenv(a, {closurevalue = 'A'})
+  local t = {}
+  for i = 1, 3 do t[function() end] = i end
+  local n = 0
+  for k in pairs(t) do n = n + 1 end
+  return a ~= b, a() == 'A' and b() == nil, n == 3
+end
+-- Run with closures shared, see Lua.shareClosures.
+function testclosureshare()
+  local fs = {}
+  for i = 1, 3 do
+    fs[i] = function() return closurevalue end
+  end
+  local a = fs[1] == fs[2] and fs[2] == fs[3]
+  setfenv(fs[3], {closurevalue = 1})
+  for i = 1, 2 do
+    fs[i] = function() return closurevalue end
+  end
+  local b = fs[1] == fs[2] and fs[1] ~= fs[3]
+  local c = fs[1]() == nil and fs[3]() == 1
+  return a, b, c
+end
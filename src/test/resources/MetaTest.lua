@@ -289,3 +289,17 @@ function testmetaeq()
   setmetatable(v, mt)
   return t == t, t ~= u, u == v
 end
+-- test metamethods added to a metatable after they were found absent
+function testmetalate()
+  local mt = {}
+  local t = setmetatable({}, mt)
+  local u = setmetatable({}, mt)
+  local a = t.x == nil and not pcall(function() return t + 1 end)
+  local b = t ~= u
+  mt.__index = function(t, k) return k end
+  mt.__add = function(x, y) return y end
+  mt.__eq = function(x, y) return true end
+  local c, d, e = t.x == 'x', t + 1 == 1, t == u
+  mt.__index = nil
+  return a, b, c, d, e, t.x == nil
+end
@@ -176,6 +176,25 @@ function testformatx7()
   assert(type(string.format('%g', 0)) == 'string')
   return true
 end
+-- Templates are parsed once, and used again with other arguments.
+function testformatcache()
+  for i = 1, 3 do
+    assert(string.format('%05d|%-6.2f|%+x|%.3s', -i, i / 4, 255 * i, 'abcd') ==
+           '-000' .. i .. '|' .. string.sub(i / 4 .. '000', 1, 4) .. '  |+' .. string.format('%x', 255 * i) .. '|abc')
+    assert(string.format('%#o %#x %.0d', 0, i, 0) == '0 0x' .. i .. ' ')
+  end
+  for i = 1, 100 do
+    assert(string.format('%' .. i .. 's', '') == string.rep(' ', i))
+  end
+  -- arguments are checked before a malformed directive after them
+  local ok, e = pcall(string.format, '%d %z', 'x')
+  assert(not ok and string.find(e, 'number expected'))
+  ok, e = pcall(string.format, '%d %z', 1)
+  assert(not ok and string.find(e, 'format'))
+  assert(not pcall(string.format, 'a%'))
+  assert(not pcall(string.format, 'a%'))
+  return true
+end
 -- from [LUA 2006-03-26] pm.lua
 function testgsub()
   assert(string.gsub('  alo alo  ', '^%s*(.-)%s*$', '%1') == 'alo alo') -- double trim
@@ -239,6 +258,71 @@ function testgmatch()
   assert(a == 3)
   return true
 end
+-- Patterns are compiled once and cached; check the cases where how a
+-- pattern is parsed depends on how it is used, and that a malformed
+-- pattern is only an error once a match reaches the bad part.
+function testpattern()
+  assert(string.match('abc', '') == '')
+  assert(string.find('a^b', '^b') == nil)
+  local n = 0
+  for w in string.gmatch('a^b^c', '^.') do n = n + 1 end
+  assert(n == 2)
+  -- the cached pattern and its unanchored form for gmatch don't mix
+  n = 0
+  for w in string.gmatch('a^b^b', '^b') do n = n + 1 end
+  assert(n == 2 and string.find('a^b', '^b') == nil)
+  for w in string.gmatch('a^b^b', '^b') do n = n + 1 end
+  assert(n == 4)
+  assert(string.find('', 'a%') == nil)
+  assert(not pcall(string.find, 'a', 'a%'))
+  assert(not pcall(string.find, 'a', '[a'))
+  assert(not pcall(string.find, 'a', '[a%'))
+  -- more patterns than are cached, and the same pattern used again
+  -- while it is being matched
+  for i = 1, 100 do
+    assert(string.match('x' .. i .. 'y', 'x(' .. string.rep('%d', #tostring(i)) .. ')y') == tostring(i))
+  end
+  local s = string.gsub('(a b) (c)', '%((.-)%)', function(x)
+    return (string.gsub('(' .. x .. ')', '%((.-)%)', '%1!'))
+  end)
+  assert(s == 'a b! c!')
+  return true
+end
+-- Replacements are looked at once per call, not once per match.
+function testgsubreplacement()
+  assert(string.gsub('x=1, yy=22', '(%w+)=(%w+)', '%2:%1%%%0') == '1:x%x=1, 22:yy%yy=22')
+  assert(string.gsub('abc', '()b()', '[%1%2]') == 'a[23]c')
+  assert(string.gsub('abc', 'b', 'z%') == 'az\0c')
+  assert(string.gsub('abc', '%w', {a = 'A', b = false, c = 3}) == 'Ab3')
+  assert(string.gsub('abc', '%w', function(c) if c ~= 'b' then return c .. c end end) == 'aabcc')
+  assert(not pcall(string.gsub, 'abc', '%w', {b = {}}))
+  assert(not pcall(string.gsub, 'abc', 'b', '%2'))
+  -- the replacement is checked even if nothing matches
+  assert(not pcall(string.gsub, 'abc', 'z', true))
+  local s, n = string.gsub('abc', 'z', '%9')
+  assert(s == 'abc' and n == 0)
+  local big = string.rep('key=value; ', 100000)
+  s, n = string.gsub(big, '(%w+)=(%w+)', '%2=%1')
+  assert(n == 100000 and #s == #big and string.sub(s, 1, 22) == 'value=key; value=key; ')
+  return true
+end
+-- Patterns that would take backtracking cubic time, or worse.
+function testpatternlinear()
+  local a = string.rep('a', 3000)
+  local s = a .. 'cab'
+  assert(string.find(a, '.-a.-a.-b') == nil)
+  assert(string.find(a, '^(a*)(a*)(a*)b$') == nil)
+  local i, j, x, y = string.find(s, '(a*)(a*)b')
+  assert(i == 3002 and j == 3003 and x == 'a' and y == '')
+  local p, q = string.match(s, '()a-a*()b')
+  assert(p == 3002 and q == 3003)
+  local r, n = string.gsub(s, 'a*a*b', '<%0>')
+  assert(r == a .. 'c<ab>' and n == 1)
+  n = 0
+  for w in string.gmatch(s .. s, 'a*a*a*b') do n = n + 1 end
+  assert(n == 2)
+  return true
+end
 function testdump()
   local f = function()return 7 end
   local s = string.dump(f)
@@ -247,6 +331,26 @@ function testdump()
   assert(loadstring(s)() == 7)
   return true
 end
+-- Dumps only hold generic instructions, even once a function has
+-- superinstructions and quickened instructions.
+function testdumpgeneric()
+  local f = function(t, u, n)
+    local s = 0
+    for i = 1, n do
+      local a, b = i, t[i]
+      t[i] = u[b][1] + a
+      if t.x then s = s + 1 end
+      s = s + t[i]
+    end
+    return s
+  end
+  local t, u = {x = true}, {}
+  for i = 1, 10 do t[i] = i % 3 + 1; u[i] = {i} end
+  local s = string.dump(f)
+  local r = f(t, u, 10)
+  local g = loadstring(s)
+  return s == string.dump(f) and s == string.dump(g) and r == 85
+end
 -- Doesn't realy belong here, but it is here because it's most
 -- convenient to use string.find and the String library gets opened by this
 -- test.
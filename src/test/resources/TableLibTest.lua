@@ -38,6 +38,34 @@ function testsort()
   return true
 end
 
+-- Numbers and strings are sorted in the array part, and everything
+-- else as before.
+function testsortarray()
+  local a = {}
+  for i = 1, 1000 do a[i] = (i * 7919) % 1000 - 500.5 end
+  table.sort(a)
+  check(a)
+  assert(a[1] == -500.5 and a[1000] == 498.5)
+  local s = {}
+  for i = 1000, 1, -1 do s[i] = 'k' .. (i * 31) % 1000 end  -- filled backwards
+  table.sort(s)
+  check(s)
+  table.sort(a, function(x, y) return x > y end)
+  check(a, function(x, y) return x > y end)
+  assert(not pcall(table.sort, {1, 'x', 2}))
+  assert(not pcall(table.sort, {3, 2, 1, 5, 4}, function(x, y) return true end))
+  local mt = {__lt = function(x, y) return x.v < y.v end}
+  local t = {}
+  for i = 1, 100 do t[i] = setmetatable({v = (i * 37) % 100}, mt) end
+  table.sort(t)
+  for i = 1, 100 do assert(t[i].v == i - 1) end
+  -- an order function that fails leaves the table as sorted so far
+  t = {5, 4, 3, 2, 1}
+  assert(not pcall(table.sort, t, function(x, y) error('stop') end))
+  assert(#t == 5)
+  return true
+end
+
 -- From [LUA 2006-06-28] strings.lua
 function testconcat()
   assert(table.concat{} == "")
@@ -72,3 +72,128 @@ function testrehash(N)
   end
   return true
 end
+
+-- Test quickened instructions, and that they still work once the types
+-- of their operands change.
+function testquicken()
+  local function arith(x, y)
+    return x + y, x - y, x * y, x + 1, x - 1, x * 2
+  end
+  local function compare(x, y)
+    return x == y, x < y, x <= y
+  end
+  local function constant(x)
+    return x == 2, x < 3, 1 <= x
+  end
+  for i = 1, 40 do
+    local x, y = i, 3
+    if i % 3 == 0 then x = x .. '' end
+    local a, b, c, d, e, f = arith(x, y)
+    if a ~= i + 3 or b ~= i - 3 or c ~= i * 3 or d ~= i + 1 or e ~= i - 1 or f ~= i * 2 then
+      return i
+    end
+    local u, v = 2, 3
+    if i % 2 == 0 then u, v = 'a', 'b' end
+    local p, q, r = compare(u, v)
+    if p or not q or not r then
+      return -i
+    end
+    p, q, r = constant(i % 4)
+    if p ~= (i % 4 == 2) or q ~= (i % 4 < 3) or r ~= (i % 4 >= 1) then
+      return 100 + i
+    end
+  end
+  return true
+end
+
+-- Test table constructors whose size is only known at runtime.
+function testsetlist()
+  local function range(n, ...)
+    if n == 0 then return ... end
+    return range(n - 1, n, ...)
+  end
+  local t = {range(200)}
+  local u = {0, range(100)}
+  if #t ~= 200 or #u ~= 101 then
+    return false
+  end
+  for i = 1, 200 do
+    if t[i] ~= i or i <= 100 and u[i + 1] ~= i then
+      return i
+    end
+  end
+  return true
+end
+
+function callinfofail(n)
+  if n == 0 then
+    local f
+    f()
+  end
+  return callinfofail(n - 1) + 1
+end
+
+function testcallinfo()
+  local function depth(n)
+    if n == 0 then return 0 end
+    return 1 + depth(n - 1)
+  end
+  local function tail(n, acc)
+    if n == 0 then return acc end
+    return tail(n - 1, acc + 1)
+  end
+  for i = 1, 3 do
+    if depth(50 * i) ~= 50 * i or tail(1000, i) ~= 1000 + i then
+      return i
+    end
+  end
+  return true
+end
+
+function testupval()
+  local fs = {}
+  for i = 1, 10 do
+    local a, b = i, 0
+    fs[i] = {function() b = b + a return b end, function() return b end}
+  end
+  for i = 1, 10 do
+    fs[i][1]()
+    if fs[i][2]() ~= i then
+      return false
+    end
+  end
+  local function nest(n)
+    local x = n
+    local function get() return x end
+    if n == 0 then return get end
+    local inner = nest(n - 1)
+    x = x + 100
+    return function() return get() + inner() end
+  end
+  return nest(20)() == 2210
+end
+
+-- Test strings built up by concatenation, which are held as ropes
+-- until they're looked at.
+function testconcat()
+  local s, t = '', ''
+  for i = 1, 300 do
+    s = s .. i % 10
+    t = (i % 10) .. t
+  end
+  local u = {}
+  for i = 300, 1, -1 do u[#u + 1] = i % 10 end
+  local r = ''
+  for i = 1, #u do r = r .. u[i] end
+  if #s ~= 300 or r ~= t or s == t then
+    return false
+  end
+  local a, b = s .. 'a', s .. 'b'
+  local c = a .. 'c'
+  local k = {[s .. 'a'] = 1}
+  if a == b or a >= b or #c ~= 302 or k[a] ~= 1 or c .. c ~= a .. 'c' .. a .. 'c' then
+    return false
+  end
+  local n = '1' .. s .. ''
+  return n + 0 == n * 1 and s .. s == (s .. '') .. s
+end
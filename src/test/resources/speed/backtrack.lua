@@ -0,0 +1,16 @@
+-- Searches a run of n a's with patterns that make a backtracking
+-- matcher try every way of splitting the run between their
+-- repetitions, at every position, before failing or finding the match
+-- at the end.  Returns the number of searches that found the match
+-- they should have.
+
+local n = ...
+local a = string.rep('a', n)
+local s = a .. 'cab'
+local found = 0
+if string.find(a, '(.-)a(.-)b') == nil then found = found + 1 end
+if string.find(a, 'a*a*a*b') == nil then found = found + 1 end
+if string.find(s, '(a*)(a*)b') == n + 2 then found = found + 1 end
+if string.gsub(s, 'a-a*b', '') == a .. 'c' then found = found + 1 end
+assert(found == 4, "found " .. found .. " of 4 matches")
+return found
@@ -0,0 +1,12 @@
+-- Defines helper functions inside a hot loop.  None of them has an
+-- upvalue, so each can be the same closure on every iteration, rather
+-- than a new one.
+
+local n = ...
+local sum = 0
+for i = 1, n do
+  local function square(x) return x * x end
+  local add = function(a, b) return a + b end
+  sum = add(sum, square(i % 10))
+end
+return sum
@@ -0,0 +1,29 @@
+-- Fills a table with the keys [1,n] in the order given by the pattern,
+-- then reads them all back a few times.  Whatever the order, the keys
+-- should end up in the array part, so every pattern should take about
+-- as long as "forward".
+
+local n, pattern = ...
+local t = {}
+
+if pattern == "forward" then
+  for i = 1, n do t[i] = i end
+elseif pattern == "backward" then
+  for i = n, 1, -1 do t[i] = i end
+elseif pattern == "sparse" then
+  -- every other key first, then the gaps
+  for i = 2, n, 2 do t[i] = i end
+  for i = 1, n, 2 do t[i] = i end
+elseif pattern == "blocks" then
+  -- the top half first, then the bottom half
+  local h = math.floor(n / 2)
+  for i = h + 1, n do t[i] = i end
+  for i = 1, h do t[i] = i end
+end
+
+local sum = 0
+for r = 1, 10 do
+  for i = 1, n do sum = sum + t[i] end
+end
+assert(sum == 10 * n * (n + 1) / 2, pattern .. " fill of " .. n .. " keys summed to " .. sum)
+return sum
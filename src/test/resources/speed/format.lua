@@ -0,0 +1,16 @@
+-- Formats request log lines with string.format, as a logging library
+-- would, using the same few templates every time.  Returns the total
+-- length of the lines.
+
+local n = ...
+local levels = {"INFO", "WARN", "DEBUG"}
+local length = 0
+for i = 1, n do
+  local line = string.format("%s [%-5s] user%d %s /api/item/%d %d %.2fms",
+    "2024-01-01 12:00:00", levels[i % 3 + 1], i % 97, "GET", i, 200, (i % 500) / 7)
+  length = length + #line
+  line = string.format("request %08x took %5.1f%% of budget", i, (i % 1000) / 10)
+  length = length + #line
+end
+assert(length > 0, "formatted nothing")
+return length
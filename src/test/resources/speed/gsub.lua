@@ -0,0 +1,17 @@
+-- Fills in a template of n lines with string.gsub, as a templating
+-- script would: placeholders from a table, fields swapped round with
+-- captures, and a pass for a pattern that isn't there.  Returns the
+-- length of the result.
+
+local n = ...
+local lines = {}
+for i = 1, n do
+  lines[i] = "<li id=\"item" .. i .. "\">${name} costs ${price} (key=value)</li>"
+end
+local template = table.concat(lines, "\n")
+local values = {name = "widget", price = "$3"}
+local s = string.gsub(template, "%${(%w+)}", values)
+s = string.gsub(s, "(%w+)=(%w+)", "%2=%1")
+s = string.gsub(s, "<script>", "")
+assert(#s > 0, "filled in nothing")
+return #s
@@ -0,0 +1,23 @@
+-- Parses the same log lines over and over with string.match and
+-- string.find, as a log-processing script would, using the same few
+-- patterns every time.  Returns the number of lines that parsed.
+
+local passes = ...
+local lines = {}
+for i = 1, 1000 do
+  lines[i] = string.format("2024-01-%02d 12:%02d:%02d [%s] user%d GET /api/item/%d 200 %dms",
+    i % 28 + 1, i % 60, i % 60, i % 3 == 0 and "WARN" or "INFO", i % 97, i, i % 500)
+end
+
+local parsed, slow = 0, 0
+for r = 1, passes do
+  for i = 1, #lines do
+    local l = lines[i]
+    local date, level, user, path, ms = string.match(l,
+      "^(%d+%-%d+%-%d+) [%d:]+ %[(%u+)%] (%w+) %u+ (%S+) %d+ (%d+)ms$")
+    if date then parsed = parsed + 1 end
+    if level == "WARN" and string.find(path, "item/1%d%d$") then slow = slow + 1 end
+  end
+end
+assert(parsed == passes * #lines, "parsed " .. parsed .. " of " .. passes * #lines .. " lines")
+return parsed
@@ -0,0 +1,18 @@
+-- Traverses the table passed in, once with pairs and once with next.
+-- Each step resumes from the previous key, so the time taken should
+-- grow linearly with the size of the table.
+
+local t = ...
+local n = 0
+
+for k, v in pairs(t) do
+  n = n + 1
+end
+
+local k = next(t)
+while k ~= nil do
+  n = n + 1
+  k = next(t, k)
+end
+
+return n